@@ -0,0 +1,45 @@
+package no.h_nh.docker_step;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.thoughtworks.go.plugin.api.exceptions.UnhandledRequestTypeException;
+import com.thoughtworks.go.plugin.api.request.DefaultGoPluginApiRequest;
+import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
+
+
+/**
+ * Building the responses the server asks for whenever a task is shown or edited.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PluginBenchmark {
+    private DockerStepPlugin plugin;
+    private DefaultGoPluginApiRequest configuration;
+    private DefaultGoPluginApiRequest view;
+
+    @Setup
+    public void setUp() {
+        plugin = new DockerStepPlugin();
+        configuration = new DefaultGoPluginApiRequest("task", "1.0", "configuration");
+        view = new DefaultGoPluginApiRequest("task", "1.0", "view");
+    }
+
+    @Benchmark
+    public GoPluginApiResponse configuration() throws UnhandledRequestTypeException {
+        return plugin.handle(configuration);
+    }
+
+    @Benchmark
+    public GoPluginApiResponse view() throws UnhandledRequestTypeException {
+        return plugin.handle(view);
+    }
+}
@@ -0,0 +1,109 @@
+package no.h_nh.docker_step.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+
+/**
+ * Turning container log frames into console lines, as done for the step container and the
+ * service containers.  Each invocation handles one megabyte of output.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LogPipelineBenchmark {
+    private static final int OUTPUT_BYTES = 1024 * 1024;
+
+    /** Length of the lines in the output. */
+    @Param({"40", "200"})
+    public int lineLength;
+
+    /** Size of the frames the output arrives in, like the Docker log stream. */
+    @Param({"64", "8192"})
+    public int frameSize;
+
+    private ByteBuffer[] frames;
+    private NullConsoleLogger console;
+    private Path spillFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final StringBuilder output = new StringBuilder(OUTPUT_BYTES + lineLength);
+        int number = 0;
+        while (output.length() < OUTPUT_BYTES) {
+            final int start = output.length();
+            output.append(number++).append(" \u00e6\u00f8\u00e5 compiling module ");
+            while (output.length() - start < lineLength - 1)
+                output.append('x');
+            output.append('\n');
+        }
+        final byte[] bytes = output.toString().getBytes(StandardCharsets.UTF_8);
+        frames = new ByteBuffer[(bytes.length + frameSize - 1) / frameSize];
+        for (int i = 0; i < frames.length; i++) {
+            final int offset = i * frameSize;
+            frames[i] = ByteBuffer.wrap(bytes, offset, Math.min(frameSize, bytes.length - offset))
+                    .slice();
+        }
+        console = new NullConsoleLogger();
+        spillFile = Files.createTempFile("docker-step-benchmark", ".log");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(spillFile);
+    }
+
+    @Benchmark
+    public long lineAssembler() {
+        try (LineAssembler lines = new LineAssembler("", console::printLine)) {
+            for (ByteBuffer frame : frames)
+                lines.feed(frame.duplicate());
+            return lines.lines();
+        }
+    }
+
+    @Benchmark
+    public long serviceLines() {
+        try (LineAssembler lines = new LineAssembler("service: ", console::printLine,
+                line -> { })) {
+            for (ByteBuffer frame : frames)
+                lines.feed(frame.duplicate());
+            return lines.lines();
+        }
+    }
+
+    @Benchmark
+    public long stepOutputUnlimited() throws IOException {
+        try (StepOutput output = new StepOutput("", console::printLine, ConsoleBudget.UNLIMITED,
+                spillFile)) {
+            for (ByteBuffer frame : frames)
+                output.feed(frame.duplicate());
+        }
+        return console.printed;
+    }
+
+    @Benchmark
+    public long stepOutputOverBudget() throws IOException {
+        try (StepOutput output = new StepOutput("", console::printLine,
+                ConsoleBudget.parse("total-lines=1000"), spillFile)) {
+            for (ByteBuffer frame : frames)
+                output.feed(frame.duplicate());
+        }
+        return console.printed;
+    }
+}
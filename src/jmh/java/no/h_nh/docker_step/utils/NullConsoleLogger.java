@@ -0,0 +1,19 @@
+package no.h_nh.docker_step.utils;
+
+import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
+
+
+/**
+ * Console logger that only counts what it is given, so benchmarks measure the plugin rather
+ * than the console.
+ */
+public class NullConsoleLogger extends JobConsoleLogger {
+    public long printed = 0;
+    public long chars = 0;
+
+    @Override
+    public void printLine(String line) {
+        printed++;
+        chars += line.length();
+    }
+}
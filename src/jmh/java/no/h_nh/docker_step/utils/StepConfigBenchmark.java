@@ -0,0 +1,76 @@
+package no.h_nh.docker_step.utils;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * Parsing the task configuration of an execute request, with an environment the size of
+ * those of real pipelines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StepConfigBenchmark {
+
+    /** Number of environment variables in the job context. */
+    @Param({"20", "500"})
+    public int environmentSize;
+
+    private String body;
+
+    @Setup
+    public void setUp() {
+        final JsonObjectBuilder environment = Json.createObjectBuilder();
+        for (int i = 0; i < environmentSize; i++)
+            environment.add("VARIABLE_" + i, "value of variable number " + i);
+        body = executeRequest(environment).toString();
+    }
+
+    static JsonObject executeRequest(JsonObjectBuilder environment) {
+        return Json.createObjectBuilder()
+                .add("config", Json.createObjectBuilder()
+                        .add("image", value("maven:3-openjdk-11"))
+                        .add("pull", value("if-older-than"))
+                        .add("pullMaxAge", value("60"))
+                        .add("commands", value("mvn -B verify\nmvn -B deploy\nls -l target"))
+                        .add("services", value("db;postgres:13\ncache;redis:6\nmq;rabbitmq:3"))
+                        .add("readiness", value("db;tcp:5432\ncache;tcp:6379\nmq;log:started"))
+                        .add("readinessTimeout", value("120"))
+                        .add("stopTimeout", value("10"))
+                        .add("asyncCleanup", value("true"))
+                        .add("consoleBudget", value("lines-per-second=1000, total-bytes=50m")))
+                .add("context", Json.createObjectBuilder()
+                        .add("workingDirectory", "pipelines/build")
+                        .add("environmentVariables", environment))
+                .build();
+    }
+
+    private static JsonObjectBuilder value(String value) {
+        return Json.createObjectBuilder().add("value", value);
+    }
+
+    /** Only building the tree of the request, as done before the request was streamed. */
+    @Benchmark
+    public JsonObject readTree() {
+        return Json.createReader(new StringReader(body)).readObject();
+    }
+
+    @Benchmark
+    public StepConfig parseStream() {
+        return StepConfig.parse(new StringReader(body));
+    }
+}
@@ -1,27 +1,29 @@
 package no.h_nh.docker_step;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
-import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
-import javax.json.Json;
 import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
 
 import org.apache.commons.io.IOUtils;
 
 import com.spotify.docker.client.exceptions.DockerException;
 import com.spotify.docker.client.exceptions.ImageNotFoundException;
 import com.thoughtworks.go.plugin.api.AbstractGoPlugin;
+import com.thoughtworks.go.plugin.api.GoApplicationAccessor;
 import com.thoughtworks.go.plugin.api.GoPluginIdentifier;
 import com.thoughtworks.go.plugin.api.annotation.Extension;
 import com.thoughtworks.go.plugin.api.exceptions.UnhandledRequestTypeException;
@@ -30,9 +32,21 @@ import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
 
+import no.h_nh.docker_step.utils.CacheVolumes;
 import no.h_nh.docker_step.utils.DockerUtils;
+import no.h_nh.docker_step.utils.Metrics;
 import no.h_nh.docker_step.utils.MiscTools;
+import no.h_nh.docker_step.utils.Mounts;
+import no.h_nh.docker_step.utils.NetworkPool;
+import no.h_nh.docker_step.utils.PluginJson;
+import no.h_nh.docker_step.utils.Reaper;
 import no.h_nh.docker_step.utils.StepConfig;
+import no.h_nh.docker_step.utils.StepTimeoutException;
+import no.h_nh.docker_step.utils.StepTimings;
+import no.h_nh.docker_step.utils.StepValidator;
+import no.h_nh.docker_step.utils.SubSteps;
+import no.h_nh.docker_step.utils.WarmContainers;
+import no.h_nh.docker_step.utils.Watchdog;
 
 
 @Extension
@@ -41,45 +55,90 @@ public class DockerStepPlugin extends AbstractGoPlugin {
   private static final String SUCCESS = "success";
   private static final String MESSAGE = "message";
 
+  // Responses that never change, built at first use or when the plugin is initialized.
+  private volatile String configBody = null;
+  private volatile String viewBody = null;
+
   @Override
   public GoPluginApiResponse handle(GoPluginApiRequest requestMessage)
           throws UnhandledRequestTypeException {
-    final JsonObject request;
-    if (requestMessage.requestBody() != null) {
-      request = Json.createReader(new StringReader(requestMessage.requestBody())).readObject();
-    } else {
-      request = null;
-    }
+    // Only validate and execute have a body worth parsing.
     switch (requestMessage.requestName()) {
       case "configuration":
         return handleConfig();
       case "view":
         return handleView();
       case "validate":
-        if (request == null) {
-          throw new IllegalArgumentException("Request body is missing");
+        try (JsonReader reader = PluginJson.READERS.createReader(
+                new StringReader(requireBody(requestMessage)))) {
+          return handleValidate(reader.readObject());
         }
-        return handleValidate(request);
       case "execute":
-        if (request == null) {
-          throw new IllegalArgumentException("Request body is missing");
-        }
-        return handleExecute(request);
+        return handleExecute(requireBody(requestMessage));
       default:
         throw new UnhandledRequestTypeException(requestMessage.requestName());
     }
   }
 
+  private static String requireBody(GoPluginApiRequest requestMessage) {
+    if (requestMessage.requestBody() == null) {
+      throw new IllegalArgumentException("Request body is missing");
+    }
+    return requestMessage.requestBody();
+  }
+
+  @Override
+  public void initializeGoApplicationAccessor(GoApplicationAccessor goApplicationAccessor) {
+    super.initializeGoApplicationAccessor(goApplicationAccessor);
+    if (DockerUtils.isDockerAgent()) {
+      Reaper.sweep();
+      NetworkPool.warmUp();
+    }
+    Metrics.export();
+    configBody();
+    try {
+      viewBody();
+    } catch (IOException | RuntimeException e) {
+      // Reported when the view is requested
+    }
+  }
+
   @Override
   public GoPluginIdentifier pluginIdentifier() {
     return new GoPluginIdentifier("task", Collections.singletonList("1.0"));
   }
 
   private GoPluginApiResponse handleConfig() {
+    return DefaultGoPluginApiResponse.success(configBody());
+  }
+
+  private GoPluginApiResponse handleView() {
+    try {
+      return DefaultGoPluginApiResponse.success(viewBody());
+    } catch (IOException e) {
+      final String body = PluginJson.BUILDERS.createObjectBuilder().add("exception", e.getMessage()).build().toString();
+      return DefaultGoPluginApiResponse.error(body);
+    }
+  }
+
+  /**
+   * Body of the configuration response, built at first use.
+   */
+  private String configBody() {
+    String cached = configBody;
+    if (cached != null)
+      return cached;
+
     final Map<String, Object> body = new HashMap<>();
-    final String[] args = {"image", "pull", "commands", "services"};
-    final Boolean[] required = {true, true, true, false};
-    final String[] defaults = {null, "true", null, null};
+    final String[] args = {"image", "pull", "pullMaxAge", "commands", "services", "readiness",
+            "readinessTimeout", "stopTimeout", "asyncCleanup", "consoleBudget", "spillFile",
+            "reuseContainer", "resourceLimits", "cacheVolumes", "tmpfs", "timingsFile", "user", "steps",
+            "parallelism", "timeout", "idleTimeout"};
+    final Boolean[] required = {true, true, false, false, false, false, false, false, false, false,
+            false, false, false, false, false, false, false, false, false, false, false};
+    final String[] defaults = {null, "true", "60", null, null, null, "120", "60", "false", null,
+            "docker-step-output.log", "false", null, null, null, "docker-step-timings.json", null, null, "1",
+            "0", "0"};
 
     for (int i = 0; i < args.length; i++) {
       final Map<String, Object> element = new HashMap<>();
@@ -89,48 +148,72 @@ public class DockerStepPlugin extends AbstractGoPlugin {
         element.put("default-value", defaults[i]);
       body.put(args[i], element);
     }
-    return DefaultGoPluginApiResponse.success(Json.createObjectBuilder(body).build().toString());
+    cached = PluginJson.BUILDERS.createObjectBuilder(body).build().toString();
+    configBody = cached;
+    return cached;
   }
 
-  private GoPluginApiResponse handleView() {
-    try {
-      final InputStream resource = getClass().getResourceAsStream("/templates/task.template.html");
-      final String template;
-      if (resource != null)
-        template = IOUtils.toString(resource, StandardCharsets.UTF_8);
-      else
-        throw new IllegalArgumentException("Missing template file for view.");
+  /**
+   * Body of the view response, built at first use.  Failures are not cached, so a later
+   * request tries again.
+   */
+  private String viewBody() throws IOException {
+    String cached = viewBody;
+    if (cached != null)
+      return cached;
 
-      final Map<String, Object> body = new HashMap<>();
-      body.put("displayValue", "Docker Step");
-      body.put("template", template);
+    final InputStream resource = getClass().getResourceAsStream("/templates/task.template.html");
+    final String template;
+    if (resource != null)
+      try {
+        template = IOUtils.toString(resource, StandardCharsets.UTF_8);
+      } finally {
+        resource.close();
+      }
+    else
+      throw new IllegalArgumentException("Missing template file for view.");
 
-      return DefaultGoPluginApiResponse.success(Json.createObjectBuilder(body).build().toString());
-    } catch (IOException e) {
-      final String body = Json.createObjectBuilder().add("exception", e.getMessage()).build().toString();
-      return DefaultGoPluginApiResponse.error(body);
-    }
+    final Map<String, Object> body = new HashMap<>();
+    body.put("displayValue", "Docker Step");
+    body.put("template", template);
+    cached = PluginJson.BUILDERS.createObjectBuilder(body).build().toString();
+    viewBody = cached;
+    return cached;
   }
 
   private GoPluginApiResponse handleValidate(JsonObject request) {
-    final Map<String, Object> response = new HashMap<>();
-    final Map<String, String> errors = Collections.emptyMap();
-
-    // TODO: Add validation of parameters.
+    final Map<String, String> config = new HashMap<>();
+    for (Map.Entry<String, JsonValue> e : request.entrySet()) {
+      if (e.getValue().getValueType() != JsonValue.ValueType.OBJECT)
+        continue;
+      final JsonValue value = ((JsonObject) e.getValue()).get("value");
+      if (value != null && value.getValueType() == JsonValue.ValueType.STRING)
+        config.put(e.getKey(), ((JsonString) value).getString());
+    }
 
-    response.put("errors", errors);
-    return DefaultGoPluginApiResponse.success(Json.createObjectBuilder(response).build().toString());
+    final Map<String, Object> response = new HashMap<>();
+    response.put("errors", StepValidator.validate(config));
+    return DefaultGoPluginApiResponse.success(PluginJson.BUILDERS.createObjectBuilder(response).build().toString());
   }
 
-  private GoPluginApiResponse handleExecute(JsonObject request) {
-    StepConfig config = StepConfig.parse(request);
-
+  private GoPluginApiResponse handleExecute(String body) {
     final Map<String, Object> response = new HashMap<>();
+    StepConfig config = null;
     try {
-      final long exitCode = executeStep(config);
+      // Values using parameters are only checked here, so bad ones are reported like failures.
+      config = StepConfig.parse(new StringReader(body));
+      final List<SubSteps.Result> results = executeStep(config);
 
-      response.put(SUCCESS, exitCode == 0);
-      response.put(MESSAGE, "Container completed with status " + exitCode);
+      if (config.steps.isEmpty()) {
+        final long exitCode = results.get(0).exitCode;
+        response.put(SUCCESS, exitCode == 0);
+        response.put(MESSAGE, config.parallelism == 1
+                ? "Container completed with status " + exitCode
+                : config.parallelism + " shards completed with status " + exitCode);
+      } else {
+        response.put(SUCCESS, SubSteps.succeeded(results));
+        response.put(MESSAGE, "Sub-steps completed: " + SubSteps.summary(results));
+      }
     } catch (ImageNotFoundException infe) {
       response.put(SUCCESS, Boolean.FALSE);
       response.put(MESSAGE,"Image '" + config.image + "' not found");
@@ -139,76 +222,200 @@ public class DockerStepPlugin extends AbstractGoPlugin {
       response.put(MESSAGE, e.getMessage());
     }
 
-    return DefaultGoPluginApiResponse.success(Json.createObjectBuilder(response).build().toString());
+    return DefaultGoPluginApiResponse.success(PluginJson.BUILDERS.createObjectBuilder(response).build().toString());
   }
 
-  private long executeStep(StepConfig config)
-          throws DockerException, InterruptedException, IOException {
+  private List<SubSteps.Result> executeStep(StepConfig config) throws Exception {
     final JobConsoleLogger logger = JobConsoleLogger.getConsoleLogger();
+    final String jobId = UUID.randomUUID().toString();
+    final StepTimings timings = StepTimings.begin();
+    // The deadline counts from the start of the step, and is shared by all commands containers.
+    final Watchdog watchdog = config.timeout == 0 && config.idleTimeout == 0
+            ? Watchdog.NONE
+            : new Watchdog(TimeUnit.MINUTES.toMillis(config.timeout),
+                    TimeUnit.MINUTES.toMillis(config.idleTimeout));
     List<String> serviceIds = null;
     String net = null;
     try {
       if (config.doPull) {
-        DockerUtils.pullImage(config.image);
-        for (String serviceImage : config.services.values())
-          DockerUtils.pullImage(serviceImage);
+        final List<String> images = new ArrayList<>(config.services.size() + config.steps.size() + 1);
+        // The image of the task is also used to hand cache volumes over to the user.
+        if (config.steps.isEmpty() || !config.cacheVolumes.isEmpty())
+          images.add(config.image);
+        for (SubSteps.Step step : config.steps) {
+          final String image = step.image.isEmpty() ? config.image : step.image;
+          if (!images.contains(image))
+            images.add(image);
+        }
+        images.addAll(config.services.values());
+        DockerUtils.pullImages(images, config.pullPolicy);
       }
 
+      if (!config.resourceLimits.isUnlimited())
+        logger.printLine("Resource limits of each container: " + config.resourceLimits);
       if (!config.services.isEmpty())
-        net = DockerUtils.createNetwork();
-      serviceIds = new ArrayList<>(config.services.size());
-      for (Map.Entry<String, String> e : config.services.entrySet()) {
-        serviceIds.add(DockerUtils.startService(e.getKey(), e.getValue(), config.environment, net));
+        net = DockerUtils.createNetwork(jobId);
+      serviceIds = Collections.synchronizedList(new ArrayList<>(config.services.size()));
+      DockerUtils.startServices(config.services, config.environment, net, config.readiness,
+              config.readinessTimeout, jobId, config.resourceLimits, serviceIds);
+
+      final String user = config.user != null ? config.user : MiscTools.getAgentUser();
+      if (config.user != null)
+        logger.printLine("Running commands as user: " + user);
+      else if (user == null)
+        logger.printLine("Could not find the user of the agent, running commands as the image user");
+      final Mounts mounts = config.cacheVolumes.isEmpty() && config.tmpfs.isEmpty()
+              ? Mounts.NONE
+              : new Mounts(CacheVolumes.prepare(config.cacheVolumes, config.image, user,
+                      config.workingDirectory, config.environment), config.tmpfs);
+      if (config.steps.isEmpty()) {
+        logger.printLine("----- Starting step commands container -----");
+        final SubSteps.Result result = new SubSteps.Result("commands");
+        result.exitCode = runScript(config, config.image, config.commands, null, user, net, jobId,
+                mounts, watchdog);
+        logger.printLine("----- Finished step commands container -----");
+        return Collections.singletonList(result);
       }
 
-      final String user = MiscTools.getAgentUser();
-      final String scriptPath = createScript(config.commands, config.workingDirectory);
-      logger.printLine("----- Starting step commands container -----");
-      final long exitCode = DockerUtils.runScript(config.image, scriptPath, config.workingDirectory,
-              config.environment, user, net);
-      logger.printLine("----- Finished step commands container -----");
-      return exitCode;
+      final String network = net;
+      return SubSteps.run(config.steps, step -> {
+        final String image = step.image.isEmpty() ? config.image : step.image;
+        logger.printLine("----- Starting sub-step '" + step.name + "' with image: " + image + " -----");
+        final long exitCode = runScript(config, image, step.commands, step.name, user, network,
+                jobId, mounts, watchdog);
+        logger.printLine("----- Finished sub-step '" + step.name + "' with status " + exitCode + " -----");
+        return exitCode;
+      });
+    } catch (StepTimeoutException e) {
+      // The diagnostics have already been printed, a stack trace would add nothing.
+      logger.printLine(e.getMessage());
+      throw e;
     } catch (Exception e) {
       logger.printLine("Exception occurred during build");
       logException(logger, e);
+      if (DockerUtils.resetOnConnectionFailure(e))
+        logger.printLine("Lost connection to the Docker daemon, will reconnect");
       throw e;
     } finally {
-      if (serviceIds != null)
-        for (String service : serviceIds)
+      if (!config.cacheVolumes.isEmpty())
+        CacheVolumes.evict();
+      if (config.asyncCleanup && (net != null || (serviceIds != null && !serviceIds.isEmpty()))) {
+        logger.printLine("Removing services and network in the background");
+        stopServiceLogs(logger, jobId);
+        Reaper.schedule(jobId, config.stopTimeout,
+                serviceIds == null ? Collections.emptyList() : serviceIds, net);
+      } else {
+        final long teardownStart = System.nanoTime();
+        boolean cleanupFailed = false;
+        if (serviceIds != null && !serviceIds.isEmpty())
+          try {
+            DockerUtils.removeContainers(serviceIds, config.stopTimeout);
+          } catch (Exception e) {
+            logger.printLine("Exception occurred while removing containers");
+            logException(logger, e);
+            cleanupFailed = true;
+          }
+        if (net != null)
           try {
-            DockerUtils.removeContainer(service);
+            DockerUtils.removeNetwork(net);
           } catch (Exception e) {
-            logger.printLine("Exception occurred while removing container");
+            logger.printLine("Exception occurred while removing network");
             logException(logger, e);
+            cleanupFailed = true;
           }
-      if (net != null)
-        try {
-          DockerUtils.removeNetwork(net);
-        } catch (Exception e) {
-          logger.printLine("Exception occurred while removing network");
-          logException(logger, e);
+        if (net != null || (serviceIds != null && !serviceIds.isEmpty()))
+          Metrics.TEARDOWN_SECONDS.observeSince(teardownStart);
+        if (cleanupFailed) {
+          stopServiceLogs(logger, jobId);
+          Reaper.schedule(jobId, config.stopTimeout,
+                  serviceIds == null ? Collections.emptyList() : serviceIds, net);
         }
+      }
+      reportTimings(logger, timings, config);
     }
   }
 
-  private String createScript(String[] commands, String workingDirectory) throws IOException {
-    File scriptfile = MiscTools.createTempFile(workingDirectory);
+  /**
+   * Run commands, in as many shards as configured.  The shards get SHARD_INDEX and SHARD_TOTAL
+   * in their environment, and the exit code is that of the first shard that failed.
+   *
+   * @param name Name of the sub-step, or null when running the commands of the task.
+   */
+  private long runScript(StepConfig config, String image, String[] commands, String name,
+          String user, String net, String jobId, Mounts mounts, Watchdog watchdog) throws Exception {
+    final String script = createScript(commands);
+    if (config.parallelism == 1)
+      return runScript(config, image, script, config.environment, name == null ? image : name,
+              name == null ? "" : "[" + name + "] ",
+              name == null ? config.spillFile : SubSteps.spillFile(config.spillFile, name),
+              user, net, jobId, mounts, watchdog);
+
+    final String total = String.valueOf(config.parallelism);
+    final List<SubSteps.Result> results = SubSteps.runShards(config.parallelism, index -> {
+      final String shard = (name == null ? "" : name + " ") + "shard " + index;
+      final Map<String, String> env = new HashMap<>(config.environment);
+      env.put("SHARD_INDEX", String.valueOf(index));
+      env.put("SHARD_TOTAL", total);
+      return runScript(config, image, script, env, shard, "[" + shard + "] ",
+              SubSteps.spillFile(config.spillFile, (name == null ? "" : name + "-") + "shard" + index),
+              user, net, jobId, mounts, watchdog);
+    });
+    JobConsoleLogger.getConsoleLogger().printLine("----- Shards" + (name == null ? "" : " of '" + name + "'")
+            + " completed: " + SubSteps.summary(results) + " -----");
+    return SubSteps.exitCode(results);
+  }
+
+  private long runScript(StepConfig config, String image, String script, Map<String, String> env,
+          String detail, String prefix, String spillFile, String user, String net, String jobId,
+          Mounts mounts, Watchdog watchdog)
+          throws DockerException, InterruptedException, IOException, StepTimeoutException {
+    try (StepTimings.Span span = StepTimings.span("script", detail)) {
+      return config.reuseContainer
+              ? WarmContainers.runScript(image, script, config.workingDirectory, env, user, net,
+                      config.resourceLimits, mounts, prefix, config.consoleBudget, spillFile, watchdog)
+              : DockerUtils.runScript(image, script, config.workingDirectory, env, user, net, jobId,
+                      config.resourceLimits, mounts, prefix, config.consoleBudget, spillFile, watchdog);
+    }
+  }
+
+  private void reportTimings(JobConsoleLogger logger, StepTimings timings, StepConfig config) {
+    timings.finish();
+    logger.printLine(timings.table());
+    if (config.timingsFile.isEmpty())
+      return;
+    try {
+      timings.write(Paths.get(config.workingDirectory, config.timingsFile));
+    } catch (IOException e) {
+      logger.printLine("Could not write timings to " + config.timingsFile + ": " + e.getMessage());
+    }
+  }
+
+  private String createScript(String[] commands) {
     // TODO: Be able to configure the script header?
-    try (Writer output = new BufferedWriter(new FileWriter(scriptfile))) {
-      output.write("#! /usr/bin/env bash\n\nset -ex\n\n");
-      for (String command : commands) {
-        output.write(command);
-        output.write("\n");
-      }
+    final StringBuilder script = new StringBuilder("#! /usr/bin/env bash\n\nset -ex\n\n");
+    for (String command : commands) {
+      script.append(command);
+      script.append("\n");
     }
-    Runtime.getRuntime().exec("chmod +x " + scriptfile.getAbsolutePath());
-    return "./" + scriptfile.getName();
+    return script.toString();
   }
 
-  private void logException(JobConsoleLogger logger, Exception e) {
+  private void stopServiceLogs(JobConsoleLogger logger, String jobId) {
+    try {
+      DockerUtils.stopServiceLogs(jobId);
+    } catch (InterruptedException e) {
+      logger.printLine("Interrupted while stopping service output");
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void logException(JobConsoleLogger logger, Throwable e) {
     logger.printLine(e.getMessage());
     for (StackTraceElement ste : e.getStackTrace()) {
       logger.printLine("\t" + ste.toString());
     }
+    for (Throwable suppressed : e.getSuppressed()) {
+      logException(logger, suppressed);
+    }
   }
 }
@@ -0,0 +1,272 @@
+package no.h_nh.docker_step.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.DockerClient.ListVolumesParam;
+import com.spotify.docker.client.DockerClient.RemoveContainerParam;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.exceptions.NotFoundException;
+import com.spotify.docker.client.messages.ContainerConfig;
+import com.spotify.docker.client.messages.HostConfig;
+import com.spotify.docker.client.messages.Volume;
+import com.spotify.docker.client.messages.VolumeList;
+import com.thoughtworks.go.plugin.api.logging.Logger;
+import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
+
+
+/**
+ * Named volumes that keep dependency directories between jobs.
+ * A cache is declared as a path in the commands container and an optional key, and the volume
+ * is named from the agent, the pipeline, the path and the key.  A key of the form 'file:PATH'
+ * is replaced by a hash of that file in the working directory, so e.g. a lockfile can decide
+ * when a fresh cache is used.  New volumes are handed over to the user the commands run as.
+ * Each agent keeps at most 'dockerstep.cache.maxvolumes' cache volumes, removing the least
+ * recently used ones after a job.  Volumes not used since the plugin started count as the
+ * least recently used.
+ */
+public class CacheVolumes {
+    private static final Logger LOG = Logger.getLoggerFor(CacheVolumes.class);
+
+    /** Label holding the path a cache volume is mounted at. */
+    public static final String CACHE_LABEL = "no.h_nh.docker_step.cache";
+
+    private static final int MAX_VOLUMES = Integer.getInteger("dockerstep.cache.maxvolumes", 10);
+    private static final Pattern LINES = Pattern.compile("\\r?\\n");
+
+    // Last time each volume was used by this plugin instance.
+    private static final Map<String, Long> lastUsed = new HashMap<>();
+
+    private static final ExecutorService executor =
+            Executors.newSingleThreadExecutor(runnable -> {
+                final Thread thread = new Thread(StepTimings.detached(runnable), "docker-step-cache");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private CacheVolumes() {}
+
+    /**
+     * Interpret a cache specification, '/path[;key]' lines.
+     *
+     * @param spec Specification as given in the task, may be empty.
+     * @return Map of path to key, the key is empty if not given.
+     * @throws IllegalArgumentException If a path is not absolute or given twice.
+     */
+    public static Map<String, String> parse(String spec) {
+        final Map<String, String> result = new LinkedHashMap<>();
+        if (spec == null)
+            return result;
+        for (String line : LINES.split(spec)) {
+            if (line.trim().isEmpty())
+                continue;
+            final String[] pathKey = line.split(";", 2);
+            final String path = Mounts.checkPath(pathKey[0].trim(), "cache volume");
+            if (result.put(path, pathKey.length == 2 ? pathKey[1].trim() : "") != null)
+                throw new IllegalArgumentException("Duplicate cache volume path: '" + path + "'");
+        }
+        return result;
+    }
+
+    /**
+     * Get the volumes for the caches of a step, creating those that do not exist yet.
+     *
+     * @param caches     Map of path to key of the caches.
+     * @param image      Image of the commands container, used to hand new volumes over.
+     * @param user       Uid:gid the commands run as.
+     * @param workingDir Working directory, for keys of the form 'file:PATH'.
+     * @param envVars    Environment of the job.
+     * @return The volumes as 'volume:/path'.
+     * @throws DockerException If an error occurs creating a volume.
+     * @throws InterruptedException If the process is interrupted.
+     * @throws IOException If a key file cannot be read.
+     */
+    public static List<String> prepare(Map<String, String> caches, String image, String user,
+            String workingDir, Map<String, String> envVars)
+            throws DockerException, InterruptedException, IOException {
+        final JobConsoleLogger logger = JobConsoleLogger.getConsoleLogger();
+        final DockerClient client = DockerUtils.getDockerClient();
+        final String pipeline = envVars.getOrDefault("GO_PIPELINE_NAME", "");
+        final List<String> volumes = new ArrayList<>(caches.size());
+        for (Map.Entry<String, String> cache : caches.entrySet()) {
+            final String path = cache.getKey();
+            final String name = volumeName(pipeline, path, resolveKey(cache.getValue(), workingDir));
+            synchronized (lastUsed) {
+                lastUsed.put(name, System.currentTimeMillis());
+            }
+
+            boolean exists = true;
+            try {
+                client.inspectVolume(name);
+            } catch (NotFoundException e) {
+                exists = false;
+            }
+            if (exists) {
+                logger.printLine("Using cache volume " + name + " for " + path);
+            } else {
+                final Map<String, String> labels = DockerUtils.labels(null);
+                labels.put(CACHE_LABEL, path);
+                client.createVolume(Volume.builder().name(name).labels(labels).build());
+                logger.printLine("Created cache volume " + name + " for " + path);
+                handOver(name, image, user);
+            }
+            volumes.add(name + ":" + path);
+        }
+        return volumes;
+    }
+
+    /**
+     * Remove the least recently used cache volumes of this agent beyond the limit, in the
+     * background.
+     */
+    public static void evict() {
+        if (MAX_VOLUMES > 0)
+            executor.execute(CacheVolumes::evictNow);
+    }
+
+    static void evictNow() {
+        // Without an id, the volumes of this agent cannot be told from those of others.
+        if (DockerUtils.owner().isEmpty())
+            return;
+        try {
+            final DockerClient client = DockerUtils.getDockerClient();
+            final VolumeList list = client.listVolumes(ListVolumesParam.filter("label", CACHE_LABEL),
+                    ListVolumesParam.filter("label", DockerUtils.OWNER_LABEL + "=" + DockerUtils.owner()));
+            if (list == null || list.volumes() == null || list.volumes().size() <= MAX_VOLUMES)
+                return;
+
+            final List<String> names = new ArrayList<>();
+            for (Volume volume : list.volumes())
+                names.add(volume.name());
+            synchronized (lastUsed) {
+                names.sort(Comparator.comparing((String name) -> lastUsed.getOrDefault(name, 0L))
+                        .thenComparing(Comparator.naturalOrder()));
+            }
+            int excess = names.size() - MAX_VOLUMES;
+            for (String name : names) {
+                if (excess <= 0)
+                    break;
+                try {
+                    client.removeVolume(name);
+                    LOG.info("Removed cache volume " + name);
+                } catch (NotFoundException e) {
+                    // Already gone
+                } catch (DockerException e) {
+                    // Most likely in use, try the next one
+                    LOG.info("Could not remove cache volume " + name + ": " + e.getMessage());
+                    continue;
+                }
+                synchronized (lastUsed) {
+                    lastUsed.remove(name);
+                }
+                excess--;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            DockerUtils.resetOnConnectionFailure(e);
+            LOG.warn("Could not remove old cache volumes: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A key with 'file:PATH' replaced by a hash of the file, or 'missing' if there is none.
+     */
+    static String resolveKey(String key, String workingDir) throws IOException {
+        if (!key.startsWith("file:"))
+            return key;
+        final Path file = Paths.get(workingDir).resolve(key.substring(5).trim()).normalize();
+        if (!file.startsWith(Paths.get(workingDir).normalize()))
+            throw new IllegalArgumentException("Cache key file must be inside the working directory: '"
+                    + key + "'");
+        final MessageDigest digest = sha256();
+        try (InputStream input = Files.newInputStream(file)) {
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) > 0)
+                digest.update(buffer, 0, read);
+        } catch (NoSuchFileException e) {
+            return key + ":missing";
+        }
+        return key + ":" + hex(digest.digest(), 16);
+    }
+
+    static String volumeName(String pipeline, String path, String key) {
+        final MessageDigest digest = sha256();
+        for (String part : new String[] {DockerUtils.owner(), pipeline, path, key}) {
+            digest.update(part.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return "docker-step-cache-" + hex(digest.digest(), 8);
+    }
+
+    /**
+     * Make a new volume owned by the user the commands run as, as Docker creates it owned by
+     * root.  Failures are only reported, as the commands may run as root anyway, and the image
+     * may not have chown, e.g. distroless images.
+     */
+    private static void handOver(String volume, String image, String user)
+            throws InterruptedException {
+        if (user == null || user.isEmpty() || user.startsWith("0:"))
+            return;
+        final JobConsoleLogger logger = JobConsoleLogger.getConsoleLogger();
+        final DockerClient client = DockerUtils.getDockerClient();
+        final ContainerConfig config = ContainerConfig.builder()
+                .image(image).user("0").entrypoint("chown").cmd(user, "/cache")
+                .labels(DockerUtils.labels(null))
+                .hostConfig(HostConfig.builder().appendBinds(volume + ":/cache").build())
+                .build();
+        final String warning =
+                "WARNING: Could not hand cache volume " + volume + " over to " + user;
+        String id = null;
+        try {
+            id = client.createContainer(config).id();
+            client.startContainer(id);
+            final Long status = client.waitContainer(id).statusCode();
+            if (status == null || status != 0)
+                logger.printLine(warning + ", chown exited with status " + status);
+        } catch (DockerException e) {
+            logger.printLine(warning + ", could not run chown: " + e.getMessage());
+        } finally {
+            if (id != null)
+                try {
+                    client.removeContainer(id, RemoveContainerParam.forceKill(),
+                            RemoveContainerParam.removeVolumes());
+                } catch (DockerException e) {
+                    // Removed with other leftovers when the plugin next starts
+                }
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes, int count) {
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < count; i++)
+            result.append(String.format("%02x", bytes[i]));
+        return result.toString();
+    }
+}
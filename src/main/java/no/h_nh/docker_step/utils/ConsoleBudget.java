@@ -0,0 +1,126 @@
+package no.h_nh.docker_step.utils;
+
+import java.util.Locale;
+
+
+/**
+ * Limits on how much output of a step is sent to the console.  A limit of zero means unlimited.
+ */
+public class ConsoleBudget {
+    public static final ConsoleBudget UNLIMITED = new ConsoleBudget(0, 0, 0, 0);
+
+    public final long linesPerSecond;
+    public final long bytesPerSecond;
+    public final long totalLines;
+    public final long totalBytes;
+
+    private ConsoleBudget(long linesPerSecond, long bytesPerSecond, long totalLines, long totalBytes) {
+        this.linesPerSecond = linesPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+        this.totalLines = totalLines;
+        this.totalBytes = totalBytes;
+    }
+
+    public boolean isUnlimited() {
+        return linesPerSecond == 0 && bytesPerSecond == 0 && totalLines == 0 && totalBytes == 0;
+    }
+
+    /**
+     * Interpret a budget specification, a comma separated list of 'lines-per-second=N',
+     * 'bytes-per-second=N', 'total-lines=N' and 'total-bytes=N'.  Byte counts may have a
+     * k, m or g suffix.
+     *
+     * @param spec Specification as given in the task, may be empty.
+     * @return The budget described.
+     * @throws IllegalArgumentException If the specification is not understood.
+     */
+    public static ConsoleBudget parse(String spec) {
+        if (spec == null || spec.trim().isEmpty())
+            return UNLIMITED;
+
+        long linesPerSecond = 0;
+        long bytesPerSecond = 0;
+        long totalLines = 0;
+        long totalBytes = 0;
+        for (String item : spec.split("[,\\r\\n]+")) {
+            if (item.trim().isEmpty())
+                continue;
+            final String[] keyVal = item.split("=", 2);
+            if (keyVal.length != 2)
+                throw new IllegalArgumentException("Invalid console budget: '" + item.trim() + "'");
+            final String key = keyVal[0].trim().toLowerCase(Locale.ROOT);
+            switch (key) {
+                case "lines-per-second":
+                    linesPerSecond = parseSize(keyVal[1], false);
+                    break;
+                case "bytes-per-second":
+                    bytesPerSecond = parseSize(keyVal[1], true);
+                    break;
+                case "total-lines":
+                    totalLines = parseSize(keyVal[1], false);
+                    break;
+                case "total-bytes":
+                    totalBytes = parseSize(keyVal[1], true);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid console budget: '" + item.trim() + "'");
+            }
+        }
+        return new ConsoleBudget(linesPerSecond, bytesPerSecond, totalLines, totalBytes);
+    }
+
+    /**
+     * Interpret a count, optionally (for sizes) with a binary k, m or g suffix.
+     *
+     * @param value      Value to interpret.
+     * @param allowUnits If suffixes are allowed.
+     * @return The value as a number.
+     * @throws IllegalArgumentException If the value is not understood.
+     */
+    static long parseSize(String value, boolean allowUnits) {
+        final String trimmed = value.trim().toLowerCase(Locale.ROOT);
+        long multiplier = 1;
+        String number = trimmed;
+        if (allowUnits && !trimmed.isEmpty()) {
+            switch (trimmed.charAt(trimmed.length() - 1)) {
+                case 'k':
+                    multiplier = 1024L;
+                    break;
+                case 'm':
+                    multiplier = 1024L * 1024;
+                    break;
+                case 'g':
+                    multiplier = 1024L * 1024 * 1024;
+                    break;
+                default:
+                    break;
+            }
+            if (multiplier != 1)
+                number = trimmed.substring(0, trimmed.length() - 1).trim();
+        }
+        try {
+            final long result = Long.parseLong(number);
+            if (result < 0)
+                throw new IllegalArgumentException("Invalid size: '" + value.trim() + "'");
+            return result * multiplier;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid size: '" + value.trim() + "'");
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (isUnlimited())
+            return "unlimited";
+        final StringBuilder result = new StringBuilder();
+        if (linesPerSecond > 0)
+            result.append(", ").append(linesPerSecond).append(" lines/s");
+        if (bytesPerSecond > 0)
+            result.append(", ").append(bytesPerSecond).append(" bytes/s");
+        if (totalLines > 0)
+            result.append(", ").append(totalLines).append(" lines");
+        if (totalBytes > 0)
+            result.append(", ").append(totalBytes).append(" bytes");
+        return result.substring(2);
+    }
+}
@@ -1,11 +1,45 @@
 package no.h_nh.docker_step.utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 
-import org.apache.commons.lang.StringUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 
 import com.spotify.docker.client.DefaultDockerClient;
 import com.spotify.docker.client.DockerClient;
@@ -16,9 +50,14 @@ import com.spotify.docker.client.exceptions.ImageNotFoundException;
 import com.spotify.docker.client.exceptions.ImagePullFailedException;
 import com.spotify.docker.client.messages.ContainerConfig;
 import com.spotify.docker.client.messages.ContainerCreation;
+import com.spotify.docker.client.messages.ContainerState;
+import com.spotify.docker.client.messages.EndpointConfig;
 import com.spotify.docker.client.messages.HostConfig;
+import com.spotify.docker.client.messages.ImageInfo;
 import com.spotify.docker.client.messages.NetworkConfig;
+import com.spotify.docker.client.messages.NetworkConnection;
 import com.spotify.docker.client.messages.NetworkCreation;
+import com.thoughtworks.go.plugin.api.logging.Logger;
 import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
 
 
@@ -27,16 +66,152 @@ import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
  */
 public class DockerUtils {
 
-  static DockerClient dockerClient = null;
+  /** Label holding the job a container or network belongs to. */
+  public static final String JOB_LABEL = "no.h_nh.docker_step.job";
+  /** Label holding the agent that created a container or network. */
+  public static final String OWNER_LABEL = "no.h_nh.docker_step.owner";
+  /** Label holding the plugin instance that created a container or network. */
+  public static final String SESSION_LABEL = "no.h_nh.docker_step.session";
+
+  static final String SESSION = UUID.randomUUID().toString();
+
+  private static final Logger LOG = Logger.getLoggerFor(DockerUtils.class);
+  private static volatile String owner;
+
+  /** Where the script of a step is placed in the commands container, outside the workspace. */
+  static final String SCRIPT_PATH = "/docker-step/commands.sh";
+
+  // Clients for the Docker daemon, created when first needed.  Pulls get their own client,
+  // as progress messages can be far apart while large layers are extracted.
+  static final AtomicReference<DockerClient> dockerClient = new AtomicReference<>();
+  static final AtomicReference<DockerClient> pullClient = new AtomicReference<>();
+
+  // Milliseconds to wait for the rest of the output of a stopped service.
+  private static final long LOG_DRAIN_MILLIS = 5000;
+
+  // Log followers of running services, by container id.
+  private static final Map<String, LogForService> serviceLogs = new ConcurrentHashMap<>();
+  private static final ExecutorService logFollowers = logFollowerExecutor();
 
   private DockerUtils() {}
 
-  static synchronized DockerClient getDockerClient() {
-    if (dockerClient == null) {
-      dockerClient = new DefaultDockerClient(
-              System.getProperty("dockerstep.dockerhost", "unix:///var/run/docker.sock"));
+  static DockerClient getDockerClient() {
+    return getClient(dockerClient, Long.getLong("dockerstep.client.readtimeout", 30000L));
+  }
+
+  static DockerClient getPullClient() {
+    return getClient(pullClient, Long.getLong("dockerstep.client.pulltimeout", 300000L));
+  }
+
+  /**
+   * Get a client, creating it if needed.  Should two threads race to create it, the loser
+   * closes its client and uses the winner's.
+   */
+  private static DockerClient getClient(AtomicReference<DockerClient> reference, long readTimeout) {
+    final DockerClient existing = reference.get();
+    if (existing != null)
+      return existing;
+
+    final DockerClient created = Metrics.countErrors(DefaultDockerClient.builder()
+            .uri(System.getProperty("dockerstep.dockerhost", "unix:///var/run/docker.sock"))
+            .connectionPoolSize(Math.max(1, Integer.getInteger("dockerstep.client.poolsize", 100)))
+            .connectTimeoutMillis(Long.getLong("dockerstep.client.connecttimeout", 5000L))
+            .readTimeoutMillis(readTimeout)
+            .build());
+    if (reference.compareAndSet(null, created))
+      return created;
+    created.close();
+    return reference.get();
+  }
+
+  /**
+   * Throw away the clients if a failure was caused by the daemon socket being unavailable,
+   * so that new clients with fresh connections are created when the daemon is back.
+   *
+   * @param failure Failure of an operation against the daemon.
+   * @return True if the clients were thrown away.
+   */
+  public static boolean resetOnConnectionFailure(Throwable failure) {
+    if (!isConnectionFailure(failure))
+      return false;
+    for (AtomicReference<DockerClient> reference : Arrays.asList(dockerClient, pullClient)) {
+      final DockerClient client = reference.getAndSet(null);
+      if (client != null)
+        client.close();
+    }
+    return true;
+  }
+
+  private static boolean isConnectionFailure(Throwable failure) {
+    for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+      if (cause instanceof SocketTimeoutException)
+        return false;
+      if (cause instanceof SocketException || cause instanceof ClosedChannelException)
+        return true;
+      // Unix socket errors only carry the error text.
+      if (cause instanceof IOException && cause.getMessage() != null
+              && (cause.getMessage().contains("No such file or directory")
+                  || cause.getMessage().contains("Connection refused")))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Identifies this agent among others that might share the same Docker daemon.  Agents in
+   * containers usually all run from the same directory, so the directory itself will not do.
+   *
+   * @return Id of the agent, or an empty string if none was found.
+   */
+  static String owner() {
+    String id = owner;
+    if (id == null) {
+      id = System.getProperty("dockerstep.owner", "").trim();
+      if (id.isEmpty())
+        id = readOwner(Paths.get(System.getProperty("user.dir")));
+      owner = id;
     }
-    return dockerClient;
+    return id;
+  }
+
+  /**
+   * Read the UUID GoCD keeps in config/guid.txt of the agent directory.
+   *
+   * @param agentDir Working directory of the agent.
+   * @return The id, or an empty string if there is none, like on the GoCD server.
+   */
+  static String readOwner(Path agentDir) {
+    try {
+      return new String(Files.readAllBytes(agentDir.resolve("config/guid.txt")),
+              StandardCharsets.UTF_8).trim();
+    } catch (IOException e) {
+      // Not a GoCD agent directory, or not yet registered
+      return "";
+    }
+  }
+
+  /**
+   * Whether the plugin runs on an agent with a Docker daemon, where leftovers can be removed
+   * and pools filled in the background.  The plugin is also loaded by the GoCD server, which
+   * has neither an agent id nor, usually, a daemon.
+   */
+  public static boolean isDockerAgent() {
+    if (owner().isEmpty()) {
+      LOG.info("No agent id, leftovers of earlier jobs will not be removed at start");
+      return false;
+    }
+    return System.getProperty("dockerstep.dockerhost") != null
+            || Files.exists(Paths.get("/var/run/docker.sock"));
+  }
+
+  static Map<String, String> labels(String jobId) {
+    final Map<String, String> labels = new HashMap<>();
+    if (!owner().isEmpty())
+      labels.put(OWNER_LABEL, owner());
+    labels.put(SESSION_LABEL, SESSION);
+    if (jobId != null)
+      labels.put(JOB_LABEL, jobId);
+    return labels;
   }
 
   /**
@@ -47,10 +222,113 @@ public class DockerUtils {
    * @throws InterruptedException If the process is interrupted.
    */
   public static void pullImage(String image) throws DockerException, InterruptedException {
+    pullImage(image, "", new AtomicBoolean());
+  }
+
+  /**
+   * Pulls a number of images concurrently.  Duplicates are only pulled once, and progress
+   * lines are prefixed by the image they belong to.  If one pull fails, the others are
+   * cancelled and the first failure is thrown.
+   * The number of concurrent pulls is limited by the 'dockerstep.pullconcurrency' property.
+   *
+   * @param images Images to pull.
+   * @param policy Decides which of the images actually need pulling.
+   * @throws DockerException If an error occurs.
+   * @throws InterruptedException If the process is interrupted.
+   */
+  public static void pullImages(Collection<String> images, PullPolicy policy)
+          throws DockerException, InterruptedException {
+    final Set<String> distinct = new LinkedHashSet<>();
+    for (String image : images)
+      if (!distinct.contains(image) && needsPull(image, policy))
+        distinct.add(image);
+    if (distinct.size() <= 1) {
+      for (String image : distinct)
+        pullAndRecord(image, "", new AtomicBoolean());
+      return;
+    }
+
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    final List<DockerTask> pulls = new ArrayList<>(distinct.size());
+    for (String image : distinct)
+      pulls.add(() -> pullAndRecord(image, image + ": ", cancelled));
+    try {
+      runConcurrently("docker-step-pull",
+              Math.max(1, Integer.getInteger("dockerstep.pullconcurrency", 4)), pulls);
+    } finally {
+      cancelled.set(true);
+    }
+  }
+
+  /**
+   * Decide if an image must be pulled, using only the local daemon and the image cache.
+   */
+  private static boolean needsPull(String image, PullPolicy policy)
+          throws DockerException, InterruptedException {
+    if (policy.mode == PullPolicy.Mode.ALWAYS)
+      return true;
+    if (policy.mode == PullPolicy.Mode.NEVER)
+      return false;
+
+    final JobConsoleLogger logger = JobConsoleLogger.getConsoleLogger();
+    final ImageInfo info;
+    try {
+      info = getDockerClient().inspectImage(image);
+    } catch (ImageNotFoundException e) {
+      return true;
+    }
+    if (info == null)
+      return true;
+    if (policy.mode == PullPolicy.Mode.IF_NOT_PRESENT) {
+      logger.printLine("Image present, not pulling: " + image);
+      return false;
+    }
+    if (ImageCache.isFresh(image, info.id(), policy.maxAgeMillis)) {
+      logger.printLine("Image checked recently, not pulling: " + image);
+      return false;
+    }
+    return true;
+  }
+
+  private static void pullAndRecord(String image, String prefix, AtomicBoolean cancelled)
+          throws DockerException, InterruptedException {
+    final long start = System.nanoTime();
+    try (StepTimings.Span span = StepTimings.span("pull", image)) {
+      pullImage(image, prefix, cancelled);
+      final ImageInfo info = getDockerClient().inspectImage(image);
+      if (info != null)
+        ImageCache.record(image, info.id());
+    } finally {
+      Metrics.PULL_SECONDS.observeSince(start, image);
+    }
+  }
+
+  private static void pullImage(String image, String prefix, AtomicBoolean cancelled)
+          throws DockerException, InterruptedException {
     final JobConsoleLogger logger = JobConsoleLogger.getConsoleLogger();
     logger.printLine("Pulling image: " + image);
+    // Bytes downloaded so far by layer
+    final Map<String, Long> downloaded = new HashMap<>();
+    try {
+      pullImage(image, prefix, cancelled, logger, downloaded);
+    } finally {
+      long bytes = 0;
+      for (long layer : downloaded.values())
+        bytes += layer;
+      Metrics.PULL_BYTES.add(bytes, image);
+    }
+  }
+
+  private static void pullImage(String image, String prefix, AtomicBoolean cancelled,
+          JobConsoleLogger logger, Map<String, Long> downloaded)
+          throws DockerException, InterruptedException {
+    // Size of each layer, from its progress, for when it completes without a current count
+    final Map<String, Long> sizes = new HashMap<>();
     // basic logic for ProgressHandler pulled from LoggingPullHandler in docker-client
-    getDockerClient().pull(image, pm -> {
+    getPullClient().pull(image, pm -> {
+      if (cancelled.get()) {
+        throw new ImagePullFailedException(image, "Pull cancelled");
+      }
       final String err = pm.error();
       if (err != null) {
         if (err.contains("404") || err.toLowerCase().contains("not found")) {
@@ -59,7 +337,14 @@ public class DockerUtils {
           throw new ImagePullFailedException(image, pm.toString());
         }
       } else {
-        StringBuilder message = new StringBuilder().append(pm.status());
+        StringBuilder message = new StringBuilder(prefix).append(pm.status());
+        if (pm.id() != null && pm.progressDetail() != null && pm.progressDetail().total() != null)
+          sizes.put(pm.id(), pm.progressDetail().total());
+        if ("Downloading".equals(pm.status()) && pm.id() != null && pm.progressDetail() != null
+                && pm.progressDetail().current() != null)
+          downloaded.put(pm.id(), pm.progressDetail().current());
+        else if ("Download complete".equals(pm.status()) && sizes.containsKey(pm.id()))
+          downloaded.put(pm.id(), sizes.get(pm.id()));
         if ("Downloading".equals(pm.status()) || "Extracting".equals(pm.status())) {
           message.append(" ");
           message.append(pm.progress());
@@ -69,6 +354,45 @@ public class DockerUtils {
     });
   }
 
+  /**
+   * Starts a number of service containers concurrently, and waits for them to be ready.
+   * If one of them fails, the others are cancelled and the first failure is thrown.
+   *
+   * @param services   Map of name to image of the services to start.
+   * @param envVars    Environment of the containers.
+   * @param network    Network to attach to.
+   * @param readiness  Map of name to readiness check, for services that have one.
+   * @param timeout    Seconds to wait for all services to become ready.
+   * @param jobId      Job the services belong to.
+   * @param limits     Resource limits of each service.
+   * @param serviceIds Collection the ids of created containers are added to, for later removal.
+   * @throws DockerException If an error occurs, or a service is not ready in time.
+   * @throws InterruptedException If the process is interrupted.
+   */
+  public static void startServices(Map<String, String> services, Map<String, String> envVars,
+          String network, Map<String, ReadinessCheck> readiness, int timeout, String jobId,
+          ResourceLimits limits, Collection<String> serviceIds)
+          throws DockerException, InterruptedException {
+    final Map<String, String> started = new ConcurrentHashMap<>();
+    final List<DockerTask> starts = new ArrayList<>(services.size());
+    for (Map.Entry<String, String> e : services.entrySet())
+      starts.add(() -> {
+        final String id = startService(e.getKey(), e.getValue(), envVars, network,
+                readiness.get(e.getKey()), jobId, limits);
+        started.put(e.getKey(), id);
+        serviceIds.add(id);
+      });
+    runConcurrently("docker-step-service", services.size(), starts);
+
+    final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeout);
+    final List<DockerTask> waits = new ArrayList<>(readiness.size());
+    for (Map.Entry<String, ReadinessCheck> e : readiness.entrySet()) {
+      final String id = started.get(e.getKey());
+      if (id != null)
+        waits.add(() -> waitForService(e.getKey(), id, e.getValue(), jobId, deadline));
+    }
+    runConcurrently("docker-step-readiness", waits.size(), waits);
+  }
 
   /**
    * Starts a service container with a given name.
@@ -82,15 +406,52 @@ public class DockerUtils {
    */
   public static String startService(String name, String image, Map<String, String> envVars,
           String network) throws DockerException, InterruptedException {
+    return startService(name, image, envVars, network, null, null, ResourceLimits.UNLIMITED);
+  }
+
+  private static String startService(String name, String image, Map<String, String> envVars,
+          String network, ReadinessCheck readiness, String jobId, ResourceLimits limits)
+          throws DockerException, InterruptedException {
+    try (StepTimings.Span span = StepTimings.span("service start", name)) {
+      final String id = createService(name, image, envVars, network, readiness, jobId, limits);
+      Metrics.serviceStarted(id);
+      return id;
+    }
+  }
+
+  private static String createService(String name, String image, Map<String, String> envVars,
+          String network, ReadinessCheck readiness, String jobId, ResourceLimits limits)
+          throws DockerException, InterruptedException {
     final JobConsoleLogger logger = JobConsoleLogger.getConsoleLogger();
+    final String pooled = jobId == null ? null : ServicePool.take(name, image, envVars, limits);
+    if (pooled != null) {
+      logger.printLine("Using pooled container for service '" + name + "': " + pooled);
+      logger.printLine("Pooled services are started without the GO_ variables of the job");
+      try {
+        connectService(name, pooled, network);
+      } catch (DockerException | InterruptedException e) {
+        removeContainer(pooled, 0);
+        throw e;
+      }
+      logServiceContainer(pooled, name,
+              readiness != null && readiness.type == ReadinessCheck.Type.LOG ? readiness.pattern : null,
+              jobId);
+      return pooled;
+    }
+
     logger.printLine("Starting service '" + name + "' from image: " + image);
+    final long start = System.nanoTime();
 
     final List<String> env = new ArrayList<>(envVars.size());
     for (Map.Entry<String, String> entry : envVars.entrySet())
       env.add(entry.getKey() + "=" + entry.getValue());
-    final ContainerConfig config =
-            ContainerConfig.builder().hostname(name).image(image).env(env).build();
-    final ContainerCreation container = getDockerClient().createContainer(config, name);
+    final ContainerConfig config = ContainerConfig.builder()
+            .hostname(name).image(image).env(env).labels(labels(jobId))
+            .hostConfig(limits.apply(HostConfig.builder()).build()).build();
+    // Jobs may overlap while an earlier one is cleaned up, so only the network alias is the
+    // plain service name.
+    final ContainerCreation container =
+            getDockerClient().createContainer(config, jobId == null ? name : name + "_" + jobId);
 
     final List<String> warnings = container.warnings();
     if (warnings != null && !warnings.isEmpty())
@@ -99,38 +460,171 @@ public class DockerUtils {
 
     final String id = container.id();
     logger.printLine("Created container: " + name + "/" + id);
-    if (network != null) {
-      getDockerClient().connectToNetwork(id, network);
-      logger.printLine("Attached to network: " + network);
-    }
+    connectService(name, id, network);
     getDockerClient().startContainer(id);
+    Metrics.START_SECONDS.observeSince(start, "service");
     logger.printLine("Started container: "+ id);
 
-    logServiceContainer(id, name);
+    logServiceContainer(id, name,
+            readiness != null && readiness.type == ReadinessCheck.Type.LOG ? readiness.pattern : null,
+            jobId);
 
     return id;
   }
 
+  /**
+   * Attach a service to a network, reachable by its name.
+   */
+  private static void connectService(String name, String id, String network)
+          throws DockerException, InterruptedException {
+    if (network == null)
+      return;
+    getDockerClient().connectToNetwork(network, NetworkConnection.builder().containerId(id)
+            .endpointConfig(EndpointConfig.builder()
+                    .aliases(Collections.singletonList(name)).build())
+            .build());
+    JobConsoleLogger.getConsoleLogger().printLine("Attached to network: " + network);
+  }
+
+  /**
+   * Waits until a service passes its readiness check.
+   *
+   * @param name      Name of the service.
+   * @param id        Container id of the service.
+   * @param readiness Check to perform.
+   * @param jobId     Job the service belongs to.
+   * @param deadline  Time (in epoch millis) to give up.
+   * @throws DockerException If the service fails, or is not ready by the deadline.
+   * @throws InterruptedException If the process is interrupted.
+   */
+  static void waitForService(String name, String id, ReadinessCheck readiness, String jobId,
+          long deadline) throws DockerException, InterruptedException {
+    try (StepTimings.Span span = StepTimings.span("service ready", name)) {
+      awaitService(name, id, readiness, jobId, deadline);
+    }
+  }
+
+  private static void awaitService(String name, String id, ReadinessCheck readiness, String jobId,
+          long deadline) throws DockerException, InterruptedException {
+    final JobConsoleLogger logger = JobConsoleLogger.getConsoleLogger();
+    logger.printLine("Waiting for service '" + name + "': " + readiness);
+    if (readiness.type == ReadinessCheck.Type.LOG) {
+      final LogForService follower = serviceLogs.get(id);
+      if (follower == null || !follower.awaitReady(deadline - System.currentTimeMillis()))
+        throw new DockerException("Service '" + name + "' not ready: no " + readiness);
+      logger.printLine("Service '" + name + "' is ready");
+      return;
+    }
+
+    final String probe = readiness.type == ReadinessCheck.Type.TCP
+            ? startPortProbe(id, readiness.port, jobId)
+            : null;
+    try {
+      while (true) {
+        final ContainerState state = getDockerClient().inspectContainer(id).state();
+        if (state != null && Boolean.FALSE.equals(state.running()))
+          throw new DockerException("Service '" + name + "' exited with status " + state.exitCode());
+        if (readiness.type == ReadinessCheck.Type.HEALTH) {
+          if (state == null || state.health() == null)
+            throw new DockerException("Service '" + name + "' has no HEALTHCHECK");
+          if ("healthy".equals(state.health().status()))
+            break;
+          if ("unhealthy".equals(state.health().status()))
+            throw new DockerException("Service '" + name + "' is unhealthy");
+        } else if (isProbeDone(probe)) {
+          break;
+        }
+        if (System.currentTimeMillis() >= deadline)
+          throw new DockerException("Service '" + name + "' not ready: no " + readiness);
+        Thread.sleep(500);
+      }
+    } finally {
+      if (probe != null)
+        removeProbe(probe);
+    }
+    logger.printLine("Service '" + name + "' is ready");
+  }
+
+  /**
+   * Start a container in the network namespace of a service, that exits once the service
+   * listens on a TCP port.  Probing from inside works whether or not the agent can reach the
+   * container IPs, e.g. when the agent itself runs in a container or the daemon is remote.
+   * The probe looks for a listening socket in /proc/net, so the service image needs no tools.
+   */
+  private static String startPortProbe(String serviceId, int port, String jobId)
+          throws DockerException, InterruptedException {
+    final String image = System.getProperty("dockerstep.probe.image", "busybox:latest");
+    final String listening = String.format(":%04X [0-9A-F]+:[0-9A-F]+ 0A ", port);
+    final ContainerConfig config = ContainerConfig.builder()
+            .image(image).labels(labels(jobId))
+            .cmd("sh", "-c", "until grep -qE '" + listening
+                    + "' /proc/net/tcp /proc/net/tcp6 2>/dev/null; do sleep 0.5; done")
+            .hostConfig(HostConfig.builder().networkMode("container:" + serviceId).build())
+            .build();
+    ContainerCreation container;
+    try {
+      container = getDockerClient().createContainer(config);
+    } catch (ImageNotFoundException e) {
+      pullImage(image);
+      container = getDockerClient().createContainer(config);
+    }
+    getDockerClient().startContainer(container.id());
+    return container.id();
+  }
+
+  private static boolean isProbeDone(String probe) throws DockerException, InterruptedException {
+    final ContainerState state = getDockerClient().inspectContainer(probe).state();
+    if (state == null || !Boolean.FALSE.equals(state.running()))
+      return false;
+    if (state.exitCode() == null || state.exitCode() != 0)
+      throw new DockerException("Port probe exited with status " + state.exitCode());
+    return true;
+  }
+
+  private static void removeProbe(String probe) {
+    try {
+      getDockerClient().removeContainer(probe, RemoveContainerParam.forceKill());
+    } catch (DockerException e) {
+      // The reaper finds it by the job label.
+      JobConsoleLogger.getConsoleLogger().printLine("Could not remove port probe " + probe + ": "
+              + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
 
   /**
    * Runs a script in a container.
    *
    * @param image      Image to create the container from.
-   * @param script     Relative path to script file
+   * @param script     Contents of the script.
    * @param workingDir Working directory to be bind mounted into the container.
    * @param envVars    Environment
    * @param user       Uid:gid to run as
+   * @param network    Network to attach to
+   * @param jobId      Job the container belongs to.
+   * @param limits     Resource limits of the container.
+   * @param mounts     Cache volumes and tmpfs to mount.
+   * @param prefix     Prefix added to every line of output.
+   * @param budget     Limits on output sent to the console.
+   * @param spillFile  File in the working directory to write all output to when over budget.
+   * @param watchdog   Kills the container if the step times out or goes quiet.
    * @return Exit code of script
    * @throws DockerException If an error occurs creating the container.
    * @throws InterruptedException If the process is interrupted.
+   * @throws IOException If the script cannot be copied or the spill file cannot be written.
+   * @throws StepTimeoutException If the container was killed by the watchdog.
    */
   public static long runScript(String image, String script, String workingDir,
-          Map<String, String> envVars, String user, String network)
-          throws DockerException, InterruptedException {
+          Map<String, String> envVars, String user, String network, String jobId,
+          ResourceLimits limits, Mounts mounts, String prefix, ConsoleBudget budget, String spillFile,
+          Watchdog watchdog)
+          throws DockerException, InterruptedException, IOException, StepTimeoutException {
     final JobConsoleLogger logger = JobConsoleLogger.getConsoleLogger();
     logger.printLine("Creating container for script with image: " + image);
 
     String id = null;
+    final Long exitStatus;
     try {
       final List<String> env = new ArrayList<>(envVars.size());
       for (Map.Entry<String, String> entry : envVars.entrySet())
@@ -139,10 +633,13 @@ public class DockerUtils {
       if (!envVars.containsKey("HOME"))
         env.add("HOME=/working");
       final ContainerConfig config = ContainerConfig.builder()
-              .image(image).cmd(script).workingDir("/working").user(user).env(env)
+              .image(image).cmd(SCRIPT_PATH).workingDir("/working").user(user).env(env)
+              .labels(labels(jobId))
               .attachStdin(true).attachStdout(true).attachStderr(true)
-              .hostConfig(HostConfig.builder().appendBinds(workingDir + ":/working").build())
+              .hostConfig(mounts.apply(limits.apply(
+                      HostConfig.builder().appendBinds(workingDir + ":/working"))).build())
               .build();
+      final long start = System.nanoTime();
       final ContainerCreation container = getDockerClient().createContainer(config);
 
       final List<String> warnings = container.warnings();
@@ -152,11 +649,13 @@ public class DockerUtils {
 
       id = container.id();
       logger.printLine("Created container: " + id);
+      copyScript(id, script);
       if (network != null) {
         getDockerClient().connectToNetwork(id, network);
         logger.printLine("Attached to network: " + network);
       }
       getDockerClient().startContainer(id);
+      Metrics.START_SECONDS.observeSince(start, "script");
       logger.printLine("Started container: " + id);
 
       final List<DockerClient.LogsParam> logParams = new ArrayList<>();
@@ -164,27 +663,71 @@ public class DockerUtils {
       logParams.add(DockerClient.LogsParam.stdout());
       logParams.add(DockerClient.LogsParam.stderr());
       try (final LogStream logStream =
-                   getDockerClient().logs(id, logParams.toArray(new DockerClient.LogsParam[0]))) {
+                   getDockerClient().logs(id, logParams.toArray(new DockerClient.LogsParam[0]));
+           final StepOutput output = new StepOutput(prefix, logger::printLine, budget,
+                   Paths.get(workingDir, spillFile));
+           final Watchdog.Watch watch = watchdog.watch(id, output)) {
         while (logStream.hasNext()) {
-          final String logMessage = StringUtils.chomp(StandardCharsets.UTF_8.decode(logStream.next().content()).toString());
-          for (String logLine : logMessage.split("\n")) {
-            logger.printLine(logLine);
-          }
+          output.feed(logStream.next().content());
+          watch.touch();
         }
+        // The container may run on after closing its output, so it is watched until it exits.
+        exitStatus = getDockerClient().waitContainer(id).statusCode();
+        watch.check();
       }
 
-      final Long exitStatus = getDockerClient().waitContainer(id).statusCode();
       if (exitStatus == null) {
         throw new IllegalStateException("Exit code of container is null");
       }
       logger.printLine("Container '" + id + "' exited with status " + exitStatus);
       return exitStatus;
+    } catch (InterruptedException e) {
+      // The job was cancelled, don't leave the commands running or wait for them to stop.
+      if (id != null) {
+        final String running = id;
+        id = null;
+        try {
+          removeContainer(running, 0);
+        } catch (DockerException | InterruptedException removeError) {
+          e.addSuppressed(removeError);
+        }
+      }
+      throw e;
     } finally {
       if (id != null)
         removeContainer(id);
     }
   }
 
+  /**
+   * Copies a script into a container as an executable file at SCRIPT_PATH.  The file is sent
+   * as a tar archive made in memory, so nothing is written to the workspace, and the file is
+   * in place before the container is started.
+   *
+   * @param containerId Container to copy the script into, need not be started.
+   * @param script      Contents of the script.
+   * @throws DockerException If the script cannot be copied.
+   * @throws InterruptedException If the process is interrupted.
+   * @throws IOException If the archive cannot be sent.
+   */
+  static void copyScript(String containerId, String script)
+          throws DockerException, InterruptedException, IOException {
+    final byte[] content = script.getBytes(StandardCharsets.UTF_8);
+    final ByteArrayOutputStream tar = new ByteArrayOutputStream(content.length + 2048);
+    try (TarArchiveOutputStream archive = new TarArchiveOutputStream(tar)) {
+      archive.putArchiveEntry(new TarArchiveEntry("docker-step/"));
+      archive.closeArchiveEntry();
+      final TarArchiveEntry entry = new TarArchiveEntry(SCRIPT_PATH.substring(1));
+      entry.setMode(0100755);
+      entry.setSize(content.length);
+      archive.putArchiveEntry(entry);
+      archive.write(content, 0, content.length);
+      archive.closeArchiveEntry();
+      archive.finish();
+    }
+    getDockerClient().copyToContainer(new ByteArrayInputStream(tar.toByteArray()), containerId, "/");
+  }
+
   /**
    * Stops and removes the specified container and it's volumes ('docker rm -v containerId').
    * This will wait one minute before issuing SIGKILL to the container.
@@ -195,24 +738,91 @@ public class DockerUtils {
    */
   public static void removeContainer(String containerId)
           throws DockerException, InterruptedException {
+    removeContainer(containerId, 60);
+  }
+
+  /**
+   * Stops and removes the specified container and it's volumes ('docker rm -v containerId').
+   * A stop timeout of zero kills the container right away ('docker rm -f -v containerId').
+   *
+   * @param containerId ID of container to remove.
+   * @param stopTimeout Seconds to wait after SIGTERM before issuing SIGKILL to the container.
+   * @throws DockerException If an occurs removing the container.
+   * @throws InterruptedException If the process is interrupted.
+   */
+  public static void removeContainer(String containerId, int stopTimeout)
+          throws DockerException, InterruptedException {
     final JobConsoleLogger logger = JobConsoleLogger.getConsoleLogger();
-    logger.printLine("Stopping container: " + containerId);
-    getDockerClient().stopContainer(containerId, 60);
+    final String shortId = containerId.length() > 12 ? containerId.substring(0, 12) : containerId;
+    if (stopTimeout > 0) {
+      logger.printLine("Stopping container: " + containerId);
+      try (StepTimings.Span span = StepTimings.span("stop", shortId)) {
+        getDockerClient().stopContainer(containerId, stopTimeout);
+      }
+      drainServiceLog(containerId);
+
+      logger.printLine("Removing container: " + containerId);
+      try (StepTimings.Span span = StepTimings.span("remove", shortId)) {
+        getDockerClient().removeContainer(containerId, RemoveContainerParam.removeVolumes());
+      }
+    } else {
+      logger.printLine("Killing and removing container: " + containerId);
+      try (StepTimings.Span span = StepTimings.span("remove", shortId)) {
+        getDockerClient().removeContainer(containerId, RemoveContainerParam.forceKill(),
+                RemoveContainerParam.removeVolumes());
+      }
+      drainServiceLog(containerId);
+    }
+    Metrics.containerRemoved(containerId);
+  }
 
-    logger.printLine("Removing container: " + containerId);
-    getDockerClient().removeContainer(containerId, RemoveContainerParam.removeVolumes());
+  /**
+   * Stops and removes a number of containers concurrently.  All containers are attempted
+   * removed even if some fail, the first failure is then thrown with the others suppressed.
+   *
+   * @param containerIds IDs of containers to remove.
+   * @param stopTimeout  Seconds to wait after SIGTERM before issuing SIGKILL to the containers.
+   * @throws DockerException If an occurs removing a container.
+   * @throws InterruptedException If the process is interrupted.
+   */
+  public static void removeContainers(Collection<String> containerIds, int stopTimeout)
+          throws DockerException, InterruptedException {
+    final List<DockerTask> removals = new ArrayList<>(containerIds.size());
+    synchronized (containerIds) {
+      for (String containerId : containerIds)
+        removals.add(() -> removeContainer(containerId, stopTimeout));
+    }
+    runConcurrently("docker-step-teardown", removals.size(), removals, false);
   }
 
   /**
-   * Create a (private) network for attaching container and services to.
+   * Create a (private) network for attaching container and services to, or take one from the
+   * network pool.
    * This is neeed so they see each other and can see each other by name.
    *
+   * @param jobId Job the network belongs to.
    * @return Identifier of the network created.
    */
-  public static String createNetwork() throws DockerException, InterruptedException {
+  public static String createNetwork(String jobId) throws DockerException, InterruptedException {
+    try (StepTimings.Span span = StepTimings.span("network", "create")) {
+      return createOrTakeNetwork(jobId);
+    }
+  }
+
+  private static String createOrTakeNetwork(String jobId)
+          throws DockerException, InterruptedException {
     final JobConsoleLogger logger = JobConsoleLogger.getConsoleLogger();
+    final String pooled = NetworkPool.take();
+    if (pooled != null) {
+      logger.printLine("Using pooled services network: " + pooled);
+      return pooled;
+    }
+
     logger.printLine("Creating services network.");
-    final NetworkConfig config = NetworkConfig.builder().name("step_services").build();
+    final Map<String, String> labels = labels(jobId);
+    labels.put(NetworkPool.NETWORK_LABEL, "job");
+    final NetworkConfig config =
+            NetworkConfig.builder().name("docker-step-" + jobId).labels(labels).build();
     final NetworkCreation network = getDockerClient().createNetwork(config);
 
     final String warning = network.warnings();
@@ -225,28 +835,218 @@ public class DockerUtils {
   }
 
   /**
-   * Remove a (private) network.
+   * Remove a (private) network, or return it to the network pool if it came from there.
+   * Anything still attached to it is disconnected first.
    * @param networkId network to remove.
    */
   public static void removeNetwork(String networkId) throws DockerException, InterruptedException {
     final JobConsoleLogger logger = JobConsoleLogger.getConsoleLogger();
-    getDockerClient().removeNetwork(networkId);
-    logger.printLine("Removed network: " + networkId);
+    try (StepTimings.Span span = StepTimings.span("network", "remove")) {
+      if (NetworkPool.release(networkId))
+        logger.printLine("Returned network to pool: " + networkId);
+      else
+        logger.printLine("Removed network: " + networkId);
+    }
+  }
+
+  /**
+   * Runs a number of tasks concurrently, with at most the given number running at the same time.
+   * When failing fast, the first failure cancels the other tasks and is thrown.  Otherwise all
+   * tasks run to completion, and the first failure is thrown with the others suppressed.
+   */
+  private static void runConcurrently(String name, int concurrency, List<DockerTask> tasks)
+          throws DockerException, InterruptedException {
+    runConcurrently(name, concurrency, tasks, true);
+  }
+
+  static void runConcurrently(String name, int concurrency, List<DockerTask> tasks,
+          boolean failFast) throws DockerException, InterruptedException {
+    if (tasks.isEmpty())
+      return;
+    if (tasks.size() == 1) {
+      tasks.get(0).run();
+      return;
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min(Math.max(1, concurrency), tasks.size()), daemonThreads(name));
+    final CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+    final List<Future<Void>> futures = new ArrayList<>(tasks.size());
+    Exception failure = null;
+    try {
+      for (DockerTask task : tasks) {
+        futures.add(completion.submit(() -> {
+          task.run();
+          return null;
+        }));
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          completion.take().get();
+        } catch (ExecutionException e) {
+          final Throwable cause = e.getCause();
+          final Exception exception = cause instanceof DockerException
+                  || cause instanceof InterruptedException ? (Exception) cause
+                  : new DockerException(cause);
+          if (failure == null)
+            failure = exception;
+          else
+            failure.addSuppressed(exception);
+          if (failFast)
+            break;
+        }
+      }
+    } finally {
+      for (Future<Void> future : futures)
+        future.cancel(true);
+      executor.shutdownNow();
+    }
+    if (failure instanceof InterruptedException)
+      throw (InterruptedException) failure;
+    if (failure != null)
+      throw (DockerException) failure;
+  }
+
+  interface DockerTask {
+    void run() throws DockerException, InterruptedException;
+  }
+
+  private static ThreadFactory daemonThreads(String name) {
+    final AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      final Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  private static void logServiceContainer(String containerId, String service, Pattern readyPattern,
+          String jobId) {
+    final LogForService follower = new LogForService(containerId, service, readyPattern, jobId);
+    serviceLogs.put(containerId, follower);
+    try {
+      follower.future = logFollowers.submit(follower);
+    } catch (RejectedExecutionException e) {
+      serviceLogs.remove(containerId, follower);
+      JobConsoleLogger.getConsoleLogger().printLine(
+              "Not following output of service '" + service + "': too many services running");
+      follower.done.countDown();
+      follower.ready.countDown();
+    }
+  }
+
+  /**
+   * Stop following the output of all services of a job.  Output already read is still sent to
+   * the console, but nothing more, so the job's services cannot write into the console of later
+   * jobs.  Used when the services are left for background removal.
+   *
+   * @param jobId Job the services belong to.
+   * @throws InterruptedException If the process is interrupted.
+   */
+  public static void stopServiceLogs(String jobId) throws InterruptedException {
+    for (LogForService follower : serviceLogs.values())
+      if (jobId.equals(follower.jobId))
+        follower.cancel();
+    for (LogForService follower : serviceLogs.values())
+      if (jobId.equals(follower.jobId) && !follower.awaitDone(LOG_DRAIN_MILLIS))
+        serviceLogs.remove(follower.containerId, follower);
   }
 
-  private static void logServiceContainer(String containerId, String service) {
-    Thread thread = new Thread(new LogForService(containerId, service));
-    thread.setDaemon(true);
-    thread.start();
+  /**
+   * Let the log follower of a stopped container read the rest of its output, and cancel it
+   * if that takes too long.
+   */
+  private static void drainServiceLog(String containerId) throws InterruptedException {
+    final LogForService follower = serviceLogs.get(containerId);
+    if (follower == null)
+      return;
+    try (StepTimings.Span span = StepTimings.span("log drain",
+            containerId.length() > 12 ? containerId.substring(0, 12) : containerId)) {
+      if (!follower.awaitDone(LOG_DRAIN_MILLIS)) {
+        follower.cancel();
+        if (!follower.awaitDone(LOG_DRAIN_MILLIS))
+          serviceLogs.remove(containerId, follower);
+      }
+    }
+  }
+
+  /**
+   * Executor for service log followers.  These mostly wait for output, so virtual threads are
+   * used when the runtime has them, and platform daemon threads otherwise.  At most
+   * 'dockerstep.log.followers' services are followed at the same time.
+   */
+  private static ExecutorService logFollowerExecutor() {
+    ThreadFactory factory;
+    try {
+      final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builderClass.getMethod("name", String.class, long.class)
+              .invoke(builder, "docker-step-service-log-", 1L);
+      factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      factory = daemonThreads("docker-step-service-log");
+    }
+    final int max = Math.max(1, Integer.getInteger("dockerstep.log.followers", 64));
+    final ThreadFactory threads = factory;
+    // Followers outlive the step that started them, so they must not keep its timings.
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(max, max, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<>(),
+            runnable -> threads.newThread(StepTimings.detached(runnable)));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
   }
 
   static class LogForService implements Runnable {
     private final String containerId;
     private final String prefix;
+    private final Pattern readyPattern;
+    private final String jobId;
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean matched = false;
+    private volatile boolean cancelled = false;
+    private volatile LogStream logStream = null;
+    private volatile Future<?> future = null;
 
-    LogForService(String containerId, String prefix) {
+    LogForService(String containerId, String prefix, Pattern readyPattern, String jobId) {
       this.containerId = containerId;
       this.prefix = prefix + ": ";
+      this.readyPattern = readyPattern;
+      this.jobId = jobId;
+    }
+
+    /**
+     * Wait for a line matching the ready pattern.
+     *
+     * @param timeout Milliseconds to wait.
+     * @return True if a matching line was seen, false on timeout or end of output.
+     */
+    boolean awaitReady(long timeout) throws InterruptedException {
+      ready.await(Math.max(0, timeout), TimeUnit.MILLISECONDS);
+      return matched;
+    }
+
+    /**
+     * Wait for the follower to finish, after reaching the end of the output or being cancelled.
+     *
+     * @param timeout Milliseconds to wait.
+     * @return True if the follower is finished.
+     */
+    boolean awaitDone(long timeout) throws InterruptedException {
+      return done.await(Math.max(0, timeout), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop reading output.  Lines already read are still sent to the console.
+     */
+    void cancel() {
+      cancelled = true;
+      final LogStream stream = logStream;
+      if (stream != null)
+        stream.close();
+      final Future<?> running = future;
+      if (running != null)
+        running.cancel(true);
     }
 
     @Override
@@ -256,16 +1056,34 @@ public class DockerUtils {
       logParams.add(DockerClient.LogsParam.follow());
       logParams.add(DockerClient.LogsParam.stdout());
       logParams.add(DockerClient.LogsParam.stderr());
-      try (final LogStream logStream =
-                   getDockerClient().logs(this.containerId, logParams.toArray(new DockerClient.LogsParam[0]))) {
-        while (logStream.hasNext()) {
-          final String logMessage = StringUtils.chomp(StandardCharsets.UTF_8.decode(logStream.next().content()).toString());
-          for (String logLine : logMessage.split("\n")) {
-            logger.printLine(prefix + logLine);
+      try (final LineAssembler lines = new LineAssembler(prefix, logger::printLine,
+              readyPattern == null ? null : this::checkReady)) {
+        try (final LogStream stream =
+                     getDockerClient().logs(this.containerId, logParams.toArray(new DockerClient.LogsParam[0]))) {
+          logStream = stream;
+          if (cancelled)
+            return;
+          while (!cancelled && stream.hasNext()) {
+            lines.feed(stream.next().content());
+            if (matched)
+              lines.removeLineListener();
           }
+        } catch (Exception e) {
+          if (!cancelled)
+            logger.printLine("Exception from " + prefix + e.getMessage());
         }
-      } catch (Exception e) {
-        logger.printLine("Exception from " + prefix + e.getMessage());
+      } finally {
+        logStream = null;
+        ready.countDown();
+        serviceLogs.remove(containerId, this);
+        done.countDown();
+      }
+    }
+
+    private void checkReady(String line) {
+      if (!matched && readyPattern.matcher(line).find()) {
+        matched = true;
+        ready.countDown();
       }
     }
   }
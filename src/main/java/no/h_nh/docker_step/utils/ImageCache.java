@@ -0,0 +1,55 @@
+package no.h_nh.docker_step.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Remembers, for the lifetime of the agent, which image id each image reference resolved to
+ * the last time it was pulled, and when that was.
+ */
+class ImageCache {
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private ImageCache() {}
+
+    /**
+     * Record that an image was just checked against the registry.
+     *
+     * @param image   Image reference as given in the task.
+     * @param imageId Local image id it resolved to.
+     */
+    static void record(String image, String imageId) {
+        if (imageId != null)
+            entries.put(image, new Entry(imageId, System.currentTimeMillis()));
+    }
+
+    /**
+     * Check if an image was checked against the registry recently enough, and has not been
+     * replaced locally since then.
+     *
+     * @param image   Image reference as given in the task.
+     * @param imageId Local image id it currently resolves to.
+     * @param maxAge  Milliseconds a check is considered valid.
+     * @return True if the image does not need to be pulled.
+     */
+    static boolean isFresh(String image, String imageId, long maxAge) {
+        final Entry entry = entries.get(image);
+        return entry != null && entry.imageId.equals(imageId)
+                && System.currentTimeMillis() - entry.checkedAt < maxAge;
+    }
+
+    static void clear() {
+        entries.clear();
+    }
+
+    private static class Entry {
+        final String imageId;
+        final long checkedAt;
+
+        Entry(String imageId, long checkedAt) {
+            this.imageId = imageId;
+            this.checkedAt = checkedAt;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package no.h_nh.docker_step.utils;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+
+/**
+ * Turns the frames of a container log stream into console lines.
+ * Frames are decoded directly from their buffers with a reused decoder, and lines or UTF-8
+ * characters split across frames are put back together.  Complete lines are handed to the
+ * console in batches, joined by newlines, when the batch is large enough or old enough.
+ * Batch size and age are set by the 'dockerstep.log.batchchars' and 'dockerstep.log.batchmillis'
+ * properties.  Output without newlines, like progress bars or binary data, is cut into lines of
+ * at most 'dockerstep.log.maxlinechars' characters, so it cannot fill up the heap.
+ */
+public class LineAssembler implements Closeable {
+    private static final int BATCH_CHARS = Integer.getInteger("dockerstep.log.batchchars", 16384);
+    private static final long BATCH_MILLIS = Long.getLong("dockerstep.log.batchmillis", 100L);
+    private static final int MAX_LINE_CHARS =
+            Math.max(1, Integer.getInteger("dockerstep.log.maxlinechars", 65536));
+
+    // Flushes batches of streams that have gone quiet.
+    private static final ScheduledExecutorService ticker =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(StepTimings.detached(runnable), "docker-step-log-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final String prefix;
+    private final Consumer<String> sink;
+    private volatile Consumer<String> lineListener;
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharBuffer chars = CharBuffer.allocate(8192);
+    // Bytes of a character split across frames.
+    private final ByteBuffer carry = ByteBuffer.allocate(8);
+    private final StringBuilder line = new StringBuilder();
+    private final StringBuilder batch = new StringBuilder();
+    private long batchStarted = 0;
+    private long lines = 0;
+    private long bytes = 0;
+    private final ScheduledFuture<?> flusher;
+
+    /**
+     * @param prefix Prefix added to every line.
+     * @param sink   Receives batches of lines, typically JobConsoleLogger::printLine.
+     */
+    public LineAssembler(String prefix, Consumer<String> sink) {
+        this(prefix, sink, null);
+    }
+
+    /**
+     * @param prefix       Prefix added to every line.
+     * @param sink         Receives batches of lines, typically JobConsoleLogger::printLine.
+     * @param lineListener Receives every line without prefix as it is completed, or null.
+     */
+    public LineAssembler(String prefix, Consumer<String> sink, Consumer<String> lineListener) {
+        this.prefix = prefix;
+        this.sink = sink;
+        this.lineListener = lineListener;
+        this.flusher = BATCH_MILLIS > 0
+                ? ticker.scheduleWithFixedDelay(this::flushIfDue, BATCH_MILLIS, BATCH_MILLIS,
+                        TimeUnit.MILLISECONDS)
+                : null;
+    }
+
+    /**
+     * Stop passing lines to the line listener.
+     */
+    public void removeLineListener() {
+        this.lineListener = null;
+    }
+
+    /**
+     * Add a frame of output.  The buffer is consumed.
+     *
+     * @param frame Raw bytes of the frame.
+     */
+    public synchronized void feed(ByteBuffer frame) {
+        bytes += frame.remaining();
+        // Complete a character split by the previous frame first.
+        while (carry.position() > 0 && frame.hasRemaining()) {
+            carry.put(frame.get());
+            carry.flip();
+            decode(carry, false);
+            carry.compact();
+        }
+        decode(frame, false);
+        if (frame.hasRemaining())
+            carry.put(frame);
+        if (batch.length() >= BATCH_CHARS || BATCH_MILLIS <= 0)
+            flush();
+    }
+
+    /**
+     * Number of complete lines seen so far.
+     */
+    public synchronized long lines() {
+        return lines;
+    }
+
+    /**
+     * Number of bytes fed so far.
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Hand all complete lines to the sink.
+     */
+    public synchronized void flush() {
+        if (batch.length() > 0) {
+            batch.setLength(batch.length() - 1);
+            sink.accept(batch.toString());
+            batch.setLength(0);
+        }
+    }
+
+    /**
+     * Hand any unfinished line and all complete lines to the sink, and stop flushing.
+     */
+    @Override
+    public synchronized void close() {
+        if (flusher != null)
+            flusher.cancel(false);
+        if (carry.position() > 0) {
+            carry.flip();
+            decode(carry, true);
+            carry.clear();
+        }
+        decoder.reset();
+        if (line.length() > 0)
+            endLine();
+        flush();
+        Metrics.LOG_BYTES.add(bytes);
+        Metrics.LOG_LINES.add(lines);
+    }
+
+    private synchronized void flushIfDue() {
+        if (batch.length() > 0 && System.currentTimeMillis() - batchStarted >= BATCH_MILLIS)
+            flush();
+    }
+
+    private void decode(ByteBuffer in, boolean endOfInput) {
+        while (true) {
+            final CoderResult result = decoder.decode(in, chars, endOfInput);
+            chars.flip();
+            scan();
+            chars.clear();
+            if (result.isUnderflow())
+                break;
+        }
+        if (endOfInput) {
+            decoder.flush(chars);
+            chars.flip();
+            scan();
+            chars.clear();
+        }
+    }
+
+    private void scan() {
+        final char[] array = chars.array();
+        final int end = chars.limit();
+        int start = chars.position();
+        for (int i = start; i < end; i++) {
+            if (array[i] == '\n') {
+                append(array, start, i - start);
+                endLine();
+                start = i + 1;
+            }
+        }
+        append(array, start, end - start);
+    }
+
+    private void append(char[] array, int start, int length) {
+        while (line.length() + length > MAX_LINE_CHARS) {
+            final int room = MAX_LINE_CHARS - line.length();
+            line.append(array, start, room);
+            endLine();
+            start += room;
+            length -= room;
+        }
+        line.append(array, start, length);
+    }
+
+    private void endLine() {
+        if (line.length() > 0 && line.charAt(line.length() - 1) == '\r')
+            line.setLength(line.length() - 1);
+        final Consumer<String> listener = lineListener;
+        if (listener != null)
+            listener.accept(line.toString());
+        if (batch.length() == 0)
+            batchStarted = System.currentTimeMillis();
+        batch.append(prefix).append(line).append('\n');
+        line.setLength(0);
+        lines++;
+        if (batch.length() >= BATCH_CHARS)
+            flush();
+    }
+}
@@ -0,0 +1,318 @@
+package no.h_nh.docker_step.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.exceptions.NotFoundException;
+import com.sun.net.httpserver.HttpServer;
+import com.thoughtworks.go.plugin.api.logging.Logger;
+
+
+/**
+ * Counters and histograms of all jobs run by the plugin on this agent, in the Prometheus text
+ * format.  Values are kept in LongAdders, so recording costs next to nothing on busy paths.
+ * They are served at '/metrics' on 'dockerstep.metrics.port' (bound to
+ * 'dockerstep.metrics.address', by default only locally), and/or written to
+ * 'dockerstep.metrics.file' every 'dockerstep.metrics.interval' seconds.  Without either,
+ * nothing is exported.
+ */
+public class Metrics {
+    private static final Logger LOG = Logger.getLoggerFor(Metrics.class);
+
+    private static final double[] SECONDS_BUCKETS =
+            {0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600};
+
+    private static final List<Metric> metrics = new ArrayList<>();
+
+    public static final Counter PULL_BYTES = new Counter("docker_step_pull_bytes_total",
+            "Bytes downloaded by image pulls.", "image");
+    public static final Histogram PULL_SECONDS = new Histogram("docker_step_pull_seconds",
+            "Duration of image pulls.", "image");
+    public static final Histogram START_SECONDS = new Histogram("docker_step_container_start_seconds",
+            "Time from creating a container until it is started.", "kind");
+    public static final Counter LOG_BYTES = new Counter("docker_step_log_bytes_total",
+            "Bytes of container output read for the console.");
+    public static final Counter LOG_LINES = new Counter("docker_step_log_lines_total",
+            "Lines of container output read for the console.");
+    public static final Histogram TEARDOWN_SECONDS = new Histogram("docker_step_teardown_seconds",
+            "Duration of removing the services and network of a job.");
+    public static final Counter API_ERRORS = new Counter("docker_step_docker_api_errors_total",
+            "Failed calls to the Docker daemon, not counting objects not found.", "endpoint");
+
+    // Service containers started and not yet removed.
+    private static final Set<String> services = ConcurrentHashMap.newKeySet();
+
+    private static final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(StepTimings.detached(runnable), "docker-step-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static boolean exported = false;
+
+    private Metrics() {}
+
+    private abstract static class Metric {
+        final String name;
+        final String help;
+        final List<String> labelNames;
+
+        Metric(String name, String help, String... labelNames) {
+            this.name = name;
+            this.help = help;
+            this.labelNames = Arrays.asList(labelNames);
+            synchronized (metrics) {
+                metrics.add(this);
+            }
+        }
+
+        abstract void render(StringBuilder out);
+
+        String labels(List<String> values, String extra) {
+            if (values.isEmpty() && extra == null)
+                return "";
+            final StringBuilder result = new StringBuilder("{");
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0)
+                    result.append(',');
+                result.append(labelNames.get(i)).append("=\"").append(escape(values.get(i))).append('"');
+            }
+            if (extra != null)
+                result.append(values.isEmpty() ? "" : ",").append(extra);
+            return result.append('}').toString();
+        }
+    }
+
+    /**
+     * A count that only goes up, per combination of label values.
+     */
+    public static class Counter extends Metric {
+        private final Map<List<String>, LongAdder> children = new ConcurrentHashMap<>();
+
+        Counter(String name, String help, String... labelNames) {
+            super(name, help, labelNames);
+        }
+
+        public void add(long value, String... labelValues) {
+            children.computeIfAbsent(Arrays.asList(labelValues), k -> new LongAdder()).add(value);
+        }
+
+        public long get(String... labelValues) {
+            final LongAdder adder = children.get(Arrays.asList(labelValues));
+            return adder == null ? 0 : adder.sum();
+        }
+
+        @Override
+        void render(StringBuilder out) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" counter\n");
+            for (Map.Entry<List<String>, LongAdder> e : children.entrySet())
+                out.append(name).append(labels(e.getKey(), null)).append(' ')
+                        .append(e.getValue().sum()).append('\n');
+        }
+    }
+
+    /**
+     * Durations in seconds, counted in buckets, per combination of label values.
+     */
+    public static class Histogram extends Metric {
+        private final Map<List<String>, Child> children = new ConcurrentHashMap<>();
+
+        private static class Child {
+            final LongAdder[] buckets = new LongAdder[SECONDS_BUCKETS.length];
+            final LongAdder count = new LongAdder();
+            final DoubleAdder sum = new DoubleAdder();
+
+            Child() {
+                for (int i = 0; i < buckets.length; i++)
+                    buckets[i] = new LongAdder();
+            }
+        }
+
+        Histogram(String name, String help, String... labelNames) {
+            super(name, help, labelNames);
+        }
+
+        public void observe(double seconds, String... labelValues) {
+            final Child child = children.computeIfAbsent(Arrays.asList(labelValues), k -> new Child());
+            for (int i = 0; i < SECONDS_BUCKETS.length; i++)
+                if (seconds <= SECONDS_BUCKETS[i]) {
+                    child.buckets[i].increment();
+                    break;
+                }
+            child.count.increment();
+            child.sum.add(seconds);
+        }
+
+        /**
+         * Observe the time since a start time.
+         *
+         * @param startNanos  Start, from System.nanoTime().
+         * @param labelValues Values of the labels.
+         */
+        public void observeSince(long startNanos, String... labelValues) {
+            observe((System.nanoTime() - startNanos) / 1e9, labelValues);
+        }
+
+        public long count(String... labelValues) {
+            final Child child = children.get(Arrays.asList(labelValues));
+            return child == null ? 0 : child.count.sum();
+        }
+
+        @Override
+        void render(StringBuilder out) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" histogram\n");
+            for (Map.Entry<List<String>, Child> e : children.entrySet()) {
+                final Child child = e.getValue();
+                // Read the count first, so the buckets never add up to more than it.
+                final long count = child.count.sum();
+                long cumulative = 0;
+                for (int i = 0; i < SECONDS_BUCKETS.length; i++) {
+                    cumulative += child.buckets[i].sum();
+                    out.append(name).append("_bucket")
+                            .append(labels(e.getKey(), "le=\"" + SECONDS_BUCKETS[i] + "\""))
+                            .append(' ').append(Math.min(cumulative, count)).append('\n');
+                }
+                out.append(name).append("_bucket").append(labels(e.getKey(), "le=\"+Inf\""))
+                        .append(' ').append(count).append('\n');
+                out.append(name).append("_sum").append(labels(e.getKey(), null)).append(' ')
+                        .append(String.format(Locale.ROOT, "%.6f", child.sum.sum())).append('\n');
+                out.append(name).append("_count").append(labels(e.getKey(), null)).append(' ')
+                        .append(count).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Note a service container as started.
+     */
+    public static void serviceStarted(String containerId) {
+        services.add(containerId);
+    }
+
+    /**
+     * Note a container as removed.  Containers that are not services are ignored.
+     */
+    public static void containerRemoved(String containerId) {
+        services.remove(containerId);
+    }
+
+    /**
+     * Wrap a client so failed calls are counted by method.  Objects not found are not
+     * counted, as looking them up is how the plugin finds out whether they exist.
+     *
+     * @param client Client to wrap.
+     * @return Client counting failures.
+     */
+    public static DockerClient countErrors(DockerClient client) {
+        final InvocationHandler handler = (proxy, method, args) -> {
+            try {
+                return method.invoke(client, args);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof DockerException
+                        && !(e.getCause() instanceof NotFoundException))
+                    API_ERRORS.add(1, method.getName());
+                throw e.getCause();
+            }
+        };
+        return (DockerClient) Proxy.newProxyInstance(DockerClient.class.getClassLoader(),
+                new Class<?>[] {DockerClient.class}, handler);
+    }
+
+    /**
+     * All metrics in the Prometheus text format.
+     *
+     * @return The metrics.
+     */
+    public static String render() {
+        final StringBuilder out = new StringBuilder();
+        final List<Metric> all;
+        synchronized (metrics) {
+            all = new ArrayList<>(metrics);
+        }
+        for (Metric metric : all)
+            metric.render(out);
+        out.append("# HELP docker_step_active_services Service containers started and not yet removed.\n");
+        out.append("# TYPE docker_step_active_services gauge\n");
+        out.append("docker_step_active_services ").append(services.size()).append('\n');
+        return out.toString();
+    }
+
+    /**
+     * Start exporting the metrics as configured, if not already done.
+     */
+    public static synchronized void export() {
+        if (exported)
+            return;
+        exported = true;
+
+        final int port = Integer.getInteger("dockerstep.metrics.port", 0);
+        if (port > 0) {
+            final String address = System.getProperty("dockerstep.metrics.address", "127.0.0.1");
+            try {
+                final HttpServer server = HttpServer.create(new InetSocketAddress(address, port), 0);
+                server.createContext("/metrics", exchange -> {
+                    final byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream output = exchange.getResponseBody()) {
+                        output.write(body);
+                    }
+                });
+                server.setExecutor(executor);
+                server.start();
+                LOG.info("Serving metrics at http://" + address + ":" + port + "/metrics");
+            } catch (IOException e) {
+                LOG.warn("Could not serve metrics on port " + port + ": " + e.getMessage());
+            }
+        }
+
+        final String file = System.getProperty("dockerstep.metrics.file");
+        if (file != null && !file.isEmpty()) {
+            final long interval = Math.max(1, Long.getLong("dockerstep.metrics.interval", 15L));
+            final Path path = Paths.get(file).toAbsolutePath();
+            executor.scheduleWithFixedDelay(() -> write(path), interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Replace the metrics file, so readers never see a partial file.
+     */
+    static void write(Path path) {
+        try {
+            final Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(temp, render().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Could not write metrics to " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
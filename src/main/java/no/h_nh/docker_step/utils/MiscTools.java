@@ -1,36 +1,91 @@
 package no.h_nh.docker_step.utils;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
-import org.apache.commons.io.IOUtils;
+import com.thoughtworks.go.plugin.api.logging.Logger;
 
 
 /**
  * Some small static utility functions as needed.
  */
 public class MiscTools {
+    private static final Logger LOG = Logger.getLoggerFor(MiscTools.class);
+
+    // Uid:gid of the agent, found at first use.  Empty if it could not be found.
+    private static volatile String agentUser;
 
     /**
      * Retrieve the user the agent runs as, which should be used inside docker as well.
+     * It is read from /proc once, without starting a process, and kept for the life of the
+     * plugin.  Where there is no /proc, like on macOS, the owner of the agent directory is used.
      *
-     * @return String suitable as user argument to docker.
+     * @return String suitable as user argument to docker, or null if not found.
      */
     public static String getAgentUser() {
+        String user = agentUser;
+        if (user == null) {
+            user = readAgentUser(Paths.get("/proc/self/status"),
+                    Paths.get(System.getProperty("user.dir")));
+            agentUser = user;
+        }
+        return user.isEmpty() ? null : user;
+    }
+
+    /**
+     * Read the effective uid and gid from a process status file, or else the owner of the
+     * working directory.
+     *
+     * @param status     The status file, like /proc/self/status.
+     * @param workingDir Directory owned by the agent user, used if there is no status file.
+     * @return Uid:gid, or an empty string if not found.
+     */
+    static String readAgentUser(Path status, Path workingDir) {
+        if (Files.isReadable(status)) {
+            final String user = readStatus(status);
+            if (!user.isEmpty())
+                return user;
+        }
         try {
-            Process proc = Runtime.getRuntime()
-                    .exec(new String[] {"sh", "-c", "printf %d:%d $(id -u) $(id -g)"});
-            if (proc.waitFor() == 0) {
-                return IOUtils.toString(proc.getInputStream(), StandardCharsets.UTF_8);
+            return Files.getAttribute(workingDir, "unix:uid") + ":"
+                    + Files.getAttribute(workingDir, "unix:gid");
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            LOG.warn("Could not read " + status + " or the owner of " + workingDir
+                    + ", containers will run as the image user: " + e.getMessage());
+        }
+        return "";
+    }
+
+    private static String readStatus(Path status) {
+        try {
+            String uid = null;
+            String gid = null;
+            // The name of the process may be in any encoding, the rest is ASCII.
+            for (String line : Files.readAllLines(status, StandardCharsets.ISO_8859_1)) {
+                if (line.startsWith("Uid:"))
+                    uid = effectiveId(line);
+                else if (line.startsWith("Gid:"))
+                    gid = effectiveId(line);
             }
-        } catch (IOException | InterruptedException e) {
-            // Ignore
+            if (uid != null && gid != null)
+                return uid + ":" + gid;
+            LOG.warn("No uid and gid in " + status + ", using the owner of the agent directory");
+        } catch (IOException e) {
+            LOG.warn("Could not read " + status + ", using the owner of the agent directory: "
+                    + e.getMessage());
         }
-        return null;
+        return "";
     }
 
-    public static File createTempFile(String workingDirectory) throws IOException {
-        return File.createTempFile("commands", ".sh", new File(workingDirectory));
+    /**
+     * The effective id of a 'Uid:' or 'Gid:' line, listing the real, effective, saved and
+     * filesystem ids.
+     */
+    private static String effectiveId(String line) {
+        final String[] fields = line.trim().split("\\s+");
+        return fields.length > 2 && fields[2].matches("\\d+") ? fields[2] : null;
     }
 }
@@ -0,0 +1,89 @@
+package no.h_nh.docker_step.utils;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.spotify.docker.client.messages.HostConfig;
+
+
+/**
+ * Mounts of the commands container besides the working directory: cache volumes and tmpfs
+ * directories.
+ */
+public class Mounts {
+    public static final Mounts NONE = new Mounts(Collections.emptyList(), Collections.emptyMap());
+
+    private static final Pattern LINES = Pattern.compile("\\r?\\n");
+
+    /** Volumes to mount, as 'volume:/path'. */
+    public final List<String> volumes;
+    /** Options of the tmpfs to mount, by path. */
+    public final Map<String, String> tmpfs;
+
+    public Mounts(List<String> volumes, Map<String, String> tmpfs) {
+        this.volumes = Collections.unmodifiableList(volumes);
+        this.tmpfs = Collections.unmodifiableMap(tmpfs);
+    }
+
+    /**
+     * Interpret a tmpfs specification, '/path[;options]' lines where the options are those of
+     * 'docker run --tmpfs', e.g. '/tmp;size=512m,mode=1777'.
+     *
+     * @param spec Specification as given in the task, may be empty.
+     * @return Map of path to options, empty if no options are given.
+     * @throws IllegalArgumentException If a path is not absolute or given twice.
+     */
+    public static Map<String, String> parseTmpfs(String spec) {
+        final Map<String, String> result = new LinkedHashMap<>();
+        if (spec == null)
+            return result;
+        for (String line : LINES.split(spec)) {
+            if (line.trim().isEmpty())
+                continue;
+            final String[] pathOptions = line.split(";", 2);
+            final String path = checkPath(pathOptions[0].trim(), "tmpfs");
+            if (result.put(path, pathOptions.length == 2 ? pathOptions[1].trim() : "") != null)
+                throw new IllegalArgumentException("Duplicate tmpfs path: '" + path + "'");
+        }
+        return result;
+    }
+
+    /**
+     * Check that a path can be mounted over in the commands container.
+     *
+     * @param path Path in the container.
+     * @param what What is mounted, for the error message.
+     * @return The path.
+     * @throws IllegalArgumentException If the path is not absolute, or is the root or working
+     *     directory.
+     */
+    static String checkPath(String path, String what) {
+        if (!path.startsWith("/"))
+            throw new IllegalArgumentException("Path of " + what + " must be absolute: '" + path + "'");
+        if (path.equals("/") || path.replaceAll("/+$", "").equals("/working"))
+            throw new IllegalArgumentException("Path of " + what + " not allowed: '" + path + "'");
+        return path;
+    }
+
+    /**
+     * Add the mounts to a container.
+     *
+     * @param hostConfig Host configuration of the container.
+     * @return The same builder.
+     */
+    public HostConfig.Builder apply(HostConfig.Builder hostConfig) {
+        if (!volumes.isEmpty())
+            hostConfig.appendBinds(volumes);
+        if (!tmpfs.isEmpty())
+            hostConfig.tmpfs(tmpfs);
+        return hostConfig;
+    }
+
+    @Override
+    public String toString() {
+        return "volumes=" + volumes + ", tmpfs=" + tmpfs;
+    }
+}
@@ -0,0 +1,286 @@
+package no.h_nh.docker_step.utils;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.DockerClient.ListNetworksParam;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.exceptions.NotFoundException;
+import com.spotify.docker.client.messages.Network;
+import com.spotify.docker.client.messages.NetworkConfig;
+import com.thoughtworks.go.plugin.api.logging.Logger;
+
+
+/**
+ * Keeps services networks created ahead of time, as creating bridge networks is slow and
+ * serialized by the Docker daemon.  A network is cleared of endpoints after use and returned
+ * to the pool, and idle networks are replaced after a while.  Networks taken by jobs count
+ * towards the size of the pool, so a job neither creates nor removes a network.
+ * Enabled by setting 'dockerstep.networkpool.size', the number of idle networks kept.  Idle
+ * networks are replaced after 'dockerstep.networkpool.maxidle' seconds.
+ * Networks of other agents that have stayed empty for several times that are assumed to be
+ * left behind by agents that crashed, and are removed.
+ */
+public class NetworkPool {
+    private static final Logger LOG = Logger.getLoggerFor(NetworkPool.class);
+
+    /** Label marking networks created by the plugin, with value 'job' or 'pool'. */
+    public static final String NETWORK_LABEL = "no.h_nh.docker_step.network";
+
+    private static final int SIZE = Integer.getInteger("dockerstep.networkpool.size", 0);
+    private static final long MAX_IDLE_MILLIS =
+            TimeUnit.SECONDS.toMillis(Math.max(60, Long.getLong("dockerstep.networkpool.maxidle", 600L)));
+    // Number of sweeps a network of another agent must be seen empty before it is removed.
+    private static final int ORPHAN_SWEEPS = 3;
+
+    // Idle networks, most recently returned first.
+    private static final Deque<Idle> idle = new ArrayDeque<>();
+    private static int creating = 0;
+    // Pooled networks taken by jobs and not yet released.
+    private static final Set<String> inUse = new HashSet<>();
+    private static boolean scheduled = false;
+
+    // Networks of other agents seen empty, with the number of sweeps in a row.  Only used by
+    // the executor thread.
+    private static final Map<String, Integer> emptySightings = new HashMap<>();
+
+    private static final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(StepTimings.detached(runnable), "docker-step-network-pool");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private NetworkPool() {}
+
+    private static class Idle {
+        final String id;
+        final long since;
+
+        Idle(String id, long since) {
+            this.id = id;
+            this.since = since;
+        }
+    }
+
+    /**
+     * Start filling the pool, if enabled, and sweeping for networks left behind by other
+     * agents.  Only called on agents with a Docker daemon.
+     */
+    public static void warmUp() {
+        synchronized (idle) {
+            schedule();
+            refill();
+        }
+    }
+
+    /**
+     * Start the periodic expiry and sweep, once.  Called holding the idle lock.
+     */
+    private static void schedule() {
+        if (scheduled)
+            return;
+        scheduled = true;
+        if (SIZE > 0)
+            executor.scheduleWithFixedDelay(NetworkPool::expire, 30, 30, TimeUnit.SECONDS);
+        executor.scheduleWithFixedDelay(NetworkPool::sweep, MAX_IDLE_MILLIS, MAX_IDLE_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Take an idle network from the pool.  It stays counted in the pool until released.
+     *
+     * @return Id of a network, or null if none is ready.
+     * @throws DockerException If an error occurs inspecting the networks.
+     * @throws InterruptedException If the process is interrupted.
+     */
+    public static String take() throws DockerException, InterruptedException {
+        if (SIZE <= 0)
+            return null;
+        while (true) {
+            final Idle network;
+            synchronized (idle) {
+                schedule();
+                network = idle.pollFirst();
+                if (network != null)
+                    inUse.add(network.id);
+                refill();
+            }
+            if (network == null)
+                return null;
+            try {
+                if (DockerUtils.getDockerClient().inspectNetwork(network.id) != null)
+                    return network.id;
+            } catch (NotFoundException e) {
+                // Removed behind our back, try the next one
+            }
+            synchronized (idle) {
+                inUse.remove(network.id);
+                refill();
+            }
+        }
+    }
+
+    /**
+     * Disconnect anything still attached to a network, and return it to the pool if it came
+     * from there.  Otherwise it is removed.  Should the pool have grown too large, the extra
+     * networks are removed by the next expiry.
+     *
+     * @param networkId Network to release.
+     * @return True if the network was returned to the pool.
+     * @throws DockerException If an error occurs.
+     * @throws InterruptedException If the process is interrupted.
+     */
+    public static boolean release(String networkId) throws DockerException, InterruptedException {
+        final DockerClient client = DockerUtils.getDockerClient();
+        final Network network;
+        try {
+            network = client.inspectNetwork(networkId);
+        } catch (NotFoundException e) {
+            synchronized (idle) {
+                inUse.remove(networkId);
+                refill();
+            }
+            return false;
+        }
+
+        if (network != null && network.containers() != null) {
+            for (String containerId : network.containers().keySet()) {
+                try {
+                    client.disconnectFromNetwork(containerId, networkId, true);
+                } catch (NotFoundException e) {
+                    // Already gone
+                }
+            }
+        }
+
+        if (network != null && network.labels() != null
+                && "pool".equals(network.labels().get(NETWORK_LABEL))) {
+            synchronized (idle) {
+                inUse.remove(networkId);
+                if (SIZE > 0) {
+                    idle.addFirst(new Idle(networkId, System.currentTimeMillis()));
+                    return true;
+                }
+            }
+        }
+        try {
+            client.removeNetwork(networkId);
+        } catch (NotFoundException e) {
+            // Already gone
+        }
+        return false;
+    }
+
+    /**
+     * Create networks in the background until the pool, counting networks in use, is full.
+     * Called holding the idle lock.
+     */
+    private static void refill() {
+        while (idle.size() + creating + inUse.size() < SIZE) {
+            creating++;
+            executor.execute(NetworkPool::create);
+        }
+    }
+
+    private static void create() {
+        String id = null;
+        try {
+            final Map<String, String> labels = DockerUtils.labels(null);
+            labels.put(NETWORK_LABEL, "pool");
+            final NetworkConfig config = NetworkConfig.builder()
+                    .name("docker-step-pool-" + UUID.randomUUID()).labels(labels).build();
+            id = DockerUtils.getDockerClient().createNetwork(config).id();
+            LOG.info("Created pooled network " + id);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOG.warn("Could not create pooled network: " + e.getMessage());
+        } finally {
+            synchronized (idle) {
+                creating--;
+                if (id != null)
+                    idle.addLast(new Idle(id, System.currentTimeMillis()));
+            }
+        }
+    }
+
+    /**
+     * Replace networks that have been idle too long, and remove those the pool has no room for.
+     */
+    private static void expire() {
+        final long now = System.currentTimeMillis();
+        while (true) {
+            final Idle network;
+            synchronized (idle) {
+                if (idle.isEmpty() || (now - idle.peekLast().since < MAX_IDLE_MILLIS
+                        && idle.size() + inUse.size() <= SIZE)) {
+                    refill();
+                    return;
+                }
+                network = idle.pollLast();
+            }
+            remove(network.id);
+        }
+    }
+
+    /**
+     * Remove networks of other agents that have been empty for a number of sweeps in a row.
+     */
+    static void sweep() {
+        try {
+            final DockerClient client = DockerUtils.getDockerClient();
+            final Set<String> seen = new HashSet<>();
+            for (Network listed : client.listNetworks(ListNetworksParam.withLabel(NETWORK_LABEL))) {
+                final Map<String, String> labels = listed.labels();
+                if (labels != null && DockerUtils.SESSION.equals(labels.get(DockerUtils.SESSION_LABEL)))
+                    continue;
+                // Only inspecting a network tells what is attached to it.
+                final Network network;
+                try {
+                    network = client.inspectNetwork(listed.id());
+                } catch (NotFoundException e) {
+                    continue;
+                }
+                if (network == null || (network.containers() != null && !network.containers().isEmpty()))
+                    continue;
+                seen.add(listed.id());
+                final int sightings = emptySightings.getOrDefault(listed.id(), 0) + 1;
+                if (sightings >= ORPHAN_SWEEPS) {
+                    LOG.info("Removing network left behind by another agent: " + listed.id());
+                    remove(listed.id());
+                    seen.remove(listed.id());
+                } else {
+                    emptySightings.put(listed.id(), sightings);
+                }
+            }
+            emptySightings.keySet().retainAll(seen);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOG.warn("Could not sweep networks: " + e.getMessage());
+        }
+    }
+
+    private static void remove(String networkId) {
+        try {
+            DockerUtils.getDockerClient().removeNetwork(networkId);
+            LOG.info("Removed network " + networkId);
+        } catch (NotFoundException e) {
+            // Already gone
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOG.warn("Could not remove network " + networkId + ": " + e.getMessage());
+        }
+    }
+}
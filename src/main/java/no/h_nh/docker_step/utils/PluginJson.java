@@ -0,0 +1,22 @@
+package no.h_nh.docker_step.utils;
+
+import java.util.Collections;
+
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonReaderFactory;
+import javax.json.spi.JsonProvider;
+import javax.json.stream.JsonParserFactory;
+
+
+/**
+ * JSON factories shared by the whole plugin.  The static methods of javax.json.Json look up
+ * the provider for every call, so the provider and factories are looked up once here instead.
+ */
+public class PluginJson {
+    public static final JsonProvider PROVIDER = JsonProvider.provider();
+    public static final JsonReaderFactory READERS = PROVIDER.createReaderFactory(Collections.emptyMap());
+    public static final JsonParserFactory PARSERS = PROVIDER.createParserFactory(Collections.emptyMap());
+    public static final JsonBuilderFactory BUILDERS = PROVIDER.createBuilderFactory(Collections.emptyMap());
+
+    private PluginJson() {}
+}
@@ -0,0 +1,85 @@
+package no.h_nh.docker_step.utils;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * When images should be pulled from the registry before they are used.
+ */
+public class PullPolicy {
+    public enum Mode {
+        /** Always pull. */
+        ALWAYS,
+        /** Never pull, the image must be present on the agent. */
+        NEVER,
+        /** Only pull if the image is not present on the agent. */
+        IF_NOT_PRESENT,
+        /** Only pull if the image is missing or was last checked too long ago. */
+        IF_OLDER_THAN
+    }
+
+    public static final PullPolicy ALWAYS = new PullPolicy(Mode.ALWAYS, 0);
+    public static final PullPolicy NEVER = new PullPolicy(Mode.NEVER, 0);
+
+    public final Mode mode;
+    public final long maxAgeMillis;
+
+    private PullPolicy(Mode mode, long maxAgeMillis) {
+        this.mode = mode;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Interpret the 'pull' and 'pullMaxAge' task options.  As before there were policies, any
+     * value other than the ones below, including an empty one, means not to pull.
+     *
+     * @param pull          One of true, false, if-not-present or if-older-than.
+     * @param maxAgeMinutes Minutes an image is considered fresh, for if-older-than.
+     * @return The policy described.
+     * @throws IllegalArgumentException If the max age is not understood.
+     */
+    public static PullPolicy parse(String pull, String maxAgeMinutes) {
+        final String value = pull == null ? "true" : pull.trim().toLowerCase();
+        switch (value) {
+            case "true":
+                return ALWAYS;
+            case "if-not-present":
+                return new PullPolicy(Mode.IF_NOT_PRESENT, 0);
+            case "if-older-than":
+                final long minutes;
+                try {
+                    minutes = Long.parseLong(maxAgeMinutes == null ? "" : maxAgeMinutes.trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid pull max age: '" + maxAgeMinutes + "'");
+                }
+                if (minutes < 0)
+                    throw new IllegalArgumentException("Invalid pull max age: '" + maxAgeMinutes + "'");
+                return new PullPolicy(Mode.IF_OLDER_THAN, TimeUnit.MINUTES.toMillis(minutes));
+            default:
+                return NEVER;
+        }
+    }
+
+    /**
+     * Whether a 'pull' value is one of the policies, rather than an unknown value that is taken
+     * to mean false.
+     */
+    public static boolean isKnown(String pull) {
+        switch (pull.trim().toLowerCase()) {
+            case "true":
+            case "false":
+            case "if-not-present":
+            case "if-older-than":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (mode == Mode.IF_OLDER_THAN)
+            return "if-older-than " + TimeUnit.MILLISECONDS.toMinutes(maxAgeMillis) + " minutes";
+        return mode.name().toLowerCase().replace('_', '-');
+    }
+}
@@ -0,0 +1,74 @@
+package no.h_nh.docker_step.utils;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+
+/**
+ * How to decide that a service container is ready for the step commands to use.
+ */
+public class ReadinessCheck {
+    public enum Type {
+        /** The HEALTHCHECK of the image reports the container as healthy. */
+        HEALTH,
+        /** The service listens on a TCP port, as seen from inside its network namespace. */
+        TCP,
+        /** A line of the container output matches a regular expression. */
+        LOG
+    }
+
+    public final Type type;
+    public final int port;
+    public final Pattern pattern;
+
+    private ReadinessCheck(Type type, int port, Pattern pattern) {
+        this.type = type;
+        this.port = port;
+        this.pattern = pattern;
+    }
+
+    /**
+     * Interpret a readiness specification, one of 'health', 'tcp:&lt;port&gt;' or
+     * 'log:&lt;regex&gt;'.
+     *
+     * @param spec Specification as given in the task.
+     * @return The check described.
+     * @throws IllegalArgumentException If the specification is not understood.
+     */
+    public static ReadinessCheck parse(String spec) {
+        final String value = spec.trim();
+        if (value.equalsIgnoreCase("health"))
+            return new ReadinessCheck(Type.HEALTH, 0, null);
+        if (value.toLowerCase().startsWith("tcp:")) {
+            final int port;
+            try {
+                port = Integer.parseInt(value.substring(4).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid port in readiness check: '" + spec + "'");
+            }
+            if (port < 1 || port > 65535)
+                throw new IllegalArgumentException("Invalid port in readiness check: '" + spec + "'");
+            return new ReadinessCheck(Type.TCP, port, null);
+        }
+        if (value.toLowerCase().startsWith("log:")) {
+            try {
+                return new ReadinessCheck(Type.LOG, 0, Pattern.compile(value.substring(4)));
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("Invalid regex in readiness check: '" + spec + "'");
+            }
+        }
+        throw new IllegalArgumentException("Invalid readiness check: '" + spec + "'");
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case TCP:
+                return "tcp port " + port;
+            case LOG:
+                return "log line matching '" + pattern.pattern() + "'";
+            default:
+                return "healthy status";
+        }
+    }
+}
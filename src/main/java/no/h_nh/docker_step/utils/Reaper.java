@@ -0,0 +1,185 @@
+package no.h_nh.docker_step.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.DockerClient.ListContainersParam;
+import com.spotify.docker.client.DockerClient.ListNetworksParam;
+import com.spotify.docker.client.DockerClient.RemoveContainerParam;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.exceptions.NotFoundException;
+import com.spotify.docker.client.messages.Container;
+import com.spotify.docker.client.messages.Network;
+import com.thoughtworks.go.plugin.api.logging.Logger;
+
+
+/**
+ * Removes containers and networks left behind by jobs, in the background.
+ * Everything the plugin creates is labelled with the job it belongs to, so the reaper can
+ * find it again even if the ids were lost.  As the job has already reported its result when
+ * the reaper runs, it logs to the plugin log rather than the job console.
+ */
+public class Reaper {
+    private static final Logger LOG = Logger.getLoggerFor(Reaper.class);
+    private static final int MAX_ATTEMPTS = 5;
+    // Jobs cleaned up at the same time, and containers of a job stopped at the same time.
+    private static final int THREADS = 4;
+    private static final int CONCURRENT_REMOVALS = 8;
+
+    private static final ScheduledExecutorService executor =
+            Executors.newScheduledThreadPool(THREADS, runnable -> {
+                final Thread thread = new Thread(StepTimings.detached(runnable), "docker-step-reaper");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private Reaper() {}
+
+    /**
+     * Schedule removal of everything belonging to a job.  Failed attempts are retried with
+     * increasing delay, and anything still left is removed at the next plugin start.
+     *
+     * @param jobId       Job whose containers and networks should be removed.
+     * @param stopTimeout Seconds to wait after SIGTERM before killing containers.
+     */
+    public static void schedule(String jobId, int stopTimeout) {
+        schedule(jobId, stopTimeout, Collections.emptyList(), null);
+    }
+
+    /**
+     * Schedule removal of everything belonging to a job, including containers and networks that
+     * do not have the job label, like those taken from the service and network pools.
+     *
+     * @param jobId        Job whose containers and networks should be removed.
+     * @param stopTimeout  Seconds to wait after SIGTERM before killing containers.
+     * @param containerIds Other containers of the job.
+     * @param network      Network of the job, released to the network pool, or null.
+     */
+    public static void schedule(String jobId, int stopTimeout, Collection<String> containerIds,
+            String network) {
+        final List<String> ids = new ArrayList<>(containerIds);
+        executor.execute(() -> attempt(jobId, stopTimeout, ids, network, 1));
+    }
+
+    /**
+     * Schedule removal of everything left behind on this agent by earlier instances of the
+     * plugin, i.e. before the agent or plugin was last restarted.  Without an id of its own,
+     * the agent cannot tell its leftovers from running jobs of other agents, so nothing is done.
+     */
+    public static void sweep() {
+        executor.execute(() -> {
+            if (DockerUtils.owner().isEmpty())
+                return;
+            try {
+                reap(ListContainersParam.withLabel(DockerUtils.OWNER_LABEL, DockerUtils.owner()),
+                        ListNetworksParam.withLabel(DockerUtils.OWNER_LABEL, DockerUtils.owner()),
+                        0, true);
+            } catch (Exception e) {
+                DockerUtils.resetOnConnectionFailure(e);
+                LOG.info("Could not remove leftovers from earlier jobs: " + e.getMessage());
+            }
+        });
+    }
+
+    private static void attempt(String jobId, int stopTimeout, List<String> containerIds,
+            String network, int attempt) {
+        final long start = System.nanoTime();
+        try {
+            reap(containerIds, ListContainersParam.withLabel(DockerUtils.JOB_LABEL, jobId),
+                    ListNetworksParam.withLabel(DockerUtils.JOB_LABEL, jobId), stopTimeout, false);
+            if (network != null)
+                NetworkPool.release(network);
+            Metrics.TEARDOWN_SECONDS.observeSince(start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            DockerUtils.resetOnConnectionFailure(e);
+            if (attempt < MAX_ATTEMPTS) {
+                LOG.warn("Cleanup of job " + jobId + " failed, retrying: " + e.getMessage());
+                executor.schedule(() -> attempt(jobId, stopTimeout, containerIds, network, attempt + 1),
+                        attempt * 10L, TimeUnit.SECONDS);
+            } else {
+                LOG.error("Cleanup of job " + jobId + " failed, giving up until next start", e);
+            }
+        }
+    }
+
+    static void reap(ListContainersParam containerFilter, ListNetworksParam networkFilter,
+            int stopTimeout, boolean onlyEarlier) throws DockerException, InterruptedException {
+        reap(Collections.emptyList(), containerFilter, networkFilter, stopTimeout, onlyEarlier);
+    }
+
+    /**
+     * Remove the given containers and all containers and networks matching the filters,
+     * optionally only those created by earlier instances of the plugin.  Containers are
+     * stopped concurrently, and networks removed once the containers are gone.  All removals
+     * are attempted, the first failure is then thrown.
+     */
+    static void reap(Collection<String> containerIds, ListContainersParam containerFilter,
+            ListNetworksParam networkFilter, int stopTimeout, boolean onlyEarlier)
+            throws DockerException, InterruptedException {
+        final DockerClient client = DockerUtils.getDockerClient();
+        DockerException failure = null;
+
+        final Set<String> ids = new LinkedHashSet<>(containerIds);
+        for (Container container :
+                client.listContainers(ListContainersParam.allContainers(), containerFilter)) {
+            if (!onlyEarlier || !isCurrentSession(container.labels()))
+                ids.add(container.id());
+        }
+        final List<DockerUtils.DockerTask> removals = new ArrayList<>(ids.size());
+        for (String id : ids)
+            removals.add(() -> remove(id, stopTimeout));
+        try {
+            DockerUtils.runConcurrently("docker-step-reaper-remove", CONCURRENT_REMOVALS, removals,
+                    false);
+        } catch (DockerException e) {
+            failure = e;
+        }
+
+        for (Network network : client.listNetworks(networkFilter)) {
+            if (onlyEarlier && isCurrentSession(network.labels()))
+                continue;
+            try {
+                client.removeNetwork(network.id());
+                LOG.info("Removed network " + network.id());
+            } catch (NotFoundException e) {
+                // Already gone
+            } catch (DockerException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    private static void remove(String containerId, int stopTimeout)
+            throws DockerException, InterruptedException {
+        final DockerClient client = DockerUtils.getDockerClient();
+        try {
+            if (stopTimeout > 0)
+                client.stopContainer(containerId, stopTimeout);
+            client.removeContainer(containerId, RemoveContainerParam.forceKill(),
+                    RemoveContainerParam.removeVolumes());
+            LOG.info("Removed container " + containerId);
+        } catch (NotFoundException e) {
+            // Already gone
+        }
+        Metrics.containerRemoved(containerId);
+    }
+
+    private static boolean isCurrentSession(Map<String, String> labels) {
+        return labels != null && DockerUtils.SESSION.equals(labels.get(DockerUtils.SESSION_LABEL));
+    }
+}
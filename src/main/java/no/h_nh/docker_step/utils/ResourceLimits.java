@@ -0,0 +1,212 @@
+package no.h_nh.docker_step.utils;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import com.spotify.docker.client.messages.HostConfig;
+
+
+/**
+ * Limits on the resources of the containers of a step, applied to the commands container and
+ * to every service.  A limit of zero (or null) means unlimited.
+ */
+public class ResourceLimits {
+    public static final ResourceLimits UNLIMITED = new ResourceLimits(0, null, 0, 0, 0, 0,
+            Collections.emptyMap());
+
+    private static final Pattern CPUSET = Pattern.compile("\\d+(?:-\\d+)?(?:,\\d+(?:-\\d+)?)*");
+    private static final Set<String> ULIMITS = new HashSet<>(Arrays.asList(
+            "core", "cpu", "data", "fsize", "locks", "memlock", "msgqueue", "nice", "nofile",
+            "nproc", "rss", "rtprio", "rttime", "sigpending", "stack"));
+
+    /** CPU quota in billionths of a CPU. */
+    public final long nanoCpus;
+    public final String cpuset;
+    public final long memory;
+    /** Memory plus swap, -1 for unlimited swap. */
+    public final long memorySwap;
+    public final long pidsLimit;
+    public final long shmSize;
+    /** Soft and hard limit by ulimit name. */
+    public final Map<String, long[]> ulimits;
+
+    private ResourceLimits(long nanoCpus, String cpuset, long memory, long memorySwap,
+            long pidsLimit, long shmSize, Map<String, long[]> ulimits) {
+        this.nanoCpus = nanoCpus;
+        this.cpuset = cpuset;
+        this.memory = memory;
+        this.memorySwap = memorySwap;
+        this.pidsLimit = pidsLimit;
+        this.shmSize = shmSize;
+        this.ulimits = Collections.unmodifiableMap(ulimits);
+    }
+
+    public boolean isUnlimited() {
+        return nanoCpus == 0 && cpuset == null && memory == 0 && memorySwap == 0 && pidsLimit == 0
+                && shmSize == 0 && ulimits.isEmpty();
+    }
+
+    /**
+     * Interpret a limits specification, a comma separated list of 'cpus=N' (may be fractional),
+     * 'cpuset=LIST', 'memory=N', 'memory-swap=N', 'pids-limit=N', 'shm-size=N' and
+     * 'ulimit=NAME=SOFT[:HARD]'.  Sizes may have a k, m or g suffix, and a memory-swap of -1
+     * means unlimited swap.  The list of a cpuset may itself contain commas, e.g. 'cpuset=0-3,6'.
+     *
+     * @param spec Specification as given in the task, may be empty.
+     * @return The limits described.
+     * @throws IllegalArgumentException If the specification is not understood.
+     */
+    public static ResourceLimits parse(String spec) {
+        if (spec == null || spec.trim().isEmpty())
+            return UNLIMITED;
+
+        long nanoCpus = 0;
+        String cpuset = null;
+        long memory = 0;
+        long memorySwap = 0;
+        long pidsLimit = 0;
+        long shmSize = 0;
+        final Map<String, long[]> ulimits = new TreeMap<>();
+        for (String item : items(spec)) {
+            final String[] keyVal = item.split("=", 2);
+            if (keyVal.length != 2)
+                throw new IllegalArgumentException("Invalid resource limit: '" + item + "'");
+            final String value = keyVal[1].trim();
+            switch (keyVal[0].trim().toLowerCase(Locale.ROOT)) {
+                case "cpus":
+                    nanoCpus = parseCpus(value);
+                    break;
+                case "cpuset":
+                    if (!CPUSET.matcher(value).matches())
+                        throw new IllegalArgumentException("Invalid cpuset: '" + value + "'");
+                    cpuset = value;
+                    break;
+                case "memory":
+                    memory = ConsoleBudget.parseSize(value, true);
+                    break;
+                case "memory-swap":
+                    memorySwap = value.equals("-1") ? -1 : ConsoleBudget.parseSize(value, true);
+                    break;
+                case "pids-limit":
+                    pidsLimit = ConsoleBudget.parseSize(value, false);
+                    break;
+                case "shm-size":
+                    shmSize = ConsoleBudget.parseSize(value, true);
+                    break;
+                case "ulimit":
+                    parseUlimit(value, ulimits);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid resource limit: '" + item + "'");
+            }
+        }
+        if (memorySwap != 0 && memory == 0)
+            throw new IllegalArgumentException("A memory-swap limit needs a memory limit");
+        if (memorySwap > 0 && memorySwap < memory)
+            throw new IllegalArgumentException("The memory-swap limit must be at least the memory limit");
+        if (pidsLimit > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid pids-limit: '" + pidsLimit + "'");
+        return new ResourceLimits(nanoCpus, cpuset, memory, memorySwap, pidsLimit, shmSize, ulimits);
+    }
+
+    /**
+     * Split a specification into items.  A part without '=' continues the value before it.
+     */
+    private static List<String> items(String spec) {
+        final List<String> items = new ArrayList<>();
+        for (String part : spec.split("\\r?\\n|,")) {
+            if (part.trim().isEmpty())
+                continue;
+            if (!part.contains("=") && !items.isEmpty())
+                items.set(items.size() - 1, items.get(items.size() - 1) + "," + part.trim());
+            else
+                items.add(part.trim());
+        }
+        return items;
+    }
+
+    private static long parseCpus(String value) {
+        try {
+            final BigDecimal cpus = new BigDecimal(value);
+            if (cpus.signum() > 0)
+                return cpus.movePointRight(9).longValueExact();
+        } catch (ArithmeticException | NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid number of cpus: '" + value + "'");
+    }
+
+    private static void parseUlimit(String value, Map<String, long[]> ulimits) {
+        final String[] nameVal = value.split("=", 2);
+        final String name = nameVal[0].trim().toLowerCase(Locale.ROOT);
+        if (nameVal.length != 2 || !ULIMITS.contains(name))
+            throw new IllegalArgumentException("Invalid ulimit: '" + value + "'");
+        final String[] softHard = nameVal[1].split(":", 2);
+        final long soft = ConsoleBudget.parseSize(softHard[0], false);
+        final long hard = softHard.length == 2 ? ConsoleBudget.parseSize(softHard[1], false) : soft;
+        if (soft > hard)
+            throw new IllegalArgumentException("Soft limit above hard limit in ulimit: '" + value + "'");
+        ulimits.put(name, new long[] {soft, hard});
+    }
+
+    /**
+     * Set the limits on a container.
+     *
+     * @param hostConfig Host configuration of the container.
+     * @return The same builder.
+     */
+    public HostConfig.Builder apply(HostConfig.Builder hostConfig) {
+        if (nanoCpus > 0)
+            hostConfig.nanoCpus(nanoCpus);
+        if (cpuset != null)
+            hostConfig.cpusetCpus(cpuset);
+        if (memory > 0)
+            hostConfig.memory(memory);
+        if (memorySwap != 0)
+            hostConfig.memorySwap(memorySwap);
+        if (pidsLimit > 0)
+            hostConfig.pidsLimit((int) pidsLimit);
+        if (shmSize > 0)
+            hostConfig.shmSize(shmSize);
+        if (!ulimits.isEmpty()) {
+            final List<HostConfig.Ulimit> list = new ArrayList<>(ulimits.size());
+            for (Map.Entry<String, long[]> e : ulimits.entrySet())
+                list.add(HostConfig.Ulimit.builder().name(e.getKey())
+                        .soft(e.getValue()[0]).hard(e.getValue()[1]).build());
+            hostConfig.ulimits(list);
+        }
+        return hostConfig;
+    }
+
+    @Override
+    public String toString() {
+        if (isUnlimited())
+            return "unlimited";
+        final StringBuilder result = new StringBuilder();
+        if (nanoCpus > 0)
+            result.append(", cpus=").append(BigDecimal.valueOf(nanoCpus, 9).stripTrailingZeros().toPlainString());
+        if (cpuset != null)
+            result.append(", cpuset=").append(cpuset);
+        if (memory > 0)
+            result.append(", memory=").append(memory);
+        if (memorySwap != 0)
+            result.append(", memory-swap=").append(memorySwap);
+        if (pidsLimit > 0)
+            result.append(", pids-limit=").append(pidsLimit);
+        if (shmSize > 0)
+            result.append(", shm-size=").append(shmSize);
+        for (Map.Entry<String, long[]> e : ulimits.entrySet())
+            result.append(", ulimit=").append(e.getKey()).append('=')
+                    .append(e.getValue()[0]).append(':').append(e.getValue()[1]);
+        return result.substring(2);
+    }
+}
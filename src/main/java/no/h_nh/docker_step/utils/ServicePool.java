@@ -0,0 +1,240 @@
+package no.h_nh.docker_step.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.DockerClient.RemoveContainerParam;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.exceptions.NotFoundException;
+import com.spotify.docker.client.messages.ContainerConfig;
+import com.spotify.docker.client.messages.ContainerInfo;
+import com.spotify.docker.client.messages.HostConfig;
+import com.spotify.docker.client.messages.ImageInfo;
+import com.thoughtworks.go.plugin.api.logging.Logger;
+
+
+/**
+ * Keeps started service containers ready for the next job that needs the same service.
+ * Services are kept per name, image, resource limits and environment, leaving out the GO_
+ * variables that change for every job.  A job takes a container from the pool and attaches it to its own
+ * network; it is removed with the job's other services and never reused, and a replacement is
+ * started in the background.
+ * Enabled by setting 'dockerstep.servicepool.size', the number of containers kept for each
+ * service.  At most 'dockerstep.servicepool.keys' different services are kept, and
+ * 'dockerstep.servicepool.containermemory' is the memory limit of each pooled container that
+ * has no memory limit of its own.  There is no limit on the memory of all pooled containers
+ * together, other than the number of containers.
+ */
+public class ServicePool {
+    private static final Logger LOG = Logger.getLoggerFor(ServicePool.class);
+
+    /** Label holding the key a pooled service is kept under. */
+    public static final String POOL_LABEL = "no.h_nh.docker_step.pool";
+
+    private static final int SIZE = Integer.getInteger("dockerstep.servicepool.size", 0);
+    private static final int MAX_KEYS = Math.max(1, Integer.getInteger("dockerstep.servicepool.keys", 4));
+    private static final long CONTAINER_MEMORY = ConsoleBudget.parseSize(
+            System.getProperty("dockerstep.servicepool.containermemory", "0"), true);
+
+    // Ready containers by key, least recently used key first.
+    private static final Map<String, Pool> pools = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static final ExecutorService executor =
+            Executors.newSingleThreadExecutor(runnable -> {
+                final Thread thread = new Thread(StepTimings.detached(runnable), "docker-step-service-pool");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private ServicePool() {}
+
+    private static class Pool {
+        final String name;
+        final String image;
+        final List<String> env;
+        final ResourceLimits limits;
+        final Deque<String> ready = new ArrayDeque<>();
+        int starting = 0;
+
+        Pool(String name, String image, List<String> env, ResourceLimits limits) {
+            this.name = name;
+            this.image = image;
+            this.env = env;
+            this.limits = limits;
+        }
+    }
+
+    /**
+     * @return True if services are pooled on this agent.
+     */
+    public static boolean isEnabled() {
+        return SIZE > 0;
+    }
+
+    /**
+     * Take a started container for a service from the pool, and have a replacement started.
+     * The first time a service is asked for, the pool is only started, and null returned.
+     *
+     * @param name    Name of the service.
+     * @param image   Image of the service.
+     * @param envVars Environment of the job.
+     * @param limits  Resource limits of the service.
+     * @return Id of a running container, or null if none is ready.
+     * @throws DockerException If an error occurs inspecting the containers.
+     * @throws InterruptedException If the process is interrupted.
+     */
+    public static String take(String name, String image, Map<String, String> envVars,
+            ResourceLimits limits)
+            throws DockerException, InterruptedException {
+        if (!isEnabled())
+            return null;
+
+        final List<String> env = serviceEnvironment(envVars);
+        final String key = key(name, image, env, limits);
+        final List<String> evicted = new ArrayList<>();
+        while (true) {
+            final String id;
+            synchronized (pools) {
+                Pool pool = pools.get(key);
+                if (pool == null) {
+                    pool = new Pool(name, image, env, limits);
+                    pools.put(key, pool);
+                    for (Iterator<Pool> it = pools.values().iterator(); pools.size() > MAX_KEYS; ) {
+                        evicted.addAll(it.next().ready);
+                        it.remove();
+                    }
+                }
+                id = pool.ready.pollFirst();
+                refill(key, pool);
+            }
+            for (String old : evicted)
+                discard(old);
+            evicted.clear();
+            if (id == null)
+                return null;
+            if (isCurrent(id, image))
+                return id;
+            discard(id);
+        }
+    }
+
+    /**
+     * The environment of pooled services, without the variables that change for every job.
+     */
+    static List<String> serviceEnvironment(Map<String, String> envVars) {
+        final List<String> env = new ArrayList<>(envVars.size());
+        for (Map.Entry<String, String> entry : new TreeMap<>(envVars).entrySet())
+            if (!entry.getKey().startsWith("GO_"))
+                env.add(entry.getKey() + "=" + entry.getValue());
+        return env;
+    }
+
+    static String key(String name, String image, List<String> env, ResourceLimits limits) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String variable : env) {
+                digest.update(variable.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            final StringBuilder hash = new StringBuilder();
+            final byte[] bytes = digest.digest();
+            for (int i = 0; i < 8; i++)
+                hash.append(String.format("%02x", bytes[i]));
+            return name + "|" + image + "|" + limits + "|" + hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Check that a pooled container is still running, and was made from the current image.
+     */
+    private static boolean isCurrent(String id, String image) throws DockerException, InterruptedException {
+        final DockerClient client = DockerUtils.getDockerClient();
+        final ContainerInfo info;
+        try {
+            info = client.inspectContainer(id);
+        } catch (NotFoundException e) {
+            return false;
+        }
+        if (info == null || info.state() == null || !Boolean.TRUE.equals(info.state().running()))
+            return false;
+        final ImageInfo imageInfo = client.inspectImage(image);
+        return imageInfo == null || imageInfo.id() == null || imageInfo.id().equals(info.image());
+    }
+
+    /**
+     * Start containers in the background until the pool is full.  Called holding the pools lock.
+     */
+    private static void refill(String key, Pool pool) {
+        while (pool.ready.size() + pool.starting < SIZE) {
+            pool.starting++;
+            executor.execute(() -> start(key, pool));
+        }
+    }
+
+    private static void start(String key, Pool pool) {
+        String id = null;
+        try {
+            final Map<String, String> labels = DockerUtils.labels(null);
+            labels.put(POOL_LABEL, key);
+            final HostConfig.Builder hostConfig = pool.limits.apply(HostConfig.builder());
+            if (CONTAINER_MEMORY > 0 && pool.limits.memory == 0)
+                hostConfig.memory(CONTAINER_MEMORY);
+            final ContainerConfig config = ContainerConfig.builder()
+                    .hostname(pool.name).image(pool.image).env(pool.env).labels(labels)
+                    .hostConfig(hostConfig.build()).build();
+            final DockerClient client = DockerUtils.getDockerClient();
+            id = client.createContainer(config, "docker-step-pool-" + UUID.randomUUID()).id();
+            client.startContainer(id);
+            LOG.info("Started pooled service '" + pool.name + "': " + id);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOG.warn("Could not start pooled service '" + pool.name + "': " + e.getMessage());
+            if (id != null)
+                discard(id);
+            id = null;
+        }
+
+        synchronized (pools) {
+            pool.starting--;
+            if (id != null && pools.get(key) == pool) {
+                pool.ready.addLast(id);
+                id = null;
+            }
+        }
+        // The service was dropped from the pool while starting.
+        if (id != null)
+            discard(id);
+    }
+
+    private static void discard(String id) {
+        executor.execute(() -> {
+            try {
+                DockerUtils.getDockerClient().removeContainer(id, RemoveContainerParam.forceKill(),
+                        RemoveContainerParam.removeVolumes());
+                LOG.info("Removed pooled service " + id);
+            } catch (NotFoundException e) {
+                // Already gone
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                LOG.warn("Could not remove pooled service " + id + ": " + e.getMessage());
+            }
+        });
+    }
+}
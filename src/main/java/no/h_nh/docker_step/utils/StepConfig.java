@@ -1,65 +1,292 @@
 package no.h_nh.docker_step.utils;
 
+import java.io.Reader;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-import javax.json.JsonObject;
-import javax.json.JsonString;
-import javax.json.JsonValue;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
 
 
 /**
  * Helper class to hold the configuration of a step in a sane format.
  */
 public class StepConfig {
+    private static final int MAX_SHARDS = 64;
+
     public final String image;
     public final boolean doPull;
+    public final PullPolicy pullPolicy;
     public final String[] commands;
+    /** Sub-steps to run instead of the commands, or empty. */
+    public final List<SubSteps.Step> steps;
     public final Map<String, String> services;
+    public final Map<String, ReadinessCheck> readiness;
+    public final int readinessTimeout;
+    public final int stopTimeout;
+    /** Minutes the commands may run in total, 0 for no limit. */
+    public final int timeout;
+    /** Minutes the commands may go without output, 0 for no limit. */
+    public final int idleTimeout;
+    public final boolean asyncCleanup;
+    public final ConsoleBudget consoleBudget;
+    public final String spillFile;
+    public final String timingsFile;
+    public final boolean reuseContainer;
+    /** Number of shards the commands are run in at the same time. */
+    public final int parallelism;
+    public final ResourceLimits resourceLimits;
+    public final Map<String, String> cacheVolumes;
+    public final Map<String, String> tmpfs;
+    /** User to run the commands as instead of the agent user, or null. */
+    public final String user;
     public final String workingDirectory;
     public final Map<String, String> environment;
 
-    private StepConfig(String image, boolean doPull, String[] commands, Map<String, String> services,
-            String workingDirectory, Map<String, String> environment) {
+    private StepConfig(String image, PullPolicy pullPolicy, String[] commands,
+            List<SubSteps.Step> steps, Map<String, String> services,
+            Map<String, ReadinessCheck> readiness, int readinessTimeout, int stopTimeout,
+            int timeout, int idleTimeout, boolean asyncCleanup, ConsoleBudget consoleBudget,
+            String spillFile, String timingsFile, boolean reuseContainer, int parallelism,
+            ResourceLimits resourceLimits, Map<String, String> cacheVolumes,
+            Map<String, String> tmpfs, String user, String workingDirectory,
+            Map<String, String> environment) {
         this.image = image;
-        this.doPull = doPull;
+        this.doPull = pullPolicy.mode != PullPolicy.Mode.NEVER;
+        this.pullPolicy = pullPolicy;
         this.commands = commands;
+        this.steps = Collections.unmodifiableList(steps);
         this.services = Collections.unmodifiableMap(services);
+        this.readiness = Collections.unmodifiableMap(readiness);
+        this.readinessTimeout = readinessTimeout;
+        this.stopTimeout = stopTimeout;
+        this.timeout = timeout;
+        this.idleTimeout = idleTimeout;
+        this.asyncCleanup = asyncCleanup;
+        this.consoleBudget = consoleBudget;
+        this.spillFile = spillFile;
+        this.timingsFile = timingsFile;
+        this.reuseContainer = reuseContainer;
+        this.parallelism = parallelism;
+        this.resourceLimits = resourceLimits;
+        this.cacheVolumes = Collections.unmodifiableMap(cacheVolumes);
+        this.tmpfs = Collections.unmodifiableMap(tmpfs);
+        this.user = user;
         this.workingDirectory = workingDirectory;
         this.environment = Collections.unmodifiableMap(environment);
     }
 
-    public static StepConfig parse(JsonObject request) {
-        JsonObject config = request.getJsonObject("config");
-        JsonObject context = request.getJsonObject("context");
+    /**
+     * Get the configuration from the body of an execute request, without building a tree of
+     * the whole request first.  Parts of the request not used are skipped.
+     *
+     * @param body Reader for the request body.
+     * @return The configuration.
+     * @throws IllegalArgumentException If the configuration is invalid.
+     */
+    public static StepConfig parse(Reader body) {
+        final Map<String, String> config = new HashMap<>();
+        final Map<String, String> environment = new HashMap<>();
+        String workingDirectory = null;
+
+        try (JsonParser parser = PluginJson.PARSERS.createParser(body)) {
+            expect(parser, parser.next(), Event.START_OBJECT);
+            while (parser.next() == Event.KEY_NAME) {
+                final String key = parser.getString();
+                final Event event = parser.next();
+                if (key.equals("config")) {
+                    expect(parser, event, Event.START_OBJECT);
+                    readConfig(parser, config);
+                } else if (key.equals("context")) {
+                    expect(parser, event, Event.START_OBJECT);
+                    while (parser.next() == Event.KEY_NAME) {
+                        final String contextKey = parser.getString();
+                        final Event contextEvent = parser.next();
+                        if (contextKey.equals("workingDirectory")
+                                && contextEvent == Event.VALUE_STRING) {
+                            workingDirectory = parser.getString();
+                        } else if (contextKey.equals("environmentVariables")
+                                && contextEvent == Event.START_OBJECT) {
+                            readStrings(parser, environment);
+                        } else {
+                            skip(parser, contextEvent);
+                        }
+                    }
+                } else {
+                    skip(parser, event);
+                }
+            }
+        }
+
+        if (workingDirectory == null)
+            throw new IllegalArgumentException("Working directory missing from request");
+        return create(config, workingDirectory, environment);
+    }
 
+    private static StepConfig create(Map<String, String> config, String workingDir,
+            Map<String, String> environment) {
         String image = getValue(config, "image");
-        boolean doPull = getValue(config, "pull").equalsIgnoreCase("true");
+        PullPolicy pullPolicy = PullPolicy.parse(getValue(config, "pull"),
+                getOptionalValue(config, "pullMaxAge", "60"));
         String[] commands = getListValue(config, "commands");
+        List<SubSteps.Step> steps = SubSteps.parse(getOptionalValue(config, "steps", null));
+        boolean hasCommands = false;
+        for (String command : commands)
+            hasCommands |= !command.trim().isEmpty();
+        if (hasCommands == !steps.isEmpty())
+            throw new IllegalArgumentException("Either commands or steps must be given");
         Map<String, String> services = getMapFromListValue(config, "services");
-        Map<String, String> environment = getMapValue(context, "environmentVariables");
-        Path wd = Paths.get(System.getProperty("user.dir"), context.getString("workingDirectory"));
+        Map<String, ReadinessCheck> readiness = new HashMap<>();
+        for (Map.Entry<String, String> e : getMapFromListValue(config, "readiness").entrySet())
+            readiness.put(e.getKey(), ReadinessCheck.parse(e.getValue()));
+        int readinessTimeout = getIntValue(config, "readinessTimeout", 120);
+        int stopTimeout = getIntValue(config, "stopTimeout", 60);
+        int timeout = getIntValue(config, "timeout", 0);
+        int idleTimeout = getIntValue(config, "idleTimeout", 0);
+        boolean asyncCleanup = getBooleanValue(config, "asyncCleanup");
+        ConsoleBudget consoleBudget =
+                ConsoleBudget.parse(getOptionalValue(config, "consoleBudget", null));
+        String spillFile = getOptionalValue(config, "spillFile", "docker-step-output.log");
+        String timingsFile =
+                getOptionalValue(config, "timingsFile", "docker-step-timings.json").trim();
+        boolean reuseContainer = getBooleanValue(config, "reuseContainer");
+        int parallelism = parseParallelism(getOptionalValue(config, "parallelism", null));
+        ResourceLimits resourceLimits =
+                ResourceLimits.parse(getOptionalValue(config, "resourceLimits", null));
+        Map<String, String> cacheVolumes =
+                CacheVolumes.parse(getOptionalValue(config, "cacheVolumes", null));
+        Map<String, String> tmpfs = Mounts.parseTmpfs(getOptionalValue(config, "tmpfs", null));
+        String user = getOptionalValue(config, "user", "").trim();
+        Path wd = Paths.get(System.getProperty("user.dir"), workingDir);
         String workingDirectory = wd.toAbsolutePath().toString();
 
-        return new StepConfig(image, doPull, commands, services, workingDirectory, environment);
+        return new StepConfig(image, pullPolicy, commands, steps, services, readiness,
+                readinessTimeout, stopTimeout, timeout, idleTimeout, asyncCleanup, consoleBudget,
+                spillFile, timingsFile, reuseContainer, parallelism, resourceLimits, cacheVolumes,
+                tmpfs, user.isEmpty() ? null : user, workingDirectory, environment);
+    }
+
+    /**
+     * Interpret the number of shards to split commands into.
+     *
+     * @param value Value as given in the task, may be empty.
+     * @return The number of shards, 1 if not given.
+     * @throws IllegalArgumentException If the value is not a number from 1 to 64.
+     */
+    public static int parseParallelism(String value) {
+        if (value == null || value.trim().isEmpty())
+            return 1;
+        try {
+            final int shards = Integer.parseInt(value.trim());
+            if (shards >= 1 && shards <= MAX_SHARDS)
+                return shards;
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Parallelism must be a number of shards from 1 to "
+                + MAX_SHARDS + ": '" + value.trim() + "'");
+    }
+
+    /**
+     * Read the values of task properties, {"key": {"value": "..."}, ...}, up to the end of the
+     * object.
+     */
+    private static void readConfig(JsonParser parser, Map<String, String> config) {
+        while (parser.next() == Event.KEY_NAME) {
+            final String key = parser.getString();
+            final Event event = parser.next();
+            if (event != Event.START_OBJECT) {
+                skip(parser, event);
+                continue;
+            }
+            while (parser.next() == Event.KEY_NAME) {
+                final String property = parser.getString();
+                final Event valueEvent = parser.next();
+                if (property.equals("value") && valueEvent == Event.VALUE_STRING)
+                    config.put(key, parser.getString());
+                else
+                    skip(parser, valueEvent);
+            }
+        }
+    }
+
+    /**
+     * Read string (or number) values up to the end of the object.
+     */
+    private static void readStrings(JsonParser parser, Map<String, String> values) {
+        while (parser.next() == Event.KEY_NAME) {
+            final String key = parser.getString();
+            final Event event = parser.next();
+            if (event == Event.VALUE_STRING || event == Event.VALUE_NUMBER)
+                values.put(key, parser.getString());
+            else
+                skip(parser, event);
+        }
     }
 
-    private static String getValue(JsonObject object, String key) {
-        return object.getJsonObject(key).getString("value");
+    private static void skip(JsonParser parser, Event event) {
+        if (event != Event.START_OBJECT && event != Event.START_ARRAY)
+            return;
+        int depth = 1;
+        while (depth > 0) {
+            final Event next = parser.next();
+            if (next == Event.START_OBJECT || next == Event.START_ARRAY)
+                depth++;
+            else if (next == Event.END_OBJECT || next == Event.END_ARRAY)
+                depth--;
+        }
     }
 
-    private static String[] getListValue(JsonObject object, String key) {
-        final String multiLine = object.getJsonObject(key).getString("value");
+    private static void expect(JsonParser parser, Event actual, Event expected) {
+        if (actual != expected)
+            throw new IllegalArgumentException("Unexpected " + actual + " in request at "
+                    + parser.getLocation());
+    }
+
+    private static String getValue(Map<String, String> config, String key) {
+        final String value = config.get(key);
+        if (value == null)
+            throw new IllegalArgumentException("Missing value for " + key);
+        return value;
+    }
+
+    private static String getOptionalValue(Map<String, String> config, String key,
+            String defaultValue) {
+        final String value = config.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    private static boolean getBooleanValue(Map<String, String> config, String key) {
+        return getOptionalValue(config, key, "false").equalsIgnoreCase("true");
+    }
+
+    private static int getIntValue(Map<String, String> config, String key, int defaultValue) {
+        final String value = getOptionalValue(config, key, null);
+        if (value == null || value.trim().isEmpty())
+            return defaultValue;
+        try {
+            final int number = Integer.parseInt(value.trim());
+            if (number >= 0)
+                return number;
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid number for " + key + ": '" + value + "'");
+    }
+
+    private static String[] getListValue(Map<String, String> config, String key) {
+        final String multiLine = config.get(key);
         if (multiLine == null)
             return new String[0];
         return multiLine.split("\\r?\\n");
     }
 
-    private static Map<String, String> getMapFromListValue(JsonObject object, String key) {
-        final String multiLine = object.getJsonObject(key).getString("value");
+    private static Map<String, String> getMapFromListValue(Map<String, String> config, String key) {
+        final String multiLine = getOptionalValue(config, key, null);
         if (multiLine == null)
             return Collections.emptyMap();
 
@@ -71,12 +298,4 @@ public class StepConfig {
         }
         return res;
     }
-
-    private static Map<String, String> getMapValue(JsonObject object, String key) {
-        Map<String, String> res = new HashMap<>();
-        for (Map.Entry<String, JsonValue> e : object.getJsonObject(key).entrySet()) {
-            res.put(e.getKey(), ((JsonString)e.getValue()).getString());
-        }
-        return res;
-    }
 }
@@ -0,0 +1,240 @@
+package no.h_nh.docker_step.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+
+/**
+ * Sends the output of the commands container to the console, within a budget.
+ * When a budget is set, the raw output is also written to a spill file.  Once the budget is
+ * exceeded, lines are no longer sent to the console; only a byte counter every few seconds, and
+ * the last lines of output when the container is done.  The spill file is kept for publishing
+ * as an artifact when the budget was exceeded, and deleted otherwise.
+ */
+public class StepOutput implements Closeable {
+    private static final int TAIL_LINES = 50;
+    private static final long PROGRESS_MILLIS = 10000;
+    private static final int RECENT_BATCHES = 20;
+
+    private final Consumer<String> console;
+    private final ConsoleBudget budget;
+    private final Path spillFile;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final LineAssembler lines;
+
+    private final ArrayDeque<String> tail = new ArrayDeque<>();
+    // Last batches of lines, whether sent to the console or not, for diagnostics.
+    private final ArrayDeque<String> recent = new ArrayDeque<>();
+    private boolean exceeded = false;
+    private long windowStart = System.currentTimeMillis();
+    private long windowLines = 0;
+    private long windowBytes = 0;
+    private long consoleLines = 0;
+    private long consoleBytes = 0;
+    private long lastProgress = 0;
+
+    /**
+     * @param prefix    Prefix added to every line.
+     * @param console   Receives batches of lines, typically JobConsoleLogger::printLine.
+     * @param budget    Limits on console output.
+     * @param spillFile File to write the full output to, if the budget is limited.
+     * @throws IOException If the spill file cannot be created.
+     */
+    public StepOutput(String prefix, Consumer<String> console, ConsoleBudget budget, Path spillFile)
+            throws IOException {
+        this.console = console;
+        this.budget = budget;
+        this.spillFile = spillFile;
+        if (budget.isUnlimited()) {
+            this.channel = null;
+            this.buffer = null;
+        } else {
+            this.channel = FileChannel.open(spillFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.buffer = ByteBuffer.allocateDirect(64 * 1024);
+        }
+        this.lines = new LineAssembler(prefix, this::received);
+    }
+
+    /**
+     * Add a frame of output.  The buffer is consumed.
+     *
+     * @param frame Raw bytes of the frame.
+     * @throws IOException If writing the spill file fails.
+     */
+    public void feed(ByteBuffer frame) throws IOException {
+        if (channel != null)
+            spill(frame.duplicate());
+        lines.feed(frame);
+        if (channel != null)
+            progress();
+    }
+
+    /**
+     * Finish the output, and report on the spill file if the budget was exceeded.
+     *
+     * @throws IOException If writing the spill file fails.
+     */
+    @Override
+    public void close() throws IOException {
+        // The line assembler calls back into this object while holding its own lock, so it must
+        // not be called while holding the lock of this object.
+        lines.close();
+        if (channel == null)
+            return;
+
+        final long totalBytes = lines.bytes();
+        final long totalLines = lines.lines();
+        synchronized (this) {
+            try {
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            } finally {
+                channel.close();
+            }
+            if (!exceeded) {
+                Files.deleteIfExists(spillFile);
+                return;
+            }
+            console.accept("----- Last " + tail.size() + " lines of output -----");
+            console.accept(String.join("\n", tail));
+            console.accept("----- Full output (" + totalBytes + " bytes, " + totalLines
+                    + " lines) is in " + spillFile.getFileName() + " -----");
+        }
+    }
+
+    /**
+     * The last lines of output, whether they were sent to the console or not.
+     *
+     * @param count Maximum number of lines.
+     * @return The lines, separated by newlines.
+     */
+    public String lastLines(int count) {
+        final String joined;
+        synchronized (recent) {
+            joined = String.join("\n", recent);
+        }
+        int start = joined.length();
+        for (int i = 0; i < count && start > 0; i++)
+            start = joined.lastIndexOf('\n', start - 1);
+        return joined.substring(Math.min(start + 1, joined.length()));
+    }
+
+    private void received(String batch) {
+        synchronized (recent) {
+            recent.addLast(batch);
+            if (recent.size() > RECENT_BATCHES)
+                recent.removeFirst();
+        }
+        if (channel == null)
+            console.accept(batch);
+        else
+            toConsole(batch);
+    }
+
+    private void spill(ByteBuffer frame) throws IOException {
+        while (frame.hasRemaining()) {
+            if (frame.remaining() <= buffer.remaining()) {
+                buffer.put(frame);
+            } else {
+                final ByteBuffer slice = frame.duplicate();
+                slice.limit(slice.position() + buffer.remaining());
+                buffer.put(slice);
+                frame.position(slice.position());
+            }
+            if (!buffer.hasRemaining()) {
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    private void progress() {
+        final long totalBytes = lines.bytes();
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            if (exceeded && now - lastProgress >= PROGRESS_MILLIS) {
+                lastProgress = now;
+                console.accept("... " + totalBytes + " bytes of output written to "
+                        + spillFile.getFileName());
+            }
+        }
+    }
+
+    private synchronized void toConsole(String batch) {
+        if (!exceeded) {
+            final long now = System.currentTimeMillis();
+            if (now - windowStart >= 1000) {
+                windowStart = now;
+                windowLines = 0;
+                windowBytes = 0;
+            }
+            long count = 1;
+            for (int i = 0; i < batch.length(); i++)
+                if (batch.charAt(i) == '\n')
+                    count++;
+            if (fits(count, batch.length() + 1)) {
+                use(count, batch.length() + 1);
+                console.accept(batch);
+                return;
+            }
+        }
+
+        // Send the lines that fit, and keep the last of the rest.
+        final StringBuilder head = new StringBuilder();
+        int start = 0;
+        while (start <= batch.length()) {
+            int end = batch.indexOf('\n', start);
+            if (end < 0)
+                end = batch.length();
+            if (!exceeded && fits(1, end - start + 1)) {
+                use(1, end - start + 1);
+                head.append(batch, start, end).append('\n');
+            } else {
+                if (!exceeded) {
+                    exceeded = true;
+                    lastProgress = System.currentTimeMillis();
+                    if (head.length() > 0)
+                        console.accept(head.substring(0, head.length() - 1));
+                    console.accept("----- Console budget (" + budget + ") exceeded, full output is written to "
+                            + spillFile.getFileName() + " -----");
+                }
+                tail.addLast(batch.substring(start, end));
+                if (tail.size() > TAIL_LINES)
+                    tail.removeFirst();
+            }
+            start = end + 1;
+        }
+        if (!exceeded && head.length() > 0)
+            console.accept(head.substring(0, head.length() - 1));
+    }
+
+    private boolean fits(long count, long size) {
+        return !over(budget.linesPerSecond, windowLines + count)
+                && !over(budget.bytesPerSecond, windowBytes + size)
+                && !over(budget.totalLines, consoleLines + count)
+                && !over(budget.totalBytes, consoleBytes + size);
+    }
+
+    private void use(long count, long size) {
+        windowLines += count;
+        windowBytes += size;
+        consoleLines += count;
+        consoleBytes += size;
+    }
+
+    private static boolean over(long limit, long value) {
+        return limit > 0 && value > limit;
+    }
+}
@@ -0,0 +1,12 @@
+package no.h_nh.docker_step.utils;
+
+
+/**
+ * Thrown when the commands of a step were stopped by the watchdog, because the step ran too
+ * long or wrote no output for too long.
+ */
+public class StepTimeoutException extends Exception {
+    public StepTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,199 @@
+package no.h_nh.docker_step.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonWriter;
+
+
+/**
+ * Timed spans of the phases of a step: pulls, network and service setup, the script run,
+ * log draining and teardown.
+ * The timings of the running step are found through the thread, so the static helpers of
+ * DockerUtils can record spans without passing it around.  Threads started by the step for
+ * concurrent work inherit it; spans recorded after the step has finished, e.g. by background
+ * cleanup, are dropped.  Long-lived background threads forget it as they start, see detached.
+ */
+public class StepTimings {
+    private static final InheritableThreadLocal<StepTimings> current = new InheritableThreadLocal<>();
+    private static final Span NONE = new Span(null, null, null);
+
+    private final long started = System.nanoTime();
+    private final long startedMillis = System.currentTimeMillis();
+    private final List<Record> records = new ArrayList<>();
+    private volatile long finished = 0;
+
+    private static class Record {
+        final String phase;
+        final String detail;
+        final long startNanos;
+        final long nanos;
+
+        Record(String phase, String detail, long startNanos, long nanos) {
+            this.phase = phase;
+            this.detail = detail;
+            this.startNanos = startNanos;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * A phase being timed, recorded when closed.
+     */
+    public static class Span implements AutoCloseable {
+        private final StepTimings timings;
+        private final String phase;
+        private final String detail;
+        private final long start = System.nanoTime();
+
+        private Span(StepTimings timings, String phase, String detail) {
+            this.timings = timings;
+            this.phase = phase;
+            this.detail = detail;
+        }
+
+        @Override
+        public void close() {
+            if (timings != null)
+                timings.record(phase, detail, start, System.nanoTime());
+        }
+    }
+
+    private StepTimings() {}
+
+    /**
+     * Start timing a step on the current thread.
+     *
+     * @return The timings of the step.
+     */
+    public static StepTimings begin() {
+        final StepTimings timings = new StepTimings();
+        current.set(timings);
+        return timings;
+    }
+
+    /**
+     * Wrap the task of a long-lived thread, so the thread does not keep the timings of the step
+     * that happened to create it, with all their records, for the life of the plugin.
+     *
+     * @param task Task the thread runs.
+     * @return The task, run without timings.
+     */
+    public static Runnable detached(Runnable task) {
+        return () -> {
+            current.remove();
+            task.run();
+        };
+    }
+
+    /**
+     * Start a span of the step running on this thread.  Without a step, nothing is recorded.
+     *
+     * @param phase  What is done, e.g. 'pull'.
+     * @param detail What it is done to, e.g. the image.
+     * @return The span, to be closed when the phase is done.
+     */
+    public static Span span(String phase, String detail) {
+        final StepTimings timings = current.get();
+        if (timings == null || timings.finished != 0)
+            return NONE;
+        return new Span(timings, phase, detail);
+    }
+
+    /**
+     * Stop timing the step.  Later spans are dropped.
+     */
+    public void finish() {
+        if (finished == 0)
+            finished = System.nanoTime();
+        if (current.get() == this)
+            current.remove();
+    }
+
+    private synchronized void record(String phase, String detail, long start, long end) {
+        if (finished == 0)
+            records.add(new Record(phase, detail, start - started, end - start));
+    }
+
+    private synchronized List<Record> sorted() {
+        final List<Record> result = new ArrayList<>(records);
+        result.sort(Comparator.comparingLong(r -> r.startNanos));
+        return result;
+    }
+
+    private long totalNanos() {
+        return (finished != 0 ? finished : System.nanoTime()) - started;
+    }
+
+    /**
+     * A table of the spans in the order they started, for the console.
+     *
+     * @return The table, one line per span.
+     */
+    public String table() {
+        final List<Record> spans = sorted();
+        int detailWidth = "Detail".length();
+        for (Record span : spans)
+            detailWidth = Math.max(detailWidth, span.detail.length());
+        detailWidth = Math.min(detailWidth, 60);
+        final String format = "%-14s %-" + detailWidth + "s %10s %10s";
+
+        final StringBuilder table = new StringBuilder("----- Step timings -----\n");
+        table.append(String.format(Locale.ROOT, format, "Phase", "Detail", "Start", "Duration"));
+        for (Record span : spans) {
+            final String detail = span.detail.length() > detailWidth
+                    ? span.detail.substring(0, detailWidth - 3) + "..." : span.detail;
+            table.append('\n').append(String.format(Locale.ROOT, format, span.phase, detail,
+                    seconds(span.startNanos), seconds(span.nanos)));
+        }
+        table.append('\n').append(String.format(Locale.ROOT, format, "total", "", "",
+                seconds(totalNanos())));
+        return table.toString();
+    }
+
+    /**
+     * The spans as JSON, with times in milliseconds from the start of the step.
+     *
+     * @return The timings.
+     */
+    public JsonObject toJson() {
+        final JsonArrayBuilder spans = PluginJson.BUILDERS.createArrayBuilder();
+        for (Record span : sorted())
+            spans.add(PluginJson.BUILDERS.createObjectBuilder()
+                    .add("phase", span.phase)
+                    .add("detail", span.detail)
+                    .add("startMillis", TimeUnit.NANOSECONDS.toMillis(span.startNanos))
+                    .add("durationMillis", TimeUnit.NANOSECONDS.toMillis(span.nanos)));
+        return PluginJson.BUILDERS.createObjectBuilder()
+                .add("started", startedMillis)
+                .add("totalMillis", TimeUnit.NANOSECONDS.toMillis(totalNanos()))
+                .add("spans", spans)
+                .build();
+    }
+
+    /**
+     * Write the spans as JSON.
+     *
+     * @param file File to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public void write(Path file) throws IOException {
+        try (JsonWriter writer = PluginJson.PROVIDER.createWriter(
+                Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            writer.write(toJson());
+        }
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.3fs", nanos / 1e9);
+    }
+}
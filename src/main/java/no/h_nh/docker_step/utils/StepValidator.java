@@ -0,0 +1,233 @@
+package no.h_nh.docker_step.utils;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+
+/**
+ * Validates task configuration when it is saved, so mistakes are reported in the pipeline
+ * editor instead of after pulling images at execute time.  Only the values present are
+ * validated, the server itself checks that required values are given.
+ * The server validates the same configurations again and again, so recent results are cached.
+ */
+public class StepValidator {
+    private static final int CACHE_SIZE = 64;
+
+    // Image references, following the grammar of the Docker distribution project.
+    private static final String DOMAIN_COMPONENT = "(?:[a-zA-Z0-9]|[a-zA-Z0-9][a-zA-Z0-9-]*[a-zA-Z0-9])";
+    private static final String DOMAIN = DOMAIN_COMPONENT + "(?:\\." + DOMAIN_COMPONENT + ")*(?::[0-9]+)?";
+    private static final String PATH_COMPONENT = "[a-z0-9]+(?:(?:[._]|__|-+)[a-z0-9]+)*";
+    private static final String TAG = "[\\w][\\w.-]{0,127}";
+    private static final String DIGEST = "[A-Za-z][A-Za-z0-9]*(?:[-_+.][A-Za-z][A-Za-z0-9]*)*:[0-9a-fA-F]{32,}";
+    private static final Pattern IMAGE = Pattern.compile("(?:" + DOMAIN + "/)?" + PATH_COMPONENT
+            + "(?:/" + PATH_COMPONENT + ")*(?::" + TAG + ")?(?:@" + DIGEST + ")?");
+
+    // Service names become container names and network aliases.
+    private static final Pattern SERVICE_NAME = Pattern.compile("[a-zA-Z0-9][a-zA-Z0-9_.-]*");
+    private static final Set<String> FORBIDDEN_NAMES = new HashSet<>(Arrays.asList(
+            "localhost", "host.docker.internal", "gateway.docker.internal"));
+    private static final Pattern LINES = Pattern.compile("\\r?\\n");
+    // User and group names or ids, as taken by 'docker run --user'.
+    private static final Pattern USER = Pattern.compile("[a-zA-Z0-9_][a-zA-Z0-9_.-]*(?::[a-zA-Z0-9_][a-zA-Z0-9_.-]*)?");
+
+    private static final Map<Map<String, String>, Map<String, String>> recent =
+            Collections.synchronizedMap(new LinkedHashMap<Map<String, String>, Map<String, String>>(
+                    CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Map<String, String>, Map<String, String>> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    private StepValidator() {}
+
+    /**
+     * Validate task configuration values.
+     *
+     * @param config Map of task option to value, for the options present.
+     * @return Map of task option to error message, empty if all is well.
+     */
+    public static Map<String, String> validate(Map<String, String> config) {
+        final Map<String, String> cached = recent.get(config);
+        if (cached != null)
+            return cached;
+
+        final Map<String, String> key = Collections.unmodifiableMap(new HashMap<>(config));
+        final Map<String, String> errors = Collections.unmodifiableMap(check(key));
+        recent.put(key, errors);
+        return errors;
+    }
+
+    private static Map<String, String> check(Map<String, String> config) {
+        final Map<String, String> errors = new LinkedHashMap<>();
+
+        final String image = config.get("image");
+        if (image != null && !isParameterized(image) && !IMAGE.matcher(image.trim()).matches())
+            errors.put("image", "Invalid image reference: '" + image.trim() + "'");
+
+        // Unknown values still mean not to pull when run, as they always did.
+        final String pull = config.get("pull");
+        if (pull != null && !pull.trim().isEmpty() && !isParameterized(pull) && !PullPolicy.isKnown(pull))
+            errors.put("pull", "Invalid pull policy: '" + pull + "'");
+        checkCount(errors, config, "pullMaxAge", "minutes");
+
+        final Set<String> services = checkServices(errors, config.get("services"));
+        checkReadiness(errors, config.get("readiness"), config.containsKey("services") ? services : null);
+
+        checkCount(errors, config, "readinessTimeout", "seconds");
+        checkCount(errors, config, "stopTimeout", "seconds");
+        checkCount(errors, config, "timeout", "minutes");
+        checkCount(errors, config, "idleTimeout", "minutes");
+        tryParse(errors, "consoleBudget", () -> ConsoleBudget.parse(config.get("consoleBudget")),
+                config.get("consoleBudget"));
+        tryParse(errors, "resourceLimits", () -> ResourceLimits.parse(config.get("resourceLimits")),
+                config.get("resourceLimits"));
+        tryParse(errors, "cacheVolumes", () -> CacheVolumes.parse(config.get("cacheVolumes")),
+                config.get("cacheVolumes"));
+        tryParse(errors, "tmpfs", () -> Mounts.parseTmpfs(config.get("tmpfs")), config.get("tmpfs"));
+        checkSteps(errors, config.get("steps"), config.get("commands"));
+        tryParse(errors, "parallelism", () -> StepConfig.parseParallelism(config.get("parallelism")),
+                config.get("parallelism"));
+
+        checkFile(errors, config, "spillFile", "Spill file");
+        checkFile(errors, config, "timingsFile", "Timings file");
+
+        final String user = config.get("user");
+        if (user != null && !user.trim().isEmpty() && !isParameterized(user)
+                && !USER.matcher(user.trim()).matches())
+            errors.put("user", "User must be given as <user>[:<group>] or <uid>[:<gid>]: '" + user.trim() + "'");
+        return errors;
+    }
+
+    /**
+     * Check that a file written by the plugin is inside the working directory.
+     */
+    private static void checkFile(Map<String, String> errors, Map<String, String> config, String key,
+            String what) {
+        final String value = config.get(key);
+        if (value != null && !value.trim().isEmpty() && !isParameterized(value)) {
+            final Path path = Paths.get(value.trim()).normalize();
+            if (path.isAbsolute() || path.startsWith(".."))
+                errors.put(key, what + " must be inside the working directory");
+        }
+    }
+
+    /**
+     * Check the sub-steps and their images, and that they are not given along with commands.
+     */
+    private static void checkSteps(Map<String, String> errors, String value, String commands) {
+        if (value == null || value.trim().isEmpty() || isParameterized(value))
+            return;
+        if (commands != null && !commands.trim().isEmpty()) {
+            errors.put("steps", "Either commands or steps must be given, not both");
+            return;
+        }
+        try {
+            for (SubSteps.Step step : SubSteps.parse(value))
+                if (!step.image.isEmpty() && !IMAGE.matcher(step.image).matches()) {
+                    errors.put("steps", "Invalid image reference for sub-step '" + step.name + "': '"
+                            + step.image + "'");
+                    return;
+                }
+        } catch (IllegalArgumentException e) {
+            errors.put("steps", e.getMessage());
+        }
+    }
+
+    /**
+     * Check 'name;image' lines, and return the service names.
+     */
+    private static Set<String> checkServices(Map<String, String> errors, String value) {
+        final Set<String> names = new HashSet<>();
+        if (value == null)
+            return names;
+        for (String line : LINES.split(value)) {
+            if (line.trim().isEmpty() || isParameterized(line))
+                continue;
+            final String[] keyVal = line.split(";", 2);
+            final String error;
+            if (keyVal.length != 2)
+                error = "Service must be given as <name>;<image>: '" + line.trim() + "'";
+            else if (!SERVICE_NAME.matcher(keyVal[0]).matches())
+                error = "Invalid service name: '" + keyVal[0] + "'";
+            else if (FORBIDDEN_NAMES.contains(keyVal[0].toLowerCase()))
+                error = "Service name not allowed: '" + keyVal[0] + "'";
+            else if (!names.add(keyVal[0]))
+                error = "Duplicate service name: '" + keyVal[0] + "'";
+            else if (!IMAGE.matcher(keyVal[1]).matches())
+                error = "Invalid image reference for service '" + keyVal[0] + "': '" + keyVal[1] + "'";
+            else
+                continue;
+            errors.putIfAbsent("services", error);
+        }
+        return names;
+    }
+
+    /**
+     * Check 'name;check' lines, and that they refer to known services if services are given.
+     */
+    private static void checkReadiness(Map<String, String> errors, String value, Set<String> services) {
+        if (value == null)
+            return;
+        for (String line : LINES.split(value)) {
+            if (line.trim().isEmpty() || isParameterized(line))
+                continue;
+            final String[] keyVal = line.split(";", 2);
+            String error = null;
+            if (keyVal.length != 2) {
+                error = "Readiness check must be given as <service>;<check>: '" + line.trim() + "'";
+            } else if (services != null && !services.contains(keyVal[0])) {
+                error = "Readiness check for unknown service: '" + keyVal[0] + "'";
+            } else {
+                try {
+                    ReadinessCheck.parse(keyVal[1]);
+                } catch (IllegalArgumentException e) {
+                    error = e.getMessage();
+                }
+            }
+            if (error != null)
+                errors.putIfAbsent("readiness", error);
+        }
+    }
+
+    private static void checkCount(Map<String, String> errors, Map<String, String> config, String key,
+            String unit) {
+        final String value = config.get(key);
+        if (value == null || value.trim().isEmpty() || isParameterized(value))
+            return;
+        try {
+            if (Integer.parseInt(value.trim()) >= 0)
+                return;
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        errors.put(key, "Must be a number of " + unit + ": '" + value.trim() + "'");
+    }
+
+    private static void tryParse(Map<String, String> errors, String key, Runnable parse,
+            String... values) {
+        for (String value : values)
+            if (value != null && isParameterized(value))
+                return;
+        try {
+            parse.run();
+        } catch (IllegalArgumentException e) {
+            errors.put(key, e.getMessage());
+        }
+    }
+
+    /**
+     * Values with parameters are only complete when the pipeline runs.
+     */
+    private static boolean isParameterized(String value) {
+        return value.contains("#{");
+    }
+}
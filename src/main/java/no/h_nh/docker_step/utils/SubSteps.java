@@ -0,0 +1,352 @@
+package no.h_nh.docker_step.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+
+/**
+ * Sub-steps of a task, each with its own image and commands, sharing the network and services
+ * of the task.  A sub-step starts when the sub-steps it comes after have succeeded, so sub-steps
+ * that do not depend on each other run in parallel.  After a failure, no more sub-steps are
+ * started, but those running are allowed to finish.
+ */
+public class SubSteps {
+    private static final Pattern LINES = Pattern.compile("\\r?\\n");
+    // Names are used in file names and output prefixes.
+    private static final Pattern NAME = Pattern.compile("[a-zA-Z0-9][a-zA-Z0-9_.-]*");
+
+    private SubSteps() {}
+
+    /**
+     * A sub-step as given in the task.
+     */
+    public static class Step {
+        public final String name;
+        /** Image of the sub-step, empty to use the image of the task. */
+        public final String image;
+        public final List<String> after;
+        public final String[] commands;
+
+        Step(String name, String image, List<String> after, List<String> commands) {
+            this.name = name;
+            this.image = image;
+            this.after = Collections.unmodifiableList(after);
+            this.commands = commands.toArray(new String[0]);
+        }
+    }
+
+    /**
+     * The outcome of a sub-step.
+     */
+    public static class Result {
+        public final String name;
+        /** Exit code, or null if the sub-step did not run to the end. */
+        public volatile Long exitCode;
+        public volatile long nanos;
+
+        public Result(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Runs the commands of a sub-step.
+     */
+    public interface Runner {
+        /**
+         * @param step The sub-step.
+         * @return Exit code of the commands.
+         * @throws Exception If the commands could not be run.
+         */
+        long run(Step step) throws Exception;
+    }
+
+    /**
+     * Runs one shard of the commands.
+     */
+    public interface ShardRunner {
+        /**
+         * @param index Index of the shard, from 0.
+         * @return Exit code of the commands.
+         * @throws Exception If the commands could not be run.
+         */
+        long run(int index) throws Exception;
+    }
+
+    /**
+     * Interpret a sub-step specification.  Each sub-step starts with a line
+     * '&lt;name&gt;;[&lt;image&gt;][;&lt;after&gt;,...]', followed by its commands on indented
+     * lines.  The indentation of the first command is removed from all of them.
+     *
+     * @param spec Specification as given in the task, may be empty.
+     * @return The sub-steps in the order given.
+     * @throws IllegalArgumentException If the specification is not understood.
+     */
+    public static List<Step> parse(String spec) {
+        final List<Step> steps = new ArrayList<>();
+        if (spec == null || spec.trim().isEmpty())
+            return steps;
+
+        final Map<String, Step> byName = new HashMap<>();
+        String[] header = null;
+        List<String> commands = null;
+        String indent = null;
+        for (String line : LINES.split(spec)) {
+            if (line.trim().isEmpty()) {
+                if (commands != null && !commands.isEmpty())
+                    commands.add("");
+                continue;
+            }
+            if (!Character.isWhitespace(line.charAt(0))) {
+                if (header != null)
+                    add(steps, byName, header, commands);
+                header = line.split(";", 3);
+                if (header.length < 2)
+                    throw new IllegalArgumentException(
+                            "Sub-step must be given as <name>;[<image>][;<after>,...]: '" + line.trim() + "'");
+                commands = new ArrayList<>();
+                indent = null;
+            } else if (header == null) {
+                throw new IllegalArgumentException("Commands before the first sub-step: '" + line.trim() + "'");
+            } else {
+                if (indent == null)
+                    indent = line.substring(0, line.length() - line.replaceFirst("^\\s+", "").length());
+                commands.add(line.startsWith(indent) ? line.substring(indent.length()) : line.trim());
+            }
+        }
+        if (header != null)
+            add(steps, byName, header, commands);
+
+        for (Step step : steps)
+            for (String name : step.after)
+                if (!byName.containsKey(name))
+                    throw new IllegalArgumentException("Sub-step '" + step.name + "' comes after unknown sub-step: '" + name + "'");
+        checkCycles(steps, byName);
+        return steps;
+    }
+
+    private static void add(List<Step> steps, Map<String, Step> byName, String[] header,
+            List<String> commands) {
+        final String name = header[0].trim();
+        if (!NAME.matcher(name).matches())
+            throw new IllegalArgumentException("Invalid sub-step name: '" + name + "'");
+        if (byName.containsKey(name))
+            throw new IllegalArgumentException("Duplicate sub-step name: '" + name + "'");
+        while (!commands.isEmpty() && commands.get(commands.size() - 1).isEmpty())
+            commands.remove(commands.size() - 1);
+        if (commands.isEmpty())
+            throw new IllegalArgumentException("Sub-step '" + name + "' has no commands");
+
+        final List<String> after = new ArrayList<>();
+        if (header.length == 3)
+            for (String other : header[2].split(","))
+                if (!other.trim().isEmpty())
+                    after.add(other.trim());
+        final Step step = new Step(name, header[1].trim(), after, commands);
+        steps.add(step);
+        byName.put(name, step);
+    }
+
+    private static void checkCycles(List<Step> steps, Map<String, Step> byName) {
+        final Set<String> done = new HashSet<>();
+        for (Step step : steps)
+            visit(step, byName, done, new HashSet<>());
+    }
+
+    private static void visit(Step step, Map<String, Step> byName, Set<String> done, Set<String> path) {
+        if (done.contains(step.name))
+            return;
+        if (!path.add(step.name))
+            throw new IllegalArgumentException("Sub-step '" + step.name + "' comes after itself");
+        for (String name : step.after)
+            visit(byName.get(name), byName, done, path);
+        path.remove(step.name);
+        done.add(step.name);
+    }
+
+    /**
+     * Run sub-steps, each as soon as those it comes after have succeeded.
+     *
+     * @param steps  The sub-steps.
+     * @param runner Runs a single sub-step.
+     * @return The outcome of every sub-step, in the order given.
+     * @throws Exception The first exception thrown by the runner, once all running sub-steps
+     *                   have finished.
+     */
+    public static List<Result> run(List<Step> steps, Runner runner) throws Exception {
+        final Map<String, Result> results = new LinkedHashMap<>();
+        for (Step step : steps)
+            results.put(step.name, new Result(step.name));
+
+        final ExecutorService executor = Executors.newCachedThreadPool(SubSteps::newThread);
+        final CompletionService<Result> completion = new ExecutorCompletionService<>(executor);
+        final List<Step> waiting = new ArrayList<>(steps);
+        final Set<String> succeeded = new HashSet<>();
+        Exception failure = null;
+        boolean failed = false;
+        int running = 0;
+        try {
+            while (true) {
+                for (Iterator<Step> it = waiting.iterator(); !failed && it.hasNext(); ) {
+                    final Step step = it.next();
+                    if (!succeeded.containsAll(step.after))
+                        continue;
+                    it.remove();
+                    final Result result = results.get(step.name);
+                    completion.submit(() -> {
+                        final long start = System.nanoTime();
+                        try {
+                            result.exitCode = runner.run(step);
+                        } finally {
+                            result.nanos = System.nanoTime() - start;
+                        }
+                        return result;
+                    });
+                    running++;
+                }
+                if (running == 0)
+                    break;
+
+                try {
+                    final Result result = completion.take().get();
+                    if (result.exitCode == 0)
+                        succeeded.add(result.name);
+                    else
+                        failed = true;
+                } catch (ExecutionException e) {
+                    failed = true;
+                    if (failure == null)
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+                running--;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failure != null)
+            throw failure;
+        return new ArrayList<>(results.values());
+    }
+
+    /**
+     * Run shards of the same commands, all at the same time.
+     *
+     * @param total  Number of shards.
+     * @param runner Runs a single shard.
+     * @return The outcome of every shard, named 'shard N', in order.
+     * @throws Exception The first exception thrown by the runner, once all shards have finished.
+     */
+    public static List<Result> runShards(int total, ShardRunner runner) throws Exception {
+        final List<Result> results = new ArrayList<>(total);
+        final List<Callable<Result>> tasks = new ArrayList<>(total);
+        for (int i = 0; i < total; i++) {
+            final int index = i;
+            final Result result = new Result("shard " + index);
+            results.add(result);
+            tasks.add(() -> {
+                final long start = System.nanoTime();
+                try {
+                    result.exitCode = runner.run(index);
+                } finally {
+                    result.nanos = System.nanoTime() - start;
+                }
+                return result;
+            });
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, total),
+                SubSteps::newThread);
+        Exception failure = null;
+        try {
+            for (Future<Result> future : executor.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null)
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failure != null)
+            throw failure;
+        return results;
+    }
+
+    // Threads are created from the thread of the step, so they inherit the timings of the step.
+    private static Thread newThread(Runnable runnable) {
+        final Thread thread = new Thread(runnable, "docker-step-substep");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Whether all sub-steps ran and exited with status 0.
+     */
+    public static boolean succeeded(List<Result> results) {
+        for (Result result : results)
+            if (result.exitCode == null || result.exitCode != 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * The exit code and duration of every sub-step, for the result message.
+     *
+     * @param results Outcome of the sub-steps.
+     * @return E.g. "build: 0 (12.3s), test: 1 (4.0s), deploy: skipped".
+     */
+    public static String summary(List<Result> results) {
+        final List<String> parts = new ArrayList<>(results.size());
+        for (Result result : results)
+            parts.add(result.exitCode == null ? result.name + ": skipped"
+                    : String.format(Locale.ROOT, "%s: %d (%.1fs)", result.name, result.exitCode,
+                            result.nanos / 1e9));
+        return String.join(", ", parts);
+    }
+
+    /**
+     * The exit code of the first sub-step that failed.
+     *
+     * @param results Outcome of the sub-steps, all run to the end.
+     * @return The exit code, 0 if all succeeded.
+     */
+    public static long exitCode(List<Result> results) {
+        for (Result result : results)
+            if (result.exitCode != null && result.exitCode != 0)
+                return result.exitCode;
+        return 0;
+    }
+
+    /**
+     * Name of the spill file of a sub-step, made from the spill file of the task.
+     *
+     * @param spillFile Spill file of the task, e.g. 'output.log'.
+     * @param name      Name of the sub-step, e.g. 'build'.
+     * @return E.g. 'output-build.log'.
+     */
+    public static String spillFile(String spillFile, String name) {
+        final int slash = Math.max(spillFile.lastIndexOf('/'), spillFile.lastIndexOf('\\'));
+        final int dot = spillFile.lastIndexOf('.');
+        return dot > slash + 1
+                ? spillFile.substring(0, dot) + "-" + name + spillFile.substring(dot)
+                : spillFile + "-" + name;
+    }
+}
@@ -0,0 +1,294 @@
+package no.h_nh.docker_step.utils;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.DockerClient.ExecCreateParam;
+import com.spotify.docker.client.DockerClient.RemoveContainerParam;
+import com.spotify.docker.client.LogStream;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.exceptions.NotFoundException;
+import com.spotify.docker.client.messages.ContainerConfig;
+import com.spotify.docker.client.messages.ContainerCreation;
+import com.spotify.docker.client.messages.ContainerInfo;
+import com.spotify.docker.client.messages.ExecCreation;
+import com.spotify.docker.client.messages.HostConfig;
+import com.spotify.docker.client.messages.TopResults;
+import com.thoughtworks.go.plugin.api.logging.Logger;
+import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
+
+
+/**
+ * Keeps started step containers around, so short steps can run their script with
+ * 'docker exec' instead of creating a new container every time.
+ * Containers are kept per image, working directory, user, resource limits and mounts.
+ * A container is recycled after 'dockerstep.warm.maxuses' scripts, or when it has been idle for
+ * 'dockerstep.warm.maxidle' seconds, and at most 'dockerstep.warm.perimage' idle containers are
+ * kept for each key.
+ * A container where a script failed to run to completion, or left processes running, is never
+ * reused.  Files written outside the working directory are kept for the next script.
+ */
+public class WarmContainers {
+    private static final Logger LOG = Logger.getLoggerFor(WarmContainers.class);
+
+    /** Label holding the key a warm container is kept under. */
+    public static final String WARM_LABEL = "no.h_nh.docker_step.warm";
+
+    private static final long MAX_IDLE_MILLIS =
+            TimeUnit.SECONDS.toMillis(Long.getLong("dockerstep.warm.maxidle", 300L));
+    private static final int MAX_USES = Integer.getInteger("dockerstep.warm.maxuses", 20);
+    private static final int MAX_IDLE_PER_KEY = Integer.getInteger("dockerstep.warm.perimage", 2);
+
+    // Keeps the container running until it is removed, without depending on the image.
+    private static final String IDLE_COMMAND =
+            "trap 'exit 0' TERM INT; while :; do sleep 3600 & wait $!; done";
+
+    // Idle containers by key, most recently used first.
+    private static final Map<String, Deque<Warm>> idle = new HashMap<>();
+
+    private static final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(StepTimings.detached(runnable), "docker-step-warm");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    static {
+        executor.scheduleWithFixedDelay(WarmContainers::expire, 30, 30, TimeUnit.SECONDS);
+    }
+
+    private WarmContainers() {}
+
+    private static class Warm {
+        final String id;
+        final String key;
+        int uses = 0;
+        long idleSince = 0;
+
+        Warm(String id, String key) {
+            this.id = id;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Runs a script in a warm container, starting one if none is idle.
+     *
+     * @param image      Image of the container.
+     * @param script     Contents of the script.
+     * @param workingDir Working directory to be bind mounted into the container.
+     * @param envVars    Environment
+     * @param user       Uid:gid to run as
+     * @param network    Network to attach to while the script runs, or null.
+     * @param limits     Resource limits of the container.
+     * @param mounts     Cache volumes and tmpfs to mount.
+     * @param prefix     Prefix added to every line of output.
+     * @param budget     Limits on output sent to the console.
+     * @param spillFile  File in the working directory to write all output to when over budget.
+     * @param watchdog   Kills the container if the step times out or goes quiet.
+     * @return Exit code of script
+     * @throws DockerException If an error occurs running the script.
+     * @throws InterruptedException If the process is interrupted.
+     * @throws IOException If the script cannot be copied or the spill file cannot be written.
+     * @throws StepTimeoutException If the container was killed by the watchdog.
+     */
+    public static long runScript(String image, String script, String workingDir,
+            Map<String, String> envVars, String user, String network, ResourceLimits limits,
+            Mounts mounts, String prefix, ConsoleBudget budget, String spillFile, Watchdog watchdog)
+            throws DockerException, InterruptedException, IOException, StepTimeoutException {
+        final JobConsoleLogger logger = JobConsoleLogger.getConsoleLogger();
+        final DockerClient client = DockerUtils.getDockerClient();
+        final Warm warm = acquire(image, workingDir, user, limits, mounts);
+        boolean reusable = false;
+        final Long exitStatus;
+        try {
+            if (network != null) {
+                client.connectToNetwork(warm.id, network);
+                logger.printLine("Attached to network: " + network);
+            }
+
+            final List<String> env = new ArrayList<>(envVars.size() + 1);
+            for (Map.Entry<String, String> entry : envVars.entrySet())
+                env.add(entry.getKey() + "=" + entry.getValue());
+            if (!envVars.containsKey("HOME"))
+                env.add("HOME=/working");
+            DockerUtils.copyScript(warm.id, script);
+            final ExecCreation exec = client.execCreate(warm.id, new String[] {DockerUtils.SCRIPT_PATH},
+                    ExecCreateParam.attachStdout(), ExecCreateParam.attachStderr(),
+                    ExecCreateParam.env(env.toArray(new String[0])));
+            logger.printLine("Running script in container: " + warm.id);
+            try (final LogStream logStream = client.execStart(exec.id());
+                 final StepOutput output = new StepOutput(prefix, logger::printLine, budget,
+                         Paths.get(workingDir, spillFile));
+                 final Watchdog.Watch watch = watchdog.watch(warm.id, output)) {
+                while (logStream.hasNext()) {
+                    output.feed(logStream.next().content());
+                    watch.touch();
+                }
+                exitStatus = client.execInspect(exec.id()).exitCode();
+                // A killed container is not reused.
+                watch.check();
+            }
+
+            if (exitStatus == null) {
+                throw new IllegalStateException("Exit code of script is null");
+            }
+            logger.printLine("Script in container '" + warm.id + "' exited with status " + exitStatus);
+
+            reusable = isIdle(warm);
+            if (!reusable)
+                logger.printLine("Script left processes running, not reusing container");
+            if (reusable && network != null) {
+                try {
+                    client.disconnectFromNetwork(warm.id, network, true);
+                } catch (DockerException e) {
+                    logger.printLine("Could not detach from network, not reusing container: "
+                            + e.getMessage());
+                    reusable = false;
+                }
+            }
+            return exitStatus;
+        } finally {
+            release(warm, reusable);
+        }
+    }
+
+    /**
+     * Whether nothing but the idle loop runs in a container, so no process started by a script
+     * is left for the next one.
+     */
+    private static boolean isIdle(Warm warm) throws InterruptedException {
+        try {
+            return onlyIdleLoop(DockerUtils.getDockerClient().topContainer(warm.id));
+        } catch (DockerException e) {
+            LOG.warn("Could not list processes of warm container " + warm.id + ": "
+                    + e.getMessage());
+            return false;
+        }
+    }
+
+    static boolean onlyIdleLoop(TopResults top) {
+        if (top == null || top.titles() == null || top.processes() == null)
+            return false;
+        final int command = Math.max(top.titles().indexOf("CMD"), top.titles().indexOf("COMMAND"));
+        if (command < 0)
+            return false;
+        for (List<String> process : top.processes()) {
+            final String line = process.size() > command ? process.get(command) : "";
+            if (!line.contains(IDLE_COMMAND) && !line.equals("sleep 3600"))
+                return false;
+        }
+        return true;
+    }
+
+    private static Warm acquire(String image, String workingDir, String user, ResourceLimits limits,
+            Mounts mounts) throws DockerException, InterruptedException {
+        final JobConsoleLogger logger = JobConsoleLogger.getConsoleLogger();
+        final DockerClient client = DockerUtils.getDockerClient();
+        final String key = image + "|" + workingDir + "|" + user + "|" + limits + "|" + mounts;
+        while (true) {
+            final Warm warm;
+            synchronized (idle) {
+                final Deque<Warm> containers = idle.get(key);
+                warm = containers == null ? null : containers.pollFirst();
+            }
+            if (warm == null)
+                break;
+            final ContainerInfo info;
+            try {
+                info = client.inspectContainer(warm.id);
+            } catch (NotFoundException e) {
+                continue;
+            }
+            if (info != null && info.state() != null && Boolean.TRUE.equals(info.state().running())) {
+                logger.printLine("Reusing container: " + warm.id);
+                return warm;
+            }
+            discard(warm);
+        }
+
+        logger.printLine("Creating warm container with image: " + image);
+        final Map<String, String> labels = DockerUtils.labels(null);
+        labels.put(WARM_LABEL, key);
+        final ContainerConfig config = ContainerConfig.builder()
+                .image(image).entrypoint("/bin/sh", "-c", IDLE_COMMAND)
+                .workingDir("/working").user(user).labels(labels)
+                .hostConfig(mounts.apply(limits.apply(
+                        HostConfig.builder().appendBinds(workingDir + ":/working"))).build())
+                .build();
+        final ContainerCreation container = client.createContainer(config);
+        final List<String> warnings = container.warnings();
+        if (warnings != null && !warnings.isEmpty())
+            for (String warning : warnings)
+                logger.printLine("WARNING: " + warning);
+        final Warm warm = new Warm(container.id(), key);
+        try {
+            client.startContainer(warm.id);
+        } catch (DockerException | InterruptedException e) {
+            discard(warm);
+            throw e;
+        }
+        logger.printLine("Started warm container: " + warm.id);
+        return warm;
+    }
+
+    private static void release(Warm warm, boolean reusable) {
+        if (reusable && ++warm.uses < MAX_USES) {
+            synchronized (idle) {
+                final Deque<Warm> containers = idle.computeIfAbsent(warm.key, k -> new ArrayDeque<>());
+                if (containers.size() < MAX_IDLE_PER_KEY) {
+                    warm.idleSince = System.currentTimeMillis();
+                    containers.addFirst(warm);
+                    return;
+                }
+            }
+        }
+        discard(warm);
+    }
+
+    /**
+     * Remove containers that have been idle too long.
+     */
+    private static void expire() {
+        final long now = System.currentTimeMillis();
+        synchronized (idle) {
+            for (Iterator<Deque<Warm>> keys = idle.values().iterator(); keys.hasNext(); ) {
+                final Deque<Warm> containers = keys.next();
+                while (!containers.isEmpty() && now - containers.peekLast().idleSince >= MAX_IDLE_MILLIS)
+                    discard(containers.pollLast());
+                if (containers.isEmpty())
+                    keys.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove a container in the background.
+     */
+    private static void discard(Warm warm) {
+        executor.execute(() -> {
+            try {
+                DockerUtils.getDockerClient().removeContainer(warm.id, RemoveContainerParam.forceKill(),
+                        RemoveContainerParam.removeVolumes());
+                LOG.info("Removed warm container " + warm.id);
+            } catch (NotFoundException e) {
+                // Already gone
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                LOG.warn("Could not remove warm container " + warm.id + ": " + e.getMessage());
+            }
+        });
+    }
+}
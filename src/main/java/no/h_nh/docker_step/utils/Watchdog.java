@@ -0,0 +1,181 @@
+package no.h_nh.docker_step.utils;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.exceptions.NotFoundException;
+import com.spotify.docker.client.messages.ContainerStats;
+import com.spotify.docker.client.messages.TopResults;
+import com.thoughtworks.go.plugin.api.logging.Logger;
+import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
+
+
+/**
+ * Stops commands containers of a step that run past the deadline of the step, or that have
+ * written no output for too long.  Before a container is killed, its resource use, processes
+ * and last lines of output are printed, to help find out where it hung.  The step then fails
+ * with a StepTimeoutException rather than the exit code of the killed container.
+ */
+public class Watchdog {
+    private static final Logger LOG = Logger.getLoggerFor(Watchdog.class);
+    private static final long CHECK_MILLIS = 5000;
+    private static final int LAST_LINES = 20;
+
+    /** No deadline and no idle limit. */
+    public static final Watchdog NONE = new Watchdog(0, 0);
+
+    private static final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(StepTimings.detached(runnable), "docker-step-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final long timeoutMillis;
+    private final long deadline;
+    private final long idleMillis;
+
+    /**
+     * @param timeoutMillis Time from now the step may take, 0 for no limit.
+     * @param idleMillis    Time a container may go without output, 0 for no limit.
+     */
+    public Watchdog(long timeoutMillis, long idleMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : 0;
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * A running commands container being watched.
+     */
+    public class Watch implements AutoCloseable {
+        private final String containerId;
+        private final StepOutput output;
+        private final ScheduledFuture<?> check;
+        private volatile long lastOutput = System.currentTimeMillis();
+        private volatile String expired;
+
+        private Watch(String containerId, StepOutput output) {
+            this.containerId = containerId;
+            this.output = output;
+            this.check = deadline == 0 && idleMillis == 0 ? null
+                    : executor.scheduleWithFixedDelay(this::poll, CHECK_MILLIS, CHECK_MILLIS,
+                            TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Note that the container wrote output.
+         */
+        public void touch() {
+            lastOutput = System.currentTimeMillis();
+        }
+
+        /**
+         * Fail if the container was stopped by the watchdog.
+         *
+         * @throws StepTimeoutException If the container was stopped.
+         */
+        public void check() throws StepTimeoutException {
+            final String reason = expired;
+            if (reason != null)
+                throw new StepTimeoutException(reason);
+        }
+
+        @Override
+        public void close() {
+            if (check != null)
+                check.cancel(false);
+        }
+
+        // Package-private so tests need not wait for the schedule.
+        void poll() {
+            if (expired != null)
+                return;
+            final long now = System.currentTimeMillis();
+            if (deadline > 0 && now >= deadline)
+                expire("Step timed out after " + minutes(timeoutMillis));
+            else if (idleMillis > 0 && now - lastOutput >= idleMillis)
+                expire("Step stopped after " + minutes(idleMillis) + " without output");
+        }
+
+        private void expire(String reason) {
+            expired = reason;
+            check.cancel(false);
+            final JobConsoleLogger logger = JobConsoleLogger.getConsoleLogger();
+            logger.printLine("----- " + reason + ", killing container " + containerId + " -----");
+            try {
+                logger.printLine(diagnostics(containerId, output));
+            } catch (Exception e) {
+                logger.printLine("Could not get diagnostics: " + e.getMessage());
+            }
+            try {
+                DockerUtils.getDockerClient().killContainer(containerId);
+            } catch (NotFoundException e) {
+                // Already gone
+            } catch (Exception e) {
+                LOG.warn("Could not kill container " + containerId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Start watching a container.  The watch must be closed when the container is done.
+     *
+     * @param containerId Container running the commands, killed if the step times out.
+     * @param output      Output of the container, for the last lines.
+     * @return The watch, to be told about output.
+     */
+    public Watch watch(String containerId, StepOutput output) {
+        return new Watch(containerId, output);
+    }
+
+    /**
+     * Resource use, processes and last lines of output of a container.
+     */
+    static String diagnostics(String containerId, StepOutput output)
+            throws DockerException, InterruptedException {
+        final DockerClient client = DockerUtils.getDockerClient();
+        final StringBuilder result = new StringBuilder("----- Diagnostics -----\n");
+
+        final ContainerStats stats = client.stats(containerId);
+        if (stats != null && stats.memoryStats() != null && stats.memoryStats().usage() != null)
+            result.append(String.format(Locale.ROOT, "CPU: %s, memory: %.1f MiB of %.1f MiB\n",
+                    cpuPercent(stats), stats.memoryStats().usage() / 1048576.0,
+                    stats.memoryStats().limit() == null ? 0 : stats.memoryStats().limit() / 1048576.0));
+
+        final TopResults top = client.topContainer(containerId);
+        if (top != null && top.titles() != null) {
+            result.append(String.join("\t", top.titles())).append('\n');
+            for (List<String> process : top.processes())
+                result.append(String.join("\t", process)).append('\n');
+        }
+
+        result.append("----- Last lines of output -----\n").append(output.lastLines(LAST_LINES));
+        return result.toString();
+    }
+
+    private static String cpuPercent(ContainerStats stats) {
+        if (stats.cpuStats() == null || stats.precpuStats() == null
+                || stats.cpuStats().cpuUsage() == null || stats.precpuStats().cpuUsage() == null
+                || stats.cpuStats().systemCpuUsage() == null || stats.precpuStats().systemCpuUsage() == null)
+            return "unknown";
+        final long cpuDelta = stats.cpuStats().cpuUsage().totalUsage()
+                - stats.precpuStats().cpuUsage().totalUsage();
+        final long systemDelta = stats.cpuStats().systemCpuUsage() - stats.precpuStats().systemCpuUsage();
+        final List<Long> cpus = stats.cpuStats().cpuUsage().percpuUsage();
+        if (systemDelta <= 0 || cpus == null)
+            return "unknown";
+        return String.format(Locale.ROOT, "%.1f%%", 100.0 * cpuDelta / systemDelta * cpus.size());
+    }
+
+    private static String minutes(long millis) {
+        final long minutes = TimeUnit.MILLISECONDS.toMinutes(millis);
+        return minutes == 1 ? "1 minute" : minutes + " minutes";
+    }
+}
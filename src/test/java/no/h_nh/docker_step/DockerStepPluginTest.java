@@ -1,6 +1,15 @@
 package no.h_nh.docker_step;
 
+import static org.hamcrest.CoreMatchers.allOf;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.endsWith;
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.startsWith;
+import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyMap;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
@@ -8,13 +17,14 @@ import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.when;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -37,9 +47,15 @@ import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
 
 import no.h_nh.docker_step.utils.DockerUtils;
 import no.h_nh.docker_step.utils.MiscTools;
+import no.h_nh.docker_step.utils.Mounts;
+import no.h_nh.docker_step.utils.PullPolicy;
+import no.h_nh.docker_step.utils.ResourceLimits;
+import no.h_nh.docker_step.utils.StepTimeoutException;
 import no.h_nh.docker_step.utils.TestConsoleLogger;
+import no.h_nh.docker_step.utils.Watchdog;
 
 
+@SuppressWarnings("unchecked")
 @RunWith(PowerMockRunner.class)
 @PrepareForTest({JobConsoleLogger.class, DockerUtils.class, IOUtils.class, MiscTools.class})
 public class DockerStepPluginTest {
@@ -86,6 +102,20 @@ public class DockerStepPluginTest {
         Json.createReader(new StringReader(response.responseBody())).readObject().getString("exception"));
   }
 
+  @Test
+  public void handleViewCached() throws Exception {
+    final DockerStepPlugin plugin = new DockerStepPlugin();
+    final GoPluginApiResponse first = plugin.handle(new DefaultGoPluginApiRequest(null, null, "view"));
+
+    PowerMockito.mockStatic(IOUtils.class);
+    when(IOUtils.toString(any(InputStream.class), any(Charset.class))).thenThrow(new IOException("TESTERROR"));
+    final GoPluginApiResponse second = plugin.handle(new DefaultGoPluginApiRequest(null, null, "view"));
+
+    assertEquals("Expected successful response", DefaultGoPluginApiResponse.SUCCESS_RESPONSE_CODE,
+        second.responseCode());
+    assertEquals("Cached body differs", first.responseBody(), second.responseBody());
+  }
+
   @Test
   public void handleValidate() throws Exception {
     DefaultGoPluginApiRequest request = new DefaultGoPluginApiRequest(null, null, "validate");
@@ -104,6 +134,23 @@ public class DockerStepPluginTest {
     assertEquals("Expected no errors", 0, errors.size());
   }
 
+  @Test
+  public void handleValidateErrors() throws Exception {
+    DefaultGoPluginApiRequest request = new DefaultGoPluginApiRequest(null, null, "validate");
+    request.setRequestBody(Json.createObjectBuilder()
+        .add("image", Json.createObjectBuilder().add("value", "ubuntu:latest"))
+        .add("services", Json.createObjectBuilder().add("value", "db postgres"))
+        .build().toString());
+
+    GoPluginApiResponse response = new DockerStepPlugin().handle(request);
+
+    JsonObject errors = Json.createReader(new StringReader(response.responseBody()))
+        .readObject().getJsonObject("errors");
+    assertEquals("Expected one error", 1, errors.size());
+    assertEquals("Wrong error", "Service must be given as <name>;<image>: 'db postgres'",
+        errors.getString("services"));
+  }
+
   @Test
   public void handleExecute() throws Exception {
     TestConsoleLogger logger = new TestConsoleLogger();
@@ -111,12 +158,10 @@ public class DockerStepPluginTest {
     when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
 
     PowerMockito.mockStatic(DockerUtils.class);
-    when(DockerUtils.createNetwork()).thenReturn("test_net");
-    when(DockerUtils.startService(anyString(), anyString(), anyMap(), anyString())).thenReturn("123");
-    when(DockerUtils.runScript(anyString(), anyString(), anyString(), anyMap(), anyString(), anyString())).thenReturn(0L);
-
-    PowerMockito.mockStatic(File.class);
-    when(File.createTempFile(anyString(), anyString(), any(File.class))).thenReturn(new File("/dev/null"));
+    when(DockerUtils.createNetwork(anyString())).thenReturn("test_net");
+    PowerMockito.doAnswer(i -> ((Collection<String>) i.getArgument(7)).add("123")).when(DockerUtils.class);
+    DockerUtils.startServices(anyMap(), anyMap(), any(), anyMap(), anyInt(), anyString(), any(), anyCollection());
+    when(DockerUtils.runScript(anyString(), anyString(), anyString(), anyMap(), anyString(), any(), anyString(), any(), any(), anyString(), any(), anyString(), any())).thenReturn(0L);
 
     DefaultGoPluginApiRequest request = new DefaultGoPluginApiRequest(null, null, "execute");
     JsonObject requestBody = Json.createObjectBuilder()
@@ -133,6 +178,9 @@ public class DockerStepPluginTest {
                     .add("services", Json.createObjectBuilder()
                             .add("value", "serv1;debian:test\n")
                             .build())
+                    .add("timingsFile", Json.createObjectBuilder()
+                            .add("value", "")
+                            .build())
                     .build())
             .add("context", Json.createObjectBuilder()
                     .add("workingDirectory", "pipelines/test")
@@ -146,16 +194,18 @@ public class DockerStepPluginTest {
     final GoPluginApiResponse response = new DockerStepPlugin().handle(request);
 
     PowerMockito.verifyStatic(DockerUtils.class);
-    DockerUtils.pullImage("ubuntu:latest");
-    DockerUtils.createNetwork();
+    DockerUtils.pullImages(Arrays.asList("ubuntu:latest", "debian:test"), PullPolicy.ALWAYS);
+    DockerUtils.createNetwork(anyString());
     Map<String, String> envs = new HashMap<>();
     envs.put("ENV1", "value1");
     envs.put("ENV2", "value2");
-    DockerUtils.startService("serv1", "debian:test", envs, null);
-    DockerUtils.runScript(eq("ubuntu:latest"), anyString(),
+    DockerUtils.startServices(eq(Collections.singletonMap("serv1", "debian:test")), eq(envs),
+            eq("test_net"), eq(Collections.emptyMap()), eq(120), anyString(), eq(ResourceLimits.UNLIMITED), anyCollection());
+    DockerUtils.runScript(eq("ubuntu:latest"), eq("#! /usr/bin/env bash\n\nset -ex\n\nHello\nWorld\n"),
             eq(Paths.get(System.getProperty("user.dir"), "pipelines/test").toAbsolutePath().toString()),
-            eq(envs), anyString(), anyString());
-    DockerUtils.removeContainer("123");
+            eq(envs), anyString(), anyString(), anyString(), eq(ResourceLimits.UNLIMITED), eq(Mounts.NONE),
+            eq(""), any(), anyString(), eq(Watchdog.NONE));
+    DockerUtils.removeContainers(Collections.singletonList("123"), 60);
     DockerUtils.removeNetwork("test_net");
     assertEquals("Expected 2xx response", DefaultGoPluginApiResponse.SUCCESS_RESPONSE_CODE,
         response.responseCode());
@@ -163,7 +213,7 @@ public class DockerStepPluginTest {
     assertEquals("Expected success", Boolean.TRUE, responseBody.getBoolean("success"));
     assertEquals("Wrong message", "Container completed with status 0",
         Json.createReader(new StringReader(response.responseBody())).readObject().getString("message"));
-    assertEquals("Should se 2 lines of output", logger.logLines.size(), 2);
+    assertEquals("Should se 3 lines of output", logger.logLines.size(), 3);
   }
 
   @Test
@@ -173,11 +223,9 @@ public class DockerStepPluginTest {
     when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
 
     PowerMockito.mockStatic(DockerUtils.class);
-    when(DockerUtils.startService(anyString(), anyString(), anyMap(), anyString())).thenReturn("123");
-    when(DockerUtils.runScript(anyString(), anyString(), anyString(), anyMap(), anyString(), anyString())).thenReturn(0L);
-
-    PowerMockito.mockStatic(File.class);
-    when(File.createTempFile(anyString(), anyString(), any(File.class))).thenReturn(new File("/dev/null"));
+    PowerMockito.doAnswer(i -> ((Collection<String>) i.getArgument(7)).add("123")).when(DockerUtils.class);
+    DockerUtils.startServices(anyMap(), anyMap(), any(), anyMap(), anyInt(), anyString(), any(), anyCollection());
+    when(DockerUtils.runScript(anyString(), anyString(), anyString(), anyMap(), anyString(), any(), anyString(), any(), any(), anyString(), any(), anyString(), any())).thenReturn(0L);
 
     DefaultGoPluginApiRequest request = new DefaultGoPluginApiRequest(null, null, "execute");
     JsonObject requestBody = Json.createObjectBuilder()
@@ -194,6 +242,9 @@ public class DockerStepPluginTest {
                     .add("services", Json.createObjectBuilder()
                             .add("value", "serv1;debian:test\n")
                             .build())
+                    .add("timingsFile", Json.createObjectBuilder()
+                            .add("value", "")
+                            .build())
                     .build())
             .add("context", Json.createObjectBuilder()
                     .add("workingDirectory", "pipelines/test")
@@ -207,21 +258,203 @@ public class DockerStepPluginTest {
     final GoPluginApiResponse response = new DockerStepPlugin().handle(request);
 
     PowerMockito.verifyStatic(DockerUtils.class, never());
-    DockerUtils.pullImage("ubuntu:latest");
+    DockerUtils.pullImages(anyCollection(), any(PullPolicy.class));
     Map<String, String> envs = new HashMap<>();
     envs.put("ENV1", "value1");
     envs.put("ENV2", "value2");
-    DockerUtils.startService("serv1", "debian:test", envs, null);
+    DockerUtils.startServices(eq(Collections.singletonMap("serv1", "debian:test")), eq(envs),
+            eq("test_net"), eq(Collections.emptyMap()), eq(120), anyString(), eq(ResourceLimits.UNLIMITED), anyCollection());
     DockerUtils.runScript(eq("ubuntu:latest"), anyString(),
             eq(Paths.get(System.getProperty("user.dir"), "pipelines/test").toAbsolutePath().toString()),
-            eq(envs), anyString(), anyString());
-    DockerUtils.removeContainer("123");
+            eq(envs), anyString(), anyString(), anyString(), eq(ResourceLimits.UNLIMITED), eq(Mounts.NONE),
+            eq(""), any(), anyString(), eq(Watchdog.NONE));
+    DockerUtils.removeContainers(Collections.singletonList("123"), 60);
     assertEquals("Expected 2xx response", DefaultGoPluginApiResponse.SUCCESS_RESPONSE_CODE,
             response.responseCode());
     final JsonObject responseBody = Json.createReader(new StringReader(response.responseBody())).readObject();
     assertEquals("Expected success", Boolean.TRUE, responseBody.getBoolean("success"));
     assertEquals("Wrong message", "Container completed with status 0",
             Json.createReader(new StringReader(response.responseBody())).readObject().getString("message"));
-    assertEquals("Should se 2 lines of output", logger.logLines.size(), 2);
+    assertEquals("Should se 3 lines of output", logger.logLines.size(), 3);
+  }
+
+  @Test
+  public void handleExecuteSteps() throws Exception {
+    TestConsoleLogger logger = new TestConsoleLogger();
+    PowerMockito.mockStatic(JobConsoleLogger.class);
+    when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
+
+    PowerMockito.mockStatic(DockerUtils.class);
+    when(DockerUtils.runScript(anyString(), anyString(), anyString(), anyMap(), anyString(), any(), anyString(), any(), any(), eq("[build] "), any(), anyString(), any())).thenReturn(0L);
+    when(DockerUtils.runScript(anyString(), anyString(), anyString(), anyMap(), anyString(), any(), anyString(), any(), any(), eq("[test] "), any(), anyString(), any())).thenReturn(2L);
+
+    DefaultGoPluginApiRequest request = new DefaultGoPluginApiRequest(null, null, "execute");
+    JsonObject requestBody = Json.createObjectBuilder()
+            .add("config", Json.createObjectBuilder()
+                    .add("image", Json.createObjectBuilder()
+                            .add("value", "ubuntu:latest")
+                            .build())
+                    .add("pull", Json.createObjectBuilder()
+                            .add("value", "false")
+                            .build())
+                    .add("steps", Json.createObjectBuilder()
+                            .add("value", "build;\n  make\ntest;debian:test;build\n  make test\ndeploy;;test\n  make deploy\n")
+                            .build())
+                    .add("timingsFile", Json.createObjectBuilder()
+                            .add("value", "")
+                            .build())
+                    .build())
+            .add("context", Json.createObjectBuilder()
+                    .add("workingDirectory", "pipelines/test")
+                    .add("environmentVariables", Json.createObjectBuilder().build())
+                    .build())
+            .build();
+    request.setRequestBody(requestBody.toString());
+    final GoPluginApiResponse response = new DockerStepPlugin().handle(request);
+
+    PowerMockito.verifyStatic(DockerUtils.class);
+    DockerUtils.runScript(eq("ubuntu:latest"), eq("#! /usr/bin/env bash\n\nset -ex\n\nmake\n"), anyString(),
+            anyMap(), anyString(), any(), anyString(), any(), any(), eq("[build] "), any(),
+            eq("docker-step-output-build.log"), any());
+    PowerMockito.verifyStatic(DockerUtils.class);
+    DockerUtils.runScript(eq("debian:test"), eq("#! /usr/bin/env bash\n\nset -ex\n\nmake test\n"), anyString(),
+            anyMap(), anyString(), any(), anyString(), any(), any(), eq("[test] "), any(),
+            eq("docker-step-output-test.log"), any());
+    final JsonObject responseBody = Json.createReader(new StringReader(response.responseBody())).readObject();
+    assertEquals("Expected failure", Boolean.FALSE, responseBody.getBoolean("success"));
+    assertThat("Wrong message", responseBody.getString("message"),
+        allOf(startsWith("Sub-steps completed: build: 0 ("), containsString("test: 2 ("),
+            endsWith("deploy: skipped")));
+  }
+
+  @Test
+  public void handleExecuteShards() throws Exception {
+    TestConsoleLogger logger = new TestConsoleLogger();
+    PowerMockito.mockStatic(JobConsoleLogger.class);
+    when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
+
+    PowerMockito.mockStatic(DockerUtils.class);
+    when(DockerUtils.runScript(anyString(), anyString(), anyString(), anyMap(), anyString(), any(), anyString(), any(), any(), anyString(), any(), anyString(), any())).thenReturn(0L);
+
+    DefaultGoPluginApiRequest request = new DefaultGoPluginApiRequest(null, null, "execute");
+    JsonObject requestBody = Json.createObjectBuilder()
+            .add("config", Json.createObjectBuilder()
+                    .add("image", Json.createObjectBuilder()
+                            .add("value", "ubuntu:latest")
+                            .build())
+                    .add("pull", Json.createObjectBuilder()
+                            .add("value", "false")
+                            .build())
+                    .add("commands", Json.createObjectBuilder()
+                            .add("value", "make test")
+                            .build())
+                    .add("parallelism", Json.createObjectBuilder()
+                            .add("value", "2")
+                            .build())
+                    .add("timingsFile", Json.createObjectBuilder()
+                            .add("value", "")
+                            .build())
+                    .build())
+            .add("context", Json.createObjectBuilder()
+                    .add("workingDirectory", "pipelines/test")
+                    .add("environmentVariables", Json.createObjectBuilder()
+                            .add("ENV1", "value1")
+                            .build())
+                    .build())
+            .build();
+    request.setRequestBody(requestBody.toString());
+    final GoPluginApiResponse response = new DockerStepPlugin().handle(request);
+
+    for (int shard = 0; shard < 2; shard++) {
+      Map<String, String> envs = new HashMap<>();
+      envs.put("ENV1", "value1");
+      envs.put("SHARD_INDEX", String.valueOf(shard));
+      envs.put("SHARD_TOTAL", "2");
+      PowerMockito.verifyStatic(DockerUtils.class);
+      DockerUtils.runScript(eq("ubuntu:latest"), anyString(), anyString(), eq(envs), anyString(), any(),
+              anyString(), any(), any(), eq("[shard " + shard + "] "), any(),
+              eq("docker-step-output-shard" + shard + ".log"), any());
+    }
+    final JsonObject responseBody = Json.createReader(new StringReader(response.responseBody())).readObject();
+    assertEquals("Expected success", Boolean.TRUE, responseBody.getBoolean("success"));
+    assertEquals("Wrong message", "2 shards completed with status 0", responseBody.getString("message"));
+  }
+
+  @Test
+  public void handleExecuteTimeout() throws Exception {
+    TestConsoleLogger logger = new TestConsoleLogger();
+    PowerMockito.mockStatic(JobConsoleLogger.class);
+    when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
+
+    PowerMockito.mockStatic(DockerUtils.class);
+    when(DockerUtils.runScript(anyString(), anyString(), anyString(), anyMap(), anyString(), any(), anyString(), any(), any(), anyString(), any(), anyString(), any()))
+            .thenThrow(new StepTimeoutException("Step timed out after 30 minutes"));
+
+    DefaultGoPluginApiRequest request = new DefaultGoPluginApiRequest(null, null, "execute");
+    JsonObject requestBody = Json.createObjectBuilder()
+            .add("config", Json.createObjectBuilder()
+                    .add("image", Json.createObjectBuilder()
+                            .add("value", "ubuntu:latest")
+                            .build())
+                    .add("pull", Json.createObjectBuilder()
+                            .add("value", "false")
+                            .build())
+                    .add("commands", Json.createObjectBuilder()
+                            .add("value", "sleep infinity")
+                            .build())
+                    .add("timeout", Json.createObjectBuilder()
+                            .add("value", "30")
+                            .build())
+                    .add("timingsFile", Json.createObjectBuilder()
+                            .add("value", "")
+                            .build())
+                    .build())
+            .add("context", Json.createObjectBuilder()
+                    .add("workingDirectory", "pipelines/test")
+                    .add("environmentVariables", Json.createObjectBuilder().build())
+                    .build())
+            .build();
+    request.setRequestBody(requestBody.toString());
+    final GoPluginApiResponse response = new DockerStepPlugin().handle(request);
+
+    PowerMockito.verifyStatic(DockerUtils.class);
+    DockerUtils.runScript(anyString(), anyString(), anyString(), anyMap(), anyString(), any(), anyString(),
+            any(), any(), anyString(), any(), anyString(), argThat(watchdog -> watchdog != Watchdog.NONE));
+    final JsonObject responseBody = Json.createReader(new StringReader(response.responseBody())).readObject();
+    assertEquals("Expected failure", Boolean.FALSE, responseBody.getBoolean("success"));
+    assertEquals("Wrong message", "Step timed out after 30 minutes", responseBody.getString("message"));
+    assertThat("Reason not printed", logger.logLines, hasItem("Step timed out after 30 minutes"));
+  }
+
+  @Test
+  public void handleExecuteBadConfig() throws Exception {
+    DefaultGoPluginApiRequest request = new DefaultGoPluginApiRequest(null, null, "execute");
+    JsonObject requestBody = Json.createObjectBuilder()
+            .add("config", Json.createObjectBuilder()
+                    .add("image", Json.createObjectBuilder()
+                            .add("value", "ubuntu:latest")
+                            .build())
+                    .add("pull", Json.createObjectBuilder()
+                            .add("value", "false")
+                            .build())
+                    .add("commands", Json.createObjectBuilder()
+                            .add("value", "ls")
+                            .build())
+                    .add("parallelism", Json.createObjectBuilder()
+                            .add("value", "many")
+                            .build())
+                    .build())
+            .add("context", Json.createObjectBuilder()
+                    .add("workingDirectory", "pipelines/test")
+                    .add("environmentVariables", Json.createObjectBuilder().build())
+                    .build())
+            .build();
+    request.setRequestBody(requestBody.toString());
+    final GoPluginApiResponse response = new DockerStepPlugin().handle(request);
+
+    final JsonObject responseBody = Json.createReader(new StringReader(response.responseBody())).readObject();
+    assertEquals("Expected failure", Boolean.FALSE, responseBody.getBoolean("success"));
+    assertEquals("Wrong message", "Parallelism must be a number of shards from 1 to 64: 'many'",
+            responseBody.getString("message"));
   }
 }
@@ -0,0 +1,135 @@
+package no.h_nh.docker_step.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.powermock.api.mockito.PowerMockito.doThrow;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.spotify.docker.client.DefaultDockerClient;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.exceptions.NotFoundException;
+import com.spotify.docker.client.messages.ContainerConfig;
+import com.spotify.docker.client.messages.ContainerCreation;
+import com.spotify.docker.client.messages.Volume;
+import com.spotify.docker.client.messages.VolumeList;
+import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
+
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({DefaultDockerClient.class, JobConsoleLogger.class})
+public class CacheVolumesTest {
+
+    @Test
+    public void parse() {
+        final Map<String, String> caches = CacheVolumes.parse("/working/node_modules;file:yarn.lock\n/root/.m2");
+        assertEquals("Wrong key", "file:yarn.lock", caches.get("/working/node_modules"));
+        assertEquals("Wrong key", "", caches.get("/root/.m2"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseRelativePath() {
+        CacheVolumes.parse(".m2");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseWorkingDirectory() {
+        CacheVolumes.parse("/working/");
+    }
+
+    @Test
+    public void volumeName() {
+        final String name = CacheVolumes.volumeName("pipe", "/root/.m2", "");
+        assertTrue("Wrong prefix", name.startsWith("docker-step-cache-"));
+        assertEquals("Name not stable", name, CacheVolumes.volumeName("pipe", "/root/.m2", ""));
+        assertNotEquals("Pipeline should matter", name, CacheVolumes.volumeName("other", "/root/.m2", ""));
+        assertNotEquals("Key should matter", name, CacheVolumes.volumeName("pipe", "/root/.m2", "v2"));
+    }
+
+    @Test
+    public void resolveKey() throws Exception {
+        final Path dir = Files.createTempDirectory("cache-key");
+        try {
+            Files.write(dir.resolve("yarn.lock"), "a@1.0.0".getBytes(StandardCharsets.UTF_8));
+            final String first = CacheVolumes.resolveKey("file:yarn.lock", dir.toString());
+            Files.write(dir.resolve("yarn.lock"), "a@1.0.1".getBytes(StandardCharsets.UTF_8));
+
+            assertNotEquals("Content should matter", first,
+                    CacheVolumes.resolveKey("file:yarn.lock", dir.toString()));
+            assertEquals("Wrong key for missing file", "file:other.lock:missing",
+                    CacheVolumes.resolveKey("file:other.lock", dir.toString()));
+            assertEquals("Plain key changed", "v1", CacheVolumes.resolveKey("v1", dir.toString()));
+        } finally {
+            Files.deleteIfExists(dir.resolve("yarn.lock"));
+            Files.delete(dir);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void resolveKeyOutsideWorkingDirectory() throws Exception {
+        CacheVolumes.resolveKey("file:../secret", "/some-dir");
+    }
+
+    @Test
+    public void evictBeyondLimit() throws Exception {
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        final List<Volume> volumes = new ArrayList<>();
+        for (int i = 10; i < 22; i++) {
+            final Volume volume = mock(Volume.class);
+            when(volume.name()).thenReturn("docker-step-cache-" + i);
+            volumes.add(volume);
+        }
+        final VolumeList list = mock(VolumeList.class);
+        when(list.volumes()).thenReturn(volumes);
+        when(dockerClient.listVolumes(any(), any())).thenReturn(list);
+        DockerUtils.dockerClient.set(dockerClient);
+
+        CacheVolumes.evictNow();
+
+        verify(dockerClient).removeVolume("docker-step-cache-10");
+        verify(dockerClient).removeVolume("docker-step-cache-11");
+        verify(dockerClient, never()).removeVolume("docker-step-cache-12");
+    }
+
+    @Test
+    public void prepareWithoutChown() throws Exception {
+        final TestConsoleLogger logger = new TestConsoleLogger();
+        PowerMockito.mockStatic(JobConsoleLogger.class);
+        when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        when(dockerClient.inspectVolume(anyString())).thenThrow(new NotFoundException("no volume"));
+        when(dockerClient.createContainer(any(ContainerConfig.class))).thenReturn(
+                ContainerCreation.builder().id("123").build());
+        doThrow(new DockerException("exec: \"chown\": executable file not found"))
+                .when(dockerClient).startContainer("123");
+        DockerUtils.dockerClient.set(dockerClient);
+
+        final List<String> volumes = CacheVolumes.prepare(Collections.singletonMap("/root/.m2", ""),
+                "distroless:latest", "1000:1000", "/some-dir", Collections.emptyMap());
+
+        assertEquals("Volume should still be used", 1, volumes.size());
+        verify(dockerClient).removeContainer(eq("123"), any(), any());
+        assertTrue("Warning missing", logger.logLines.stream().anyMatch(line ->
+                line.startsWith("WARNING: Could not hand cache volume") && line.contains("chown")));
+    }
+}
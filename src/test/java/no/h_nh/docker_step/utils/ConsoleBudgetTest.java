@@ -0,0 +1,32 @@
+package no.h_nh.docker_step.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class ConsoleBudgetTest {
+
+    @Test
+    public void parse() {
+        assertTrue("Empty budget should be unlimited", ConsoleBudget.parse("").isUnlimited());
+
+        final ConsoleBudget budget = ConsoleBudget.parse(
+                "lines-per-second=1000, bytes-per-second=64k\ntotal-lines=100000,total-bytes=10m");
+        assertEquals("Wrong lines per second", 1000, budget.linesPerSecond);
+        assertEquals("Wrong bytes per second", 64 * 1024, budget.bytesPerSecond);
+        assertEquals("Wrong total lines", 100000, budget.totalLines);
+        assertEquals("Wrong total bytes", 10 * 1024 * 1024, budget.totalBytes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseUnknownKey() {
+        ConsoleBudget.parse("lines=10");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseBadSize() {
+        ConsoleBudget.parse("total-bytes=lots");
+    }
+}
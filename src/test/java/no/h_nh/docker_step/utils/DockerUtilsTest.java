@@ -1,26 +1,53 @@
 package no.h_nh.docker_step.utils;
 
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.startsWith;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.powermock.api.mockito.PowerMockito.doAnswer;
 import static org.powermock.api.mockito.PowerMockito.doNothing;
+import static org.powermock.api.mockito.PowerMockito.doThrow;
 import static org.powermock.api.mockito.PowerMockito.mock;
 import static org.powermock.api.mockito.PowerMockito.when;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.powermock.api.mockito.PowerMockito;
@@ -37,7 +64,12 @@ import com.spotify.docker.client.exceptions.ImagePullFailedException;
 import com.spotify.docker.client.messages.ContainerConfig;
 import com.spotify.docker.client.messages.ContainerCreation;
 import com.spotify.docker.client.messages.ContainerExit;
+import com.spotify.docker.client.messages.ContainerInfo;
+import com.spotify.docker.client.messages.ContainerState;
+import com.spotify.docker.client.messages.Health;
+import com.spotify.docker.client.messages.ImageInfo;
 import com.spotify.docker.client.messages.NetworkCreation;
+import com.spotify.docker.client.messages.ProgressDetail;
 import com.spotify.docker.client.messages.ProgressMessage;
 import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
 
@@ -46,6 +78,28 @@ import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
 @PrepareForTest({JobConsoleLogger.class, DefaultDockerClient.class})
 public class DockerUtilsTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readOwnerFromAgentGuid() throws Exception {
+        final Path agentDir = folder.getRoot().toPath();
+        Files.createDirectories(agentDir.resolve("config"));
+        Files.write(agentDir.resolve("config/guid.txt"), "5a2f-agent\n".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("Wrong owner", "5a2f-agent", DockerUtils.readOwner(agentDir));
+    }
+
+    @Test
+    public void readOwnerWithoutGuid() throws Exception {
+        final Path agentDir = folder.getRoot().toPath();
+
+        assertEquals("Expected no owner", "", DockerUtils.readOwner(agentDir));
+        try (Stream<Path> files = Files.list(agentDir)) {
+            assertEquals("No files should be made", 0, files.count());
+        }
+    }
+
     @Test
     public void pullImage() throws Exception {
         TestConsoleLogger logger = new TestConsoleLogger();
@@ -62,7 +116,8 @@ public class DockerUtilsTest {
                     .progress(ProgressMessage.builder().status("Image pulled").build());
             return null;
         }).when(dockerClient).pull(anyString(), any(ProgressHandler.class));
-        DockerUtils.dockerClient = dockerClient;
+        DockerUtils.dockerClient.set(dockerClient);
+        DockerUtils.pullClient.set(dockerClient);
 
         DockerUtils.pullImage("busybox:latest");
 
@@ -73,6 +128,30 @@ public class DockerUtilsTest {
         assertEquals("Console log incorrect", "Image pulled", logger.logLines.get(3));
     }
 
+    @Test
+    public void pullImageCountsCompletedLayers() throws Exception {
+        PowerMockito.mockStatic(JobConsoleLogger.class);
+        when(JobConsoleLogger.getConsoleLogger()).thenReturn(new TestConsoleLogger());
+
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        doAnswer(i -> {
+            ((ProgressHandler) i.getArgument(1)).progress(ProgressMessage.builder().id("layer")
+                    .status("Downloading").progressDetail(ProgressDetail.create(600L, null, 1000L))
+                    .build());
+            ((ProgressHandler) i.getArgument(1)).progress(ProgressMessage.builder().id("layer")
+                    .status("Download complete").build());
+            return null;
+        }).when(dockerClient).pull(anyString(), any(ProgressHandler.class));
+        DockerUtils.dockerClient.set(dockerClient);
+        DockerUtils.pullClient.set(dockerClient);
+        final long before = Metrics.PULL_BYTES.get("layers:latest");
+
+        DockerUtils.pullImage("layers:latest");
+
+        assertEquals("Whole layer should be counted", before + 1000,
+                Metrics.PULL_BYTES.get("layers:latest"));
+    }
+
     @Test(expected = ImageNotFoundException.class)
     public void pullBadImage() throws Exception {
         TestConsoleLogger logger = new TestConsoleLogger();
@@ -85,7 +164,8 @@ public class DockerUtilsTest {
                     .progress(ProgressMessage.builder().error("404 not found").build());
             return null;
         }).when(dockerClient).pull(anyString(), any(ProgressHandler.class));
-        DockerUtils.dockerClient = dockerClient;
+        DockerUtils.dockerClient.set(dockerClient);
+        DockerUtils.pullClient.set(dockerClient);
 
         DockerUtils.pullImage("bad:image");
     }
@@ -102,11 +182,108 @@ public class DockerUtilsTest {
                     .progress(ProgressMessage.builder().error("Server error").build());
             return null;
         }).when(dockerClient).pull(anyString(), any(ProgressHandler.class));
-        DockerUtils.dockerClient = dockerClient;
+        DockerUtils.dockerClient.set(dockerClient);
+        DockerUtils.pullClient.set(dockerClient);
 
         DockerUtils.pullImage("busybox:latest");
     }
 
+    @Test
+    public void pullImages() throws Exception {
+        TestConsoleLogger logger = new TestConsoleLogger();
+        PowerMockito.mockStatic(JobConsoleLogger.class);
+        when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
+
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        doAnswer(i -> {
+            ((ProgressHandler) i.getArgument(1))
+                    .progress(ProgressMessage.builder().status("Image pulled").build());
+            return null;
+        }).when(dockerClient).pull(anyString(), any(ProgressHandler.class));
+        DockerUtils.dockerClient.set(dockerClient);
+        DockerUtils.pullClient.set(dockerClient);
+
+        DockerUtils.pullImages(Arrays.asList("busybox:latest", "postgres:13", "busybox:latest"),
+                PullPolicy.ALWAYS);
+
+        verify(dockerClient, times(1)).pull(eq("busybox:latest"), any(ProgressHandler.class));
+        verify(dockerClient, times(1)).pull(eq("postgres:13"), any(ProgressHandler.class));
+        assertEquals("Wrong number of lines", 4, logger.logLines.size());
+        assertThat("Console log incorrect", logger.logLines,
+                hasItems("Pulling image: busybox:latest", "busybox:latest: Image pulled",
+                        "Pulling image: postgres:13", "postgres:13: Image pulled"));
+    }
+
+    @Test(expected = ImageNotFoundException.class)
+    public void pullImagesBadImage() throws Exception {
+        TestConsoleLogger logger = new TestConsoleLogger();
+        PowerMockito.mockStatic(JobConsoleLogger.class);
+        when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
+
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        doAnswer(i -> {
+            ((ProgressHandler) i.getArgument(1))
+                    .progress(ProgressMessage.builder().error("404 not found").build());
+            return null;
+        }).when(dockerClient).pull(eq("bad:image"), any(ProgressHandler.class));
+        doAnswer(i -> {
+            Thread.sleep(10000);
+            return null;
+        }).when(dockerClient).pull(eq("slow:image"), any(ProgressHandler.class));
+        DockerUtils.dockerClient.set(dockerClient);
+        DockerUtils.pullClient.set(dockerClient);
+
+        DockerUtils.pullImages(Arrays.asList("slow:image", "bad:image"), PullPolicy.ALWAYS);
+    }
+
+    @Test
+    public void pullImagesIfNotPresent() throws Exception {
+        TestConsoleLogger logger = new TestConsoleLogger();
+        PowerMockito.mockStatic(JobConsoleLogger.class);
+        when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
+
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        final ImageInfo present = mock(ImageInfo.class);
+        when(present.id()).thenReturn("sha256:abc");
+        when(dockerClient.inspectImage("busybox:latest")).thenReturn(present);
+        when(dockerClient.inspectImage("postgres:13"))
+                .thenThrow(new ImageNotFoundException("postgres:13"))
+                .thenReturn(present);
+        DockerUtils.dockerClient.set(dockerClient);
+        DockerUtils.pullClient.set(dockerClient);
+
+        DockerUtils.pullImages(Arrays.asList("busybox:latest", "postgres:13"),
+                PullPolicy.parse("if-not-present", null));
+
+        verify(dockerClient, never()).pull(eq("busybox:latest"), any(ProgressHandler.class));
+        verify(dockerClient, times(1)).pull(eq("postgres:13"), any(ProgressHandler.class));
+        assertEquals("Console log incorrect", "Image present, not pulling: busybox:latest",
+                logger.logLines.get(0));
+    }
+
+    @Test
+    public void pullImagesIfOlderThan() throws Exception {
+        TestConsoleLogger logger = new TestConsoleLogger();
+        PowerMockito.mockStatic(JobConsoleLogger.class);
+        when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
+
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        final ImageInfo present = mock(ImageInfo.class);
+        when(present.id()).thenReturn("sha256:abc");
+        when(dockerClient.inspectImage("busybox:latest")).thenReturn(present);
+        DockerUtils.dockerClient.set(dockerClient);
+        DockerUtils.pullClient.set(dockerClient);
+        ImageCache.clear();
+
+        final PullPolicy policy = PullPolicy.parse("if-older-than", "10");
+        DockerUtils.pullImages(Collections.singletonList("busybox:latest"), policy);
+        DockerUtils.pullImages(Collections.singletonList("busybox:latest"), policy);
+
+        verify(dockerClient, times(1)).pull(eq("busybox:latest"), any(ProgressHandler.class));
+        assertEquals("Console log incorrect", "Image checked recently, not pulling: busybox:latest",
+                logger.logLines.get(logger.logLines.size() - 1));
+    }
+
     @Test
     public void startService() throws Exception {
         final TestConsoleLogger logger = new TestConsoleLogger();
@@ -117,7 +294,7 @@ public class DockerUtilsTest {
         when(dockerClient.createContainer(any(ContainerConfig.class), anyString())).thenReturn(
                 ContainerCreation.builder().id("123").build());
         doNothing().when(dockerClient).startContainer(anyString());
-        DockerUtils.dockerClient = dockerClient;
+        DockerUtils.dockerClient.set(dockerClient);
 
         final Map<String, String> envs = new HashMap<>();
         envs.put("ENV1", "value1");
@@ -145,11 +322,138 @@ public class DockerUtilsTest {
 
         final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
         when(dockerClient.createContainer(any(ContainerConfig.class), anyString())).thenThrow(new DockerException("FAIL"));
-        DockerUtils.dockerClient = dockerClient;
+        DockerUtils.dockerClient.set(dockerClient);
 
         DockerUtils.startService("serv1", "bad:image", Collections.emptyMap(), null);
     }
 
+    @Test
+    public void startServicesWithReadiness() throws Exception {
+        final TestConsoleLogger logger = new TestConsoleLogger();
+        PowerMockito.mockStatic(JobConsoleLogger.class);
+        when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
+
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        when(dockerClient.createContainer(any(ContainerConfig.class), eq("serv1_job1"))).thenReturn(
+                ContainerCreation.builder().id("123").build());
+        when(dockerClient.createContainer(any(ContainerConfig.class), eq("serv2_job1"))).thenReturn(
+                ContainerCreation.builder().id("456").build());
+        when(dockerClient.logs(anyString(), any())).thenReturn(new FakeLogStream());
+        final Health starting = mock(Health.class);
+        when(starting.status()).thenReturn("starting");
+        final Health healthy = mock(Health.class);
+        when(healthy.status()).thenReturn("healthy");
+        final ContainerState state = mock(ContainerState.class);
+        when(state.running()).thenReturn(true);
+        when(state.health()).thenReturn(starting, starting, healthy);
+        final ContainerInfo info = mock(ContainerInfo.class);
+        when(info.state()).thenReturn(state);
+        when(dockerClient.inspectContainer("123")).thenReturn(info);
+        DockerUtils.dockerClient.set(dockerClient);
+
+        final Map<String, String> services = new HashMap<>();
+        services.put("serv1", "postgres:13");
+        services.put("serv2", "redis:6");
+        final List<String> ids = Collections.synchronizedList(new ArrayList<>());
+
+        DockerUtils.startServices(services, Collections.emptyMap(), "net",
+                Collections.singletonMap("serv1", ReadinessCheck.parse("health")), 10, "job1",
+                ResourceLimits.UNLIMITED, ids);
+
+        assertThat("Ids not collected", ids, hasItems("123", "456"));
+        verify(dockerClient).startContainer("123");
+        verify(dockerClient).startContainer("456");
+        assertThat("Console log incorrect", logger.logLines,
+                hasItems("Waiting for service 'serv1': healthy status", "Service 'serv1' is ready"));
+    }
+
+    @Test
+    public void startServicesWithPortProbe() throws Exception {
+        final TestConsoleLogger logger = new TestConsoleLogger();
+        PowerMockito.mockStatic(JobConsoleLogger.class);
+        when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
+
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        when(dockerClient.createContainer(any(ContainerConfig.class), eq("db_job1"))).thenReturn(
+                ContainerCreation.builder().id("123").build());
+        when(dockerClient.createContainer(any(ContainerConfig.class))).thenReturn(
+                ContainerCreation.builder().id("789").build());
+        when(dockerClient.logs(anyString(), any())).thenReturn(new FakeLogStream());
+        final ContainerState running = mock(ContainerState.class);
+        when(running.running()).thenReturn(true);
+        final ContainerInfo service = mock(ContainerInfo.class);
+        when(service.state()).thenReturn(running);
+        when(dockerClient.inspectContainer("123")).thenReturn(service);
+        final ContainerState listening = mock(ContainerState.class);
+        when(listening.running()).thenReturn(true, false);
+        when(listening.exitCode()).thenReturn(0L);
+        final ContainerInfo probe = mock(ContainerInfo.class);
+        when(probe.state()).thenReturn(listening);
+        when(dockerClient.inspectContainer("789")).thenReturn(probe);
+        DockerUtils.dockerClient.set(dockerClient);
+
+        DockerUtils.startServices(Collections.singletonMap("db", "postgres:13"), Collections.emptyMap(),
+                "net", Collections.singletonMap("db", ReadinessCheck.parse("tcp:5432")), 10, "job1",
+                ResourceLimits.UNLIMITED, new ArrayList<>());
+
+        final ArgumentCaptor<ContainerConfig> config = ArgumentCaptor.forClass(ContainerConfig.class);
+        verify(dockerClient).createContainer(config.capture());
+        assertEquals("Probe should share the network of the service", "container:123",
+                config.getValue().hostConfig().networkMode());
+        assertThat("Probe should look for port 5432", config.getValue().cmd().get(2), containsString(":1538 "));
+        verify(dockerClient).removeContainer(eq("789"), any());
+        assertThat("Console log incorrect", logger.logLines, hasItem("Service 'db' is ready"));
+    }
+
+    @Test(expected = DockerException.class)
+    public void startServicesNotReady() throws Exception {
+        final TestConsoleLogger logger = new TestConsoleLogger();
+        PowerMockito.mockStatic(JobConsoleLogger.class);
+        when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
+
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        when(dockerClient.createContainer(any(ContainerConfig.class), anyString())).thenReturn(
+                ContainerCreation.builder().id("123").build());
+        final FakeLogStream logStream = new FakeLogStream();
+        logStream.add("starting up");
+        when(dockerClient.logs(anyString(), any())).thenReturn(logStream);
+        DockerUtils.dockerClient.set(dockerClient);
+
+        DockerUtils.startServices(Collections.singletonMap("serv1", "postgres:13"),
+                Collections.emptyMap(), "net",
+                Collections.singletonMap("serv1", ReadinessCheck.parse("log:ready")), 1, "job1",
+                ResourceLimits.UNLIMITED, new ArrayList<>());
+    }
+
+    @Test
+    public void stopServiceLogs() throws Exception {
+        final TestConsoleLogger logger = new TestConsoleLogger();
+        PowerMockito.mockStatic(JobConsoleLogger.class);
+        when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
+
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        when(dockerClient.createContainer(any(ContainerConfig.class), anyString())).thenReturn(
+                ContainerCreation.builder().id("123").build());
+        final CountDownLatch closed = new CountDownLatch(1);
+        final LogStream logStream = mock(LogStream.class);
+        when(logStream.hasNext()).thenAnswer(i -> !closed.await(10, TimeUnit.SECONDS));
+        doAnswer(i -> {
+            closed.countDown();
+            return null;
+        }).when(logStream).close();
+        when(dockerClient.logs(anyString(), any())).thenReturn(logStream);
+        DockerUtils.dockerClient.set(dockerClient);
+
+        DockerUtils.startServices(Collections.singletonMap("serv1", "redis:6"),
+                Collections.emptyMap(), "net", Collections.emptyMap(), 10, "job1",
+                ResourceLimits.UNLIMITED, new ArrayList<>());
+        DockerUtils.stopServiceLogs("job1");
+
+        verify(logStream, atLeastOnce()).close();
+        assertThat("Cancelled follower reported an error", logger.logLines,
+                not(hasItem(startsWith("Exception from"))));
+    }
+
     @Test
     public void runScript() throws Exception {
         final TestConsoleLogger logger = new TestConsoleLogger();
@@ -162,18 +466,19 @@ public class DockerUtilsTest {
         doNothing().when(dockerClient).startContainer(anyString());
 
         FakeLogStream logStream = new FakeLogStream();
-        logStream.add("Script result line 1");
-        logStream.add("Script result line 2");
+        logStream.add("Script result line 1\n");
+        logStream.add("Script result line 2\n");
         when(dockerClient.logs(anyString(), any())).thenReturn(logStream);
         when(dockerClient.waitContainer("123")).thenReturn(ContainerExit.create(0L));
-        DockerUtils.dockerClient = dockerClient;
+        DockerUtils.dockerClient.set(dockerClient);
 
         final Map<String, String> envs = new HashMap<>();
         envs.put("ENV1", "value1");
         envs.put("ENV2", "value2");
 
-        final long exitCode = DockerUtils.runScript("busybox:latest", "tmpscript.sh",
-                "/some-dir", envs, "10:20", null);
+        final long exitCode = DockerUtils.runScript("busybox:latest", "echo hello\n",
+                "/some-dir", envs, "10:20", null, "job1", ResourceLimits.UNLIMITED,
+                Mounts.NONE, "", ConsoleBudget.UNLIMITED, "output.log", Watchdog.NONE);
 
         assertEquals("Wrong exit code", 0, exitCode);
         assertEquals("Wrong number of lines", 8, logger.logLines.size());
@@ -191,9 +496,42 @@ public class DockerUtilsTest {
         verify(dockerClient).createContainer(containerConfig.capture());
         assertEquals("Image wrong", "busybox:latest", containerConfig.getValue().image());
         assertEquals("Working dir incorrect", "/working", containerConfig.getValue().workingDir());
+        assertEquals("Command incorrect", Collections.singletonList(DockerUtils.SCRIPT_PATH),
+                containerConfig.getValue().cmd());
         assertEquals("Bind mount not correct", "/some-dir:/working", containerConfig.getValue().hostConfig().binds().get(0));
+        verify(dockerClient).copyToContainer(any(InputStream.class), eq("123"), eq("/"));
         assertThat("Environment vars not correct", containerConfig.getValue().env(),
                 hasItems("ENV1=value1", "ENV2=value2"));
+        assertEquals("Job label not set", "job1",
+                containerConfig.getValue().labels().get(DockerUtils.JOB_LABEL));
+    }
+
+    @Test
+    public void runScriptInterrupted() throws Exception {
+        final TestConsoleLogger logger = new TestConsoleLogger();
+        PowerMockito.mockStatic(JobConsoleLogger.class);
+        when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
+
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        when(dockerClient.createContainer(any(ContainerConfig.class))).thenReturn(
+                ContainerCreation.builder().id("123").build());
+        when(dockerClient.logs(anyString(), any())).thenReturn(new FakeLogStream());
+        when(dockerClient.waitContainer("123")).thenThrow(new InterruptedException());
+        DockerUtils.dockerClient.set(dockerClient);
+
+        try {
+            DockerUtils.runScript("busybox:latest", "echo hello\n", "/some-dir",
+                    Collections.emptyMap(), "10:20", null, "job1", ResourceLimits.UNLIMITED,
+                    Mounts.NONE, "", ConsoleBudget.UNLIMITED, "output.log", Watchdog.NONE);
+            fail("Expected InterruptedException");
+        } catch (InterruptedException e) {
+            // Expected
+        }
+
+        verify(dockerClient, never()).stopContainer(anyString(), anyInt());
+        verify(dockerClient).removeContainer(eq("123"), any(), any());
+        assertThat("Container should be killed", logger.logLines,
+                hasItem("Killing and removing container: 123"));
     }
 
     @Test
@@ -204,7 +542,7 @@ public class DockerUtilsTest {
 
         final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
         doNothing().when(dockerClient).removeContainer(anyString(), any());
-        DockerUtils.dockerClient = dockerClient;
+        DockerUtils.dockerClient.set(dockerClient);
 
         DockerUtils.removeContainer("123");
 
@@ -213,6 +551,63 @@ public class DockerUtilsTest {
         assertEquals("Console log incorrect", "Removing container: 123", logger.logLines.get(1));
     }
 
+    @Test
+    public void removeContainerKill() throws Exception {
+        final TestConsoleLogger logger = new TestConsoleLogger();
+        PowerMockito.mockStatic(JobConsoleLogger.class);
+        when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
+
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        DockerUtils.dockerClient.set(dockerClient);
+
+        DockerUtils.removeContainer("123", 0);
+
+        verify(dockerClient, never()).stopContainer(anyString(), anyInt());
+        verify(dockerClient).removeContainer(eq("123"), any(), any());
+        assertEquals("Wrong number of lines output", 1, logger.logLines.size());
+        assertEquals("Console log incorrect", "Killing and removing container: 123", logger.logLines.get(0));
+    }
+
+    @Test
+    public void removeContainers() throws Exception {
+        final TestConsoleLogger logger = new TestConsoleLogger();
+        PowerMockito.mockStatic(JobConsoleLogger.class);
+        when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
+
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        doThrow(new DockerException("FAIL")).when(dockerClient).stopContainer("123", 5);
+        DockerUtils.dockerClient.set(dockerClient);
+
+        try {
+            DockerUtils.removeContainers(Arrays.asList("123", "456", "789"), 5);
+            fail("Expected failure to be thrown");
+        } catch (DockerException e) {
+            assertEquals("Wrong failure", "FAIL", e.getMessage());
+        }
+
+        verify(dockerClient).stopContainer("456", 5);
+        verify(dockerClient).stopContainer("789", 5);
+        verify(dockerClient).removeContainer(eq("456"), any());
+        verify(dockerClient).removeContainer(eq("789"), any());
+    }
+
+    @Test
+    public void resetOnConnectionFailure() throws Exception {
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        DockerUtils.dockerClient.set(dockerClient);
+        DockerUtils.pullClient.set(dockerClient);
+
+        assertFalse("Reset on timeout", DockerUtils.resetOnConnectionFailure(
+                new DockerException(new SocketTimeoutException("Read timed out"))));
+        assertSame("Client discarded on timeout", dockerClient, DockerUtils.dockerClient.get());
+
+        assertTrue("No reset on lost socket", DockerUtils.resetOnConnectionFailure(
+                new DockerException(new IOException("No such file or directory"))));
+        assertNull("Client kept", DockerUtils.dockerClient.get());
+        assertNull("Pull client kept", DockerUtils.pullClient.get());
+        verify(dockerClient, times(2)).close();
+    }
+
     @Test
     public void createNetwork() throws Exception {
         final TestConsoleLogger logger = new TestConsoleLogger();
@@ -224,9 +619,9 @@ public class DockerUtilsTest {
         when(network.warnings()).thenReturn(null);
         when(network.id()).thenReturn("123");
         when(dockerClient.createNetwork(any())).thenReturn(network);
-        DockerUtils.dockerClient = dockerClient;
+        DockerUtils.dockerClient.set(dockerClient);
 
-        final String id = DockerUtils.createNetwork();
+        final String id = DockerUtils.createNetwork("job1");
         assertEquals("Wrong network id", "123", id);
     }
 
@@ -238,7 +633,7 @@ public class DockerUtilsTest {
 
         final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
         doNothing().when(dockerClient).removeNetwork(anyString());
-        DockerUtils.dockerClient = dockerClient;
+        DockerUtils.dockerClient.set(dockerClient);
 
         DockerUtils.removeNetwork("123");
     }
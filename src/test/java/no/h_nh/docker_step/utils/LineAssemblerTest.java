@@ -0,0 +1,69 @@
+package no.h_nh.docker_step.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class LineAssemblerTest {
+
+    @Test
+    public void linesInOneFrame() {
+        final List<String> lines = new ArrayList<>();
+        try (LineAssembler assembler = new LineAssembler("p: ", lines::add)) {
+            assembler.feed(ByteBuffer.wrap("line 1\r\nline 2\n".getBytes(StandardCharsets.UTF_8)));
+        }
+        assertEquals("Wrong output", Arrays.asList("p: line 1\np: line 2"), lines);
+    }
+
+    @Test
+    public void linesSplitAcrossFrames() {
+        final byte[] output = "h\u00e9llo w\u00f6rld\nsecond \ud83d\ude00 line\nlast"
+                .getBytes(StandardCharsets.UTF_8);
+        for (int split = 1; split < output.length; split++) {
+            final List<String> lines = new ArrayList<>();
+            try (LineAssembler assembler = new LineAssembler("", lines::add)) {
+                assembler.feed(ByteBuffer.wrap(output, 0, split));
+                assembler.feed(ByteBuffer.wrap(output, split, output.length - split));
+            }
+            assertEquals("Wrong output when split at " + split,
+                    "h\u00e9llo w\u00f6rld\nsecond \ud83d\ude00 line\nlast", String.join("\n", lines));
+        }
+    }
+
+    @Test
+    public void lineListener() {
+        final List<String> seen = new ArrayList<>();
+        try (LineAssembler assembler = new LineAssembler("p: ", line -> { }, seen::add)) {
+            assembler.feed(ByteBuffer.wrap("a\nb\n".getBytes(StandardCharsets.UTF_8)));
+            assembler.removeLineListener();
+            assembler.feed(ByteBuffer.wrap("c\n".getBytes(StandardCharsets.UTF_8)));
+            assertEquals("Wrong line count", 3, assembler.lines());
+        }
+        assertEquals("Wrong lines seen", Arrays.asList("a", "b"), seen);
+    }
+
+    @Test
+    public void longLinesAreCut() {
+        final char[] progress = new char[50000];
+        Arrays.fill(progress, '#');
+        final byte[] frame = new String(progress).getBytes(StandardCharsets.UTF_8);
+        final List<String> batches = new ArrayList<>();
+        try (LineAssembler assembler = new LineAssembler("", batches::add)) {
+            for (int i = 0; i < 4; i++)
+                assembler.feed(ByteBuffer.wrap(frame));
+            assertEquals("Full lines should be cut", 3, assembler.lines());
+        }
+
+        final String[] lines = String.join("\n", batches).split("\n");
+        assertEquals("Wrong number of lines", 4, lines.length);
+        assertEquals("Wrong line length", 65536, lines[0].length());
+        assertEquals("Output lost", 200000, String.join("", lines).length());
+    }
+}
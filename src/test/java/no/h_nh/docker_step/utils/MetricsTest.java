@@ -0,0 +1,101 @@
+package no.h_nh.docker_step.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.exceptions.ImageNotFoundException;
+
+
+public class MetricsTest {
+
+    @Test
+    public void counter() {
+        final Metrics.Counter counter = new Metrics.Counter("test_counter_total", "A test counter.", "image");
+        counter.add(3, "ubuntu:latest");
+        counter.add(4, "ubuntu:latest");
+        counter.add(1, "quoted\"image");
+
+        assertEquals("Wrong count", 7, counter.get("ubuntu:latest"));
+        final String text = Metrics.render();
+        assertTrue("Missing help", text.contains("# HELP test_counter_total A test counter.\n"));
+        assertTrue("Missing type", text.contains("# TYPE test_counter_total counter\n"));
+        assertTrue("Missing value", text.contains("test_counter_total{image=\"ubuntu:latest\"} 7\n"));
+        assertTrue("Label not escaped", text.contains("test_counter_total{image=\"quoted\\\"image\"} 1\n"));
+    }
+
+    @Test
+    public void histogram() {
+        final Metrics.Histogram histogram = new Metrics.Histogram("test_seconds", "A test histogram.");
+        histogram.observe(0.3);
+        histogram.observe(7);
+        histogram.observe(1000);
+
+        assertEquals("Wrong count", 3, histogram.count());
+        final String text = Metrics.render();
+        assertTrue("Missing type", text.contains("# TYPE test_seconds histogram\n"));
+        assertTrue("Wrong bucket", text.contains("test_seconds_bucket{le=\"0.25\"} 0\n"));
+        assertTrue("Wrong bucket", text.contains("test_seconds_bucket{le=\"0.5\"} 1\n"));
+        assertTrue("Wrong bucket", text.contains("test_seconds_bucket{le=\"10.0\"} 2\n"));
+        assertTrue("Wrong bucket", text.contains("test_seconds_bucket{le=\"600.0\"} 2\n"));
+        assertTrue("Wrong bucket", text.contains("test_seconds_bucket{le=\"+Inf\"} 3\n"));
+        assertTrue("Wrong sum", text.contains("test_seconds_sum 1007.300000\n"));
+        assertTrue("Wrong count", text.contains("test_seconds_count 3\n"));
+    }
+
+    @Test
+    public void services() {
+        final String text = Metrics.render();
+        Metrics.serviceStarted("test-service");
+        assertTrue("Service not counted", !text.equals(Metrics.render()));
+        Metrics.containerRemoved("test-service");
+        assertEquals("Service not removed", text, Metrics.render());
+    }
+
+    @Test
+    public void countErrors() throws Exception {
+        final DockerClient client = mock(DockerClient.class);
+        when(client.inspectImage("missing")).thenThrow(new ImageNotFoundException("missing"));
+        when(client.inspectImage("broken")).thenThrow(new DockerException("FAIL"));
+        final DockerClient counting = Metrics.countErrors(client);
+        final long before = Metrics.API_ERRORS.get("inspectImage");
+
+        try {
+            counting.inspectImage("missing");
+            fail("Exception not passed on");
+        } catch (ImageNotFoundException e) {
+            // Expected
+        }
+        try {
+            counting.inspectImage("broken");
+            fail("Exception not passed on");
+        } catch (DockerException e) {
+            // Expected
+        }
+        counting.inspectImage("present");
+
+        assertEquals("Wrong number of errors", before + 1, Metrics.API_ERRORS.get("inspectImage"));
+    }
+
+    @Test
+    public void write() throws Exception {
+        final Path file = Files.createTempFile("metrics", ".prom");
+        try {
+            Metrics.write(file);
+            final String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            assertTrue("Missing metric", text.contains("# TYPE docker_step_pull_seconds histogram\n"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
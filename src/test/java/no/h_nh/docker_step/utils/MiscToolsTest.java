@@ -1,19 +1,53 @@
 package no.h_nh.docker_step.utils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.sun.security.auth.module.UnixSystem;
 
 
 public class MiscToolsTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void getAgentUser() {
         final String agentUser = MiscTools.getAgentUser();
         final String sysUser = String.format("%d:%d",
                 new UnixSystem().getUid(), new UnixSystem().getGid());
         assertEquals("Failed to fetch agent user", sysUser, agentUser);
+        assertSame("Agent user not cached", agentUser, MiscTools.getAgentUser());
+    }
+
+    @Test
+    public void readAgentUser() throws Exception {
+        final Path status = folder.getRoot().toPath().resolve("status");
+        Files.write(status, Arrays.asList("Name:\tjava", "Uid:\t1000\t1001\t1001\t1001",
+                "Gid:\t2000\t2001\t2001\t2001", "Groups:\t2000"));
+        assertEquals("Wrong effective ids", "1001:2001",
+                MiscTools.readAgentUser(status, folder.getRoot().toPath()));
+    }
+
+    @Test
+    public void readAgentUserWithoutProc() {
+        final String sysUser = String.format("%d:%d",
+                new UnixSystem().getUid(), new UnixSystem().getGid());
+        assertEquals("Expected owner of the directory", sysUser, MiscTools.readAgentUser(
+                folder.getRoot().toPath().resolve("missing"), folder.getRoot().toPath()));
+    }
+
+    @Test
+    public void readAgentUserMissing() {
+        final Path missing = folder.getRoot().toPath().resolve("missing");
+        assertEquals("Expected no user", "", MiscTools.readAgentUser(missing, missing));
     }
 }
@@ -0,0 +1,103 @@
+package no.h_nh.docker_step.utils;
+
+import static org.junit.Assert.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.spotify.docker.client.DefaultDockerClient;
+import com.spotify.docker.client.exceptions.NotFoundException;
+import com.spotify.docker.client.messages.Network;
+
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({DefaultDockerClient.class})
+public class NetworkPoolTest {
+
+    private static Map<String, Network.Container> attached() {
+        return Collections.singletonMap("c1", mock(Network.Container.class));
+    }
+
+    private static Network network(String id, String session, Map<String, Network.Container> containers) {
+        final Network network = mock(Network.class);
+        final Map<String, String> labels = new HashMap<>();
+        labels.put(NetworkPool.NETWORK_LABEL, "job");
+        labels.put(DockerUtils.SESSION_LABEL, session);
+        when(network.id()).thenReturn(id);
+        when(network.labels()).thenReturn(labels);
+        when(network.containers()).thenReturn(containers);
+        return network;
+    }
+
+    @Test
+    public void sweepRemovesOrphansAfterThreeSightings() throws Exception {
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        final Network orphan = network("orphan", "other", Collections.emptyMap());
+        final Network own = network("own", DockerUtils.SESSION, Collections.emptyMap());
+        final Network busy = network("busy", "other", attached());
+        when(dockerClient.listNetworks(any())).thenReturn(Arrays.asList(orphan, own, busy));
+        when(dockerClient.inspectNetwork("orphan")).thenReturn(orphan);
+        when(dockerClient.inspectNetwork("busy")).thenReturn(busy);
+        DockerUtils.dockerClient.set(dockerClient);
+
+        NetworkPool.sweep();
+        NetworkPool.sweep();
+        verify(dockerClient, never()).removeNetwork(anyString());
+
+        NetworkPool.sweep();
+        verify(dockerClient).removeNetwork("orphan");
+        verify(dockerClient, never()).removeNetwork("own");
+        verify(dockerClient, never()).removeNetwork("busy");
+        verify(dockerClient, never()).inspectNetwork("own");
+    }
+
+    @Test
+    public void sweepForgetsNetworksInUse() throws Exception {
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        final Network empty = network("net1", "other", Collections.emptyMap());
+        final Network used = network("net1", "other", attached());
+        when(dockerClient.listNetworks(any())).thenReturn(Collections.singletonList(empty));
+        when(dockerClient.inspectNetwork("net1")).thenReturn(empty, empty, used, empty, empty);
+        DockerUtils.dockerClient.set(dockerClient);
+
+        for (int i = 0; i < 5; i++)
+            NetworkPool.sweep();
+        verify(dockerClient, never()).removeNetwork(anyString());
+    }
+
+    @Test
+    public void releaseRemovesJobNetwork() throws Exception {
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        final Network network = network("net1", DockerUtils.SESSION, attached());
+        when(dockerClient.inspectNetwork("net1")).thenReturn(network);
+        DockerUtils.dockerClient.set(dockerClient);
+
+        assertFalse("Job network pooled", NetworkPool.release("net1"));
+        verify(dockerClient).disconnectFromNetwork("c1", "net1", true);
+        verify(dockerClient).removeNetwork("net1");
+    }
+
+    @Test
+    public void releaseMissingNetwork() throws Exception {
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        when(dockerClient.inspectNetwork("net1")).thenThrow(new NotFoundException("net1"));
+        DockerUtils.dockerClient.set(dockerClient);
+
+        assertFalse("Missing network pooled", NetworkPool.release("net1"));
+        verify(dockerClient, times(0)).removeNetwork(anyString());
+    }
+}
@@ -0,0 +1,37 @@
+package no.h_nh.docker_step.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class PullPolicyTest {
+
+    @Test
+    public void parse() {
+        assertEquals("Wrong mode", PullPolicy.Mode.ALWAYS, PullPolicy.parse("true", null).mode);
+        assertEquals("Wrong mode", PullPolicy.Mode.ALWAYS, PullPolicy.parse(null, null).mode);
+        assertEquals("Wrong mode", PullPolicy.Mode.NEVER, PullPolicy.parse("False", null).mode);
+        assertEquals("Wrong mode", PullPolicy.Mode.IF_NOT_PRESENT,
+                PullPolicy.parse("if-not-present", null).mode);
+
+        final PullPolicy policy = PullPolicy.parse("if-older-than", "15");
+        assertEquals("Wrong mode", PullPolicy.Mode.IF_OLDER_THAN, policy.mode);
+        assertEquals("Wrong max age", 15 * 60 * 1000L, policy.maxAgeMillis);
+    }
+
+    @Test
+    public void parseUnknownPolicyMeansNoPull() {
+        assertEquals("Wrong mode", PullPolicy.Mode.NEVER, PullPolicy.parse("sometimes", null).mode);
+        assertEquals("Wrong mode", PullPolicy.Mode.NEVER, PullPolicy.parse("", null).mode);
+        assertFalse("Should not be known", PullPolicy.isKnown("sometimes"));
+        assertTrue("Should be known", PullPolicy.isKnown(" If-Not-Present "));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseBadMaxAge() {
+        PullPolicy.parse("if-older-than", "soon");
+    }
+}
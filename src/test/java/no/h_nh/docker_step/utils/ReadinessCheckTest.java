@@ -0,0 +1,38 @@
+package no.h_nh.docker_step.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class ReadinessCheckTest {
+
+    @Test
+    public void parse() {
+        assertEquals("Wrong type", ReadinessCheck.Type.HEALTH, ReadinessCheck.parse("health").type);
+
+        final ReadinessCheck tcp = ReadinessCheck.parse("tcp:5432");
+        assertEquals("Wrong type", ReadinessCheck.Type.TCP, tcp.type);
+        assertEquals("Wrong port", 5432, tcp.port);
+
+        final ReadinessCheck log = ReadinessCheck.parse("log:ready to accept");
+        assertEquals("Wrong type", ReadinessCheck.Type.LOG, log.type);
+        assertTrue("Pattern should match", log.pattern.matcher("LOG: ready to accept connections").find());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseBadPort() {
+        ReadinessCheck.parse("tcp:http");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseBadRegex() {
+        ReadinessCheck.parse("log:[unclosed");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseUnknown() {
+        ReadinessCheck.parse("ping");
+    }
+}
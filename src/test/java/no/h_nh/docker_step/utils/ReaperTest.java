@@ -0,0 +1,110 @@
+package no.h_nh.docker_step.utils;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.powermock.api.mockito.PowerMockito.doThrow;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.spotify.docker.client.DefaultDockerClient;
+import com.spotify.docker.client.DockerClient.ListContainersParam;
+import com.spotify.docker.client.DockerClient.ListNetworksParam;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.messages.Container;
+import com.spotify.docker.client.messages.Network;
+
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({DefaultDockerClient.class})
+public class ReaperTest {
+
+    @Test
+    public void reap() throws Exception {
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        final Container container = mock(Container.class);
+        when(container.id()).thenReturn("123");
+        when(dockerClient.listContainers(any(), any())).thenReturn(Collections.singletonList(container));
+        final Network network = mock(Network.class);
+        when(network.id()).thenReturn("net1");
+        when(dockerClient.listNetworks(any())).thenReturn(Collections.singletonList(network));
+        DockerUtils.dockerClient.set(dockerClient);
+
+        Reaper.reap(ListContainersParam.withLabel(DockerUtils.JOB_LABEL, "job1"),
+                ListNetworksParam.withLabel(DockerUtils.JOB_LABEL, "job1"), 0, false);
+
+        verify(dockerClient, never()).stopContainer(anyString(), anyInt());
+        verify(dockerClient).removeContainer(eq("123"), any(), any());
+        verify(dockerClient).removeNetwork("net1");
+    }
+
+    @Test
+    public void reapGivenContainers() throws Exception {
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        when(dockerClient.listContainers(any(), any())).thenReturn(Collections.emptyList());
+        when(dockerClient.listNetworks(any())).thenReturn(Collections.emptyList());
+        DockerUtils.dockerClient.set(dockerClient);
+
+        Reaper.reap(Arrays.asList("123", "456"),
+                ListContainersParam.withLabel(DockerUtils.JOB_LABEL, "job1"),
+                ListNetworksParam.withLabel(DockerUtils.JOB_LABEL, "job1"), 10, false);
+
+        verify(dockerClient).stopContainer("123", 10);
+        verify(dockerClient).stopContainer("456", 10);
+        verify(dockerClient).removeContainer(eq("123"), any(), any());
+        verify(dockerClient).removeContainer(eq("456"), any(), any());
+    }
+
+    @Test
+    public void reapSkipsCurrentSession() throws Exception {
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        final Container current = mock(Container.class);
+        when(current.id()).thenReturn("123");
+        when(current.labels()).thenReturn(
+                Collections.singletonMap(DockerUtils.SESSION_LABEL, DockerUtils.SESSION));
+        final Container earlier = mock(Container.class);
+        when(earlier.id()).thenReturn("456");
+        when(earlier.labels()).thenReturn(
+                Collections.singletonMap(DockerUtils.SESSION_LABEL, "earlier"));
+        when(dockerClient.listContainers(any(), any())).thenReturn(Arrays.asList(current, earlier));
+        when(dockerClient.listNetworks(any())).thenReturn(Collections.emptyList());
+        DockerUtils.dockerClient.set(dockerClient);
+
+        Reaper.reap(ListContainersParam.withLabel(DockerUtils.OWNER_LABEL, DockerUtils.owner()),
+                ListNetworksParam.withLabel(DockerUtils.OWNER_LABEL, DockerUtils.owner()), 0, true);
+
+        verify(dockerClient, never()).removeContainer(eq("123"), any(), any());
+        verify(dockerClient).removeContainer(eq("456"), any(), any());
+    }
+
+    @Test(expected = DockerException.class)
+    public void reapContinuesAfterFailure() throws Exception {
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        final Container container = mock(Container.class);
+        when(container.id()).thenReturn("123");
+        when(dockerClient.listContainers(any(), any())).thenReturn(Collections.singletonList(container));
+        doThrow(new DockerException("FAIL")).when(dockerClient).removeContainer(eq("123"), any(), any());
+        final Network network = mock(Network.class);
+        when(network.id()).thenReturn("net1");
+        when(dockerClient.listNetworks(any())).thenReturn(Collections.singletonList(network));
+        DockerUtils.dockerClient.set(dockerClient);
+
+        try {
+            Reaper.reap(ListContainersParam.withLabel(DockerUtils.JOB_LABEL, "job1"),
+                    ListNetworksParam.withLabel(DockerUtils.JOB_LABEL, "job1"), 0, false);
+        } finally {
+            verify(dockerClient).removeNetwork("net1");
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package no.h_nh.docker_step.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class ResourceLimitsTest {
+
+    @Test
+    public void parse() {
+        assertTrue("Empty limits should be unlimited", ResourceLimits.parse("").isUnlimited());
+
+        final ResourceLimits limits = ResourceLimits.parse(
+                "cpus=1.5, cpuset=0-3,6\nmemory=2g,memory-swap=-1, pids-limit=256, shm-size=256m,"
+                        + " ulimit=nofile=1024:4096, ulimit=nproc=512");
+        assertEquals("Wrong cpus", 1500000000L, limits.nanoCpus);
+        assertEquals("Wrong cpuset", "0-3,6", limits.cpuset);
+        assertEquals("Wrong memory", 2L * 1024 * 1024 * 1024, limits.memory);
+        assertEquals("Wrong memory-swap", -1, limits.memorySwap);
+        assertEquals("Wrong pids limit", 256, limits.pidsLimit);
+        assertEquals("Wrong shm size", 256 * 1024 * 1024, limits.shmSize);
+        assertArrayEquals("Wrong nofile", new long[] {1024, 4096}, limits.ulimits.get("nofile"));
+        assertArrayEquals("Wrong nproc", new long[] {512, 512}, limits.ulimits.get("nproc"));
+    }
+
+    @Test
+    public void toStringIsStable() {
+        final ResourceLimits limits = ResourceLimits.parse("ulimit=nproc=10, cpus=2, ulimit=core=0");
+        assertEquals("Wrong description", "cpus=2, ulimit=core=0:0, ulimit=nproc=10:10",
+                limits.toString());
+        assertEquals("Not parsed back", limits.toString(), ResourceLimits.parse(limits.toString()).toString());
+        assertNull("Unexpected cpuset", limits.cpuset);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseUnknownKey() {
+        ResourceLimits.parse("disk=10g");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseUnknownUlimit() {
+        ResourceLimits.parse("ulimit=files=10");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseSwapBelowMemory() {
+        ResourceLimits.parse("memory=1g, memory-swap=512m");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseSoftAboveHard() {
+        ResourceLimits.parse("ulimit=nofile=2048:1024");
+    }
+}
@@ -0,0 +1,57 @@
+package no.h_nh.docker_step.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+public class ServicePoolTest {
+
+    @Test
+    public void disabledByDefault() throws Exception {
+        assertFalse("Pool should be disabled", ServicePool.isEnabled());
+        assertNull("Nothing should be taken", ServicePool.take("db", "postgres:13", Collections.emptyMap(),
+                ResourceLimits.UNLIMITED));
+    }
+
+    @Test
+    public void serviceEnvironment() {
+        final Map<String, String> env = new HashMap<>();
+        env.put("POSTGRES_USER", "test");
+        env.put("GO_PIPELINE_COUNTER", "42");
+        env.put("DB_HOST", "pg");
+
+        assertEquals("Wrong environment", Arrays.asList("DB_HOST=pg", "POSTGRES_USER=test"),
+                ServicePool.serviceEnvironment(env));
+    }
+
+    @Test
+    public void key() {
+        final Map<String, String> first = new HashMap<>();
+        first.put("POSTGRES_USER", "test");
+        first.put("GO_PIPELINE_COUNTER", "1");
+        final Map<String, String> second = new HashMap<>();
+        second.put("POSTGRES_USER", "test");
+        second.put("GO_PIPELINE_COUNTER", "2");
+        final Map<String, String> other = Collections.singletonMap("POSTGRES_USER", "other");
+
+        assertEquals("Job variables should not matter",
+                ServicePool.key("db", "postgres:13", ServicePool.serviceEnvironment(first),
+                        ResourceLimits.UNLIMITED),
+                ServicePool.key("db", "postgres:13", ServicePool.serviceEnvironment(second),
+                        ResourceLimits.UNLIMITED));
+        assertNotEquals("Environment should matter",
+                ServicePool.key("db", "postgres:13", ServicePool.serviceEnvironment(first),
+                        ResourceLimits.UNLIMITED),
+                ServicePool.key("db", "postgres:13", ServicePool.serviceEnvironment(other),
+                        ResourceLimits.UNLIMITED));
+    }
+}
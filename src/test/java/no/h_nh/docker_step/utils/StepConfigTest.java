@@ -1,8 +1,11 @@
 package no.h_nh.docker_step.utils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.StringReader;
 import java.nio.file.Paths;
 
 import javax.json.Json;
@@ -15,7 +18,43 @@ public class StepConfigTest {
 
     @Test
     public void parse() {
-        JsonObject request = Json.createObjectBuilder()
+        assertConfig(StepConfig.parse(new StringReader(request().toString())));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseStreamMissingImage() {
+        StepConfig.parse(new StringReader(
+                "{\"config\":{\"image\":{\"value\":null}},\"context\":{\"workingDirectory\":\"x\"}}"));
+    }
+
+    @Test
+    public void parseNegativeTimeout() {
+        try {
+            StepConfig.parse(new StringReader("{\"config\":{\"image\":{\"value\":\"image:tag\"},"
+                    + "\"pull\":{\"value\":\"false\"},\"commands\":{\"value\":\"ls\"},"
+                    + "\"stopTimeout\":{\"value\":\"-1\"}},"
+                    + "\"context\":{\"workingDirectory\":\"x\"}}"));
+            fail("Expected error");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Wrong error", "Invalid number for stopTimeout: '-1'", e.getMessage());
+        }
+    }
+
+    @Test
+    public void parseParallelism() {
+        assertEquals("Wrong default", 1, StepConfig.parseParallelism(""));
+        assertEquals("Wrong number of shards", 16, StepConfig.parseParallelism(" 16 "));
+        try {
+            StepConfig.parseParallelism("65");
+            fail("Expected error");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Wrong error", "Parallelism must be a number of shards from 1 to 64: '65'",
+                    e.getMessage());
+        }
+    }
+
+    private static JsonObject request() {
+        return Json.createObjectBuilder()
                 .add("config", Json.createObjectBuilder()
                         .add("image", Json.createObjectBuilder()
                                 .add("value", "image:tag")
@@ -29,6 +68,9 @@ public class StepConfigTest {
                         .add("services", Json.createObjectBuilder()
                                 .add("value", "serv1;img1:tag1\nserv2;img2:tag2")
                                 .build())
+                        .add("readiness", Json.createObjectBuilder()
+                                .add("value", "serv1;tcp:5432")
+                                .build())
                         .build())
                 .add("context", Json.createObjectBuilder()
                         .add("workingDirectory", "pipelines/test")
@@ -37,19 +79,30 @@ public class StepConfigTest {
                                 .add("ENV2", "value2")
                                 .build())
                         .build())
+                .add("extra", Json.createArrayBuilder()
+                        .add(Json.createObjectBuilder().add("value", "ignored").build())
+                        .build())
                 .build();
-        StepConfig config = StepConfig.parse(request);
+    }
+
+    private static void assertConfig(StepConfig config) {
 
         assertEquals("Unexpected image", config.image, "image:tag");
         assertTrue("Pull should be true", config.doPull);
+        assertEquals("Pull policy should be always", PullPolicy.Mode.ALWAYS, config.pullPolicy.mode);
         assertEquals("Wrong number of command lines", config.commands.length, 2);
         assertEquals("First command line is wrong", config.commands[0], "echo hi");
         assertEquals("Second command line is wrong", config.commands[1], "ls");
+        assertTrue("Should have no sub-steps", config.steps.isEmpty());
         assertEquals("Wrong number of services", config.services.size(), 2);
         assertTrue("Service 1 missing", config.services.containsKey("serv1"));
         assertEquals("Service 1 image is wrong", config.services.get("serv1"), "img1:tag1");
         assertTrue("Service 2 missing", config.services.containsKey("serv2"));
         assertEquals("Service 2 image is wrong", config.services.get("serv2"), "img2:tag2");
+        assertEquals("Wrong number of readiness checks", 1, config.readiness.size());
+        assertEquals("Readiness port is wrong", 5432, config.readiness.get("serv1").port);
+        assertEquals("Wrong default readiness timeout", 120, config.readinessTimeout);
+        assertNull("User should default to the agent user", config.user);
 
         String workingDir = Paths.get(System.getProperty("user.dir"), "pipelines/test")
                 .toAbsolutePath().toString();
@@ -0,0 +1,73 @@
+package no.h_nh.docker_step.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class StepOutputTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void withinBudget() throws Exception {
+        final List<String> console = new ArrayList<>();
+        final Path spillFile = folder.getRoot().toPath().resolve("output.log");
+        try (StepOutput output = new StepOutput("", console::add,
+                ConsoleBudget.parse("total-lines=10"), spillFile)) {
+            output.feed(ByteBuffer.wrap("line 1\nline 2\n".getBytes(StandardCharsets.UTF_8)));
+        }
+
+        assertEquals("Wrong console output", Arrays.asList("line 1", "line 2"),
+                Arrays.asList(String.join("\n", console).split("\n")));
+        assertFalse("Spill file should be removed", Files.exists(spillFile));
+    }
+
+    @Test
+    public void overBudget() throws Exception {
+        final List<String> console = new ArrayList<>();
+        final Path spillFile = folder.getRoot().toPath().resolve("output.log");
+        try (StepOutput output = new StepOutput("", console::add,
+                ConsoleBudget.parse("total-lines=3"), spillFile)) {
+            for (int i = 0; i < 100; i++)
+                output.feed(ByteBuffer.wrap(("line " + i + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        final List<String> lines = Arrays.asList(String.join("\n", console).split("\n"));
+        assertEquals("Head not printed", Arrays.asList("line 0", "line 1", "line 2"), lines.subList(0, 3));
+        assertTrue("Budget notice missing", lines.get(3).contains("Console budget (3 lines) exceeded"));
+        assertEquals("Tail not printed", "line 99", lines.get(lines.size() - 2));
+        assertEquals("Wrong number of lines", 3 + 1 + 1 + 50 + 1, lines.size());
+        assertTrue("Spill file should be kept", Files.exists(spillFile));
+        assertEquals("Spill file incomplete", 100, Files.readAllLines(spillFile).size());
+    }
+
+    @Test
+    public void lastLines() throws Exception {
+        final Path spillFile = folder.getRoot().toPath().resolve("output.log");
+        final StepOutput output = new StepOutput("", line -> {},
+                ConsoleBudget.parse("total-lines=3"), spillFile);
+        try {
+            for (int i = 0; i < 100; i++)
+                output.feed(ByteBuffer.wrap(("line " + i + "\n").getBytes(StandardCharsets.UTF_8)));
+        } finally {
+            output.close();
+        }
+
+        assertEquals("Wrong last lines", "line 97\nline 98\nline 99", output.lastLines(3));
+        assertEquals("Wrong last lines", "", output.lastLines(0));
+    }
+}
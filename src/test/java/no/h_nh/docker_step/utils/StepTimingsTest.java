@@ -0,0 +1,89 @@
+package no.h_nh.docker_step.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import org.junit.Test;
+
+
+public class StepTimingsTest {
+
+    @Test
+    public void spans() throws Exception {
+        final StepTimings timings = StepTimings.begin();
+        try (StepTimings.Span span = StepTimings.span("pull", "ubuntu:latest")) {
+            Thread.sleep(10);
+        }
+        final Thread thread = new Thread(() -> {
+            try (StepTimings.Span span = StepTimings.span("service start", "db")) {
+                // Recorded from a thread started by the step
+            }
+        });
+        thread.start();
+        thread.join();
+        timings.finish();
+        try (StepTimings.Span span = StepTimings.span("remove", "late")) {
+            // Dropped, the step is finished
+        }
+
+        final JsonArray spans = timings.toJson().getJsonArray("spans");
+        assertEquals("Wrong number of spans", 2, spans.size());
+        assertEquals("Wrong phase", "pull", spans.getJsonObject(0).getString("phase"));
+        assertTrue("Wrong duration", spans.getJsonObject(0).getJsonNumber("durationMillis").longValue() >= 10);
+        assertEquals("Wrong detail", "db", spans.getJsonObject(1).getString("detail"));
+
+        final String table = timings.table();
+        assertTrue("Missing span in table", table.contains("service start"));
+        assertTrue("Missing total in table", table.contains("total"));
+    }
+
+    @Test
+    public void detachedThread() throws Exception {
+        final StepTimings timings = StepTimings.begin();
+        final Thread thread = new Thread(StepTimings.detached(() -> {
+            try (StepTimings.Span span = StepTimings.span("remove", "pooled")) {
+                // Not recorded, a long-lived thread must not keep the step
+            }
+        }));
+        thread.start();
+        thread.join();
+        timings.finish();
+
+        assertEquals("Wrong number of spans", 0, timings.toJson().getJsonArray("spans").size());
+    }
+
+    @Test
+    public void noStep() {
+        try (StepTimings.Span span = StepTimings.span("pull", "ubuntu:latest")) {
+            // Nothing to record to
+        }
+    }
+
+    @Test
+    public void write() throws Exception {
+        final StepTimings timings = StepTimings.begin();
+        try (StepTimings.Span span = StepTimings.span("network", "create")) {
+            // Nothing
+        }
+        timings.finish();
+
+        final Path file = Files.createTempFile("timings", ".json");
+        try {
+            timings.write(file);
+            try (JsonReader reader = PluginJson.READERS.createReader(Files.newBufferedReader(file))) {
+                final JsonObject json = reader.readObject();
+                assertEquals("Wrong span", "network",
+                        json.getJsonArray("spans").getJsonObject(0).getString("phase"));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
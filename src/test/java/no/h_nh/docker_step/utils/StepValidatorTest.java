@@ -0,0 +1,130 @@
+package no.h_nh.docker_step.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+public class StepValidatorTest {
+
+    @Test
+    public void validConfig() {
+        final Map<String, String> config = new HashMap<>();
+        config.put("image", "registry.example.com:5000/team/app:1.2-rc");
+        config.put("pull", "if-older-than");
+        config.put("pullMaxAge", "30");
+        config.put("services", "db;postgres:13\ncache;redis:6");
+        config.put("readiness", "db;tcp:5432\ncache;log:Ready");
+        config.put("stopTimeout", "10");
+        config.put("consoleBudget", "total-lines=1000");
+        config.put("spillFile", "logs/output.log");
+        config.put("timingsFile", "logs/timings.json");
+        config.put("resourceLimits", "cpus=1.5, memory=2g, pids-limit=256");
+        config.put("cacheVolumes", "/root/.m2;file:pom.xml");
+        config.put("tmpfs", "/tmp;size=512m");
+        config.put("user", "1000:1000");
+        config.put("parallelism", "8");
+        config.put("timeout", "60");
+        config.put("idleTimeout", "15");
+
+        assertTrue("Expected no errors", StepValidator.validate(config).isEmpty());
+    }
+
+    @Test
+    public void invalidImage() {
+        final Map<String, String> errors = StepValidator.validate(single("image", "Ubuntu:"));
+        assertEquals("Wrong error", "Invalid image reference: 'Ubuntu:'", errors.get("image"));
+    }
+
+    @Test
+    public void invalidServices() {
+        assertEquals("Wrong error", "Service must be given as <name>;<image>: 'db postgres'",
+                StepValidator.validate(single("services", "db postgres")).get("services"));
+        assertEquals("Wrong error", "Duplicate service name: 'db'",
+                StepValidator.validate(single("services", "db;postgres\ndb;redis")).get("services"));
+        assertEquals("Wrong error", "Service name not allowed: 'localhost'",
+                StepValidator.validate(single("services", "localhost;redis")).get("services"));
+    }
+
+    @Test
+    public void readinessForUnknownService() {
+        final Map<String, String> config = new HashMap<>();
+        config.put("services", "db;postgres");
+        config.put("readiness", "mq;log:started");
+
+        assertEquals("Wrong error", "Readiness check for unknown service: 'mq'",
+                StepValidator.validate(config).get("readiness"));
+    }
+
+    @Test
+    public void invalidNumbers() {
+        assertEquals("Wrong error", "Must be a number of seconds: '-1'",
+                StepValidator.validate(single("stopTimeout", "-1")).get("stopTimeout"));
+        assertEquals("Wrong error", "Invalid pull policy: 'maybe'",
+                StepValidator.validate(single("pull", "maybe")).get("pull"));
+        assertEquals("Wrong error", "Parallelism must be a number of shards from 1 to 64: '0'",
+                StepValidator.validate(single("parallelism", "0")).get("parallelism"));
+        assertEquals("Wrong error", "Must be a number of minutes: '1h'",
+                StepValidator.validate(single("timeout", "1h")).get("timeout"));
+    }
+
+    @Test
+    public void invalidResourceLimits() {
+        assertEquals("Wrong error", "Invalid number of cpus: 'all'",
+                StepValidator.validate(single("resourceLimits", "cpus=all")).get("resourceLimits"));
+        assertEquals("Wrong error", "A memory-swap limit needs a memory limit",
+                StepValidator.validate(single("resourceLimits", "memory-swap=1g")).get("resourceLimits"));
+    }
+
+    @Test
+    public void invalidMounts() {
+        assertEquals("Wrong error", "Path of cache volume must be absolute: '.m2'",
+                StepValidator.validate(single("cacheVolumes", ".m2")).get("cacheVolumes"));
+        assertEquals("Wrong error", "Duplicate tmpfs path: '/tmp'",
+                StepValidator.validate(single("tmpfs", "/tmp\n/tmp;size=1g")).get("tmpfs"));
+    }
+
+    @Test
+    public void invalidSteps() {
+        assertEquals("Wrong error", "Invalid image reference for sub-step 'build': 'Maven'",
+                StepValidator.validate(single("steps", "build;Maven\n  mvn package")).get("steps"));
+        assertEquals("Wrong error", "Sub-step 'build' has no commands",
+                StepValidator.validate(single("steps", "build;maven")).get("steps"));
+
+        final Map<String, String> config = new HashMap<>();
+        config.put("commands", "make");
+        config.put("steps", "build;\n  make");
+        assertEquals("Wrong error", "Either commands or steps must be given, not both",
+                StepValidator.validate(config).get("steps"));
+    }
+
+    @Test
+    public void invalidUser() {
+        assertEquals("Wrong error", "User must be given as <user>[:<group>] or <uid>[:<gid>]: 'a:b:c'",
+                StepValidator.validate(single("user", "a:b:c")).get("user"));
+    }
+
+    @Test
+    public void parametersNotValidated() {
+        assertTrue("Expected no errors", StepValidator.validate(single("image", "#{image}")).isEmpty());
+    }
+
+    @Test
+    public void cached() {
+        final Map<String, String> first = StepValidator.validate(single("image", "bad image"));
+        final Map<String, String> second = StepValidator.validate(single("image", "bad image"));
+
+        assertSame("Result not cached", first, second);
+    }
+
+    private static Map<String, String> single(String key, String value) {
+        final Map<String, String> config = new HashMap<>();
+        config.put(key, value);
+        return config;
+    }
+}
@@ -0,0 +1,124 @@
+package no.h_nh.docker_step.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+public class SubStepsTest {
+
+    @Test
+    public void parse() {
+        final List<SubSteps.Step> steps = SubSteps.parse(
+                "build;maven:3\n  mvn package\n    -DskipTests\n\ntest;;build\n  mvn test\nlint;node:16;\n\tnpm run lint\n");
+
+        assertEquals("Wrong number of sub-steps", 3, steps.size());
+        assertEquals("Wrong name", "build", steps.get(0).name);
+        assertEquals("Wrong image", "maven:3", steps.get(0).image);
+        assertArrayEquals("Wrong commands", new String[] {"mvn package", "  -DskipTests"}, steps.get(0).commands);
+        assertEquals("Image should default to the task image", "", steps.get(1).image);
+        assertEquals("Wrong dependencies", Collections.singletonList("build"), steps.get(1).after);
+        assertTrue("Should not depend on others", steps.get(2).after.isEmpty());
+        assertArrayEquals("Wrong commands", new String[] {"npm run lint"}, steps.get(2).commands);
+    }
+
+    @Test
+    public void parseErrors() {
+        assertError("Sub-step must be given as <name>;[<image>][;<after>,...]: 'build'", "build\n  make");
+        assertError("Commands before the first sub-step: 'make'", "  make\nbuild;\n  make");
+        assertError("Sub-step 'build' has no commands", "build;\ntest;\n  make");
+        assertError("Duplicate sub-step name: 'build'", "build;\n  make\nbuild;\n  make");
+        assertError("Sub-step 'test' comes after unknown sub-step: 'biuld'", "build;\n  make\ntest;;biuld\n  make");
+        assertError("Sub-step 'a' comes after itself", "a;;b\n  make\nb;;a\n  make");
+    }
+
+    @Test
+    public void run() throws Exception {
+        final List<SubSteps.Step> steps = SubSteps.parse(
+                "build;\n  make\nunit;;build\n  unit\nit;;build\n  it\nreport;;unit,it\n  report\n");
+        final List<String> started = Collections.synchronizedList(new ArrayList<>());
+        // Both tests must run at the same time to get past the latch.
+        final CountDownLatch tests = new CountDownLatch(2);
+
+        final List<SubSteps.Result> results = SubSteps.run(steps, step -> {
+            started.add(step.name);
+            if (step.name.equals("unit") || step.name.equals("it")) {
+                tests.countDown();
+                if (!tests.await(5, TimeUnit.SECONDS))
+                    return 1;
+            }
+            return 0;
+        });
+
+        assertEquals("Build should start first", "build", started.get(0));
+        assertEquals("Report should start last", "report", started.get(3));
+        assertTrue("All sub-steps should succeed", SubSteps.succeeded(results));
+        assertEquals("Results not in order given", "unit", results.get(1).name);
+    }
+
+    @Test
+    public void runStopsAfterFailure() throws Exception {
+        final List<SubSteps.Step> steps = SubSteps.parse("build;\n  make\ntest;;build\n  test\n");
+
+        final List<SubSteps.Result> results = SubSteps.run(steps, step -> 2);
+
+        assertFalse("Should fail", SubSteps.succeeded(results));
+        assertEquals("Wrong exit code", Long.valueOf(2), results.get(0).exitCode);
+        assertNull("Test should be skipped", results.get(1).exitCode);
+        assertTrue("Wrong summary", SubSteps.summary(results).matches("build: 2 \\(\\d+\\.\\ds\\), test: skipped"));
+    }
+
+    @Test
+    public void runThrowsFirstException() {
+        final List<SubSteps.Step> steps = SubSteps.parse("build;\n  make\n");
+        try {
+            SubSteps.run(steps, step -> {
+                throw new IllegalStateException("TESTERROR");
+            });
+            fail("Expected exception");
+        } catch (Exception e) {
+            assertEquals("Wrong exception", "TESTERROR", e.getMessage());
+        }
+    }
+
+    @Test
+    public void runShards() throws Exception {
+        final int[] seen = new int[4];
+        final List<SubSteps.Result> results = SubSteps.runShards(4, index -> {
+            seen[index]++;
+            return index == 2 ? 3 : 0;
+        });
+
+        assertArrayEquals("Every shard should run once", new int[] {1, 1, 1, 1}, seen);
+        assertEquals("Wrong name", "shard 2", results.get(2).name);
+        assertEquals("Wrong exit code", 3, SubSteps.exitCode(results));
+    }
+
+    @Test
+    public void spillFile() {
+        assertEquals("Wrong file", "logs/output-build.log", SubSteps.spillFile("logs/output.log", "build"));
+        assertEquals("Wrong file", "logs.d/output-build", SubSteps.spillFile("logs.d/output", "build"));
+        assertEquals("Wrong file", ".output-build", SubSteps.spillFile(".output", "build"));
+    }
+
+    private static void assertError(String expected, String spec) {
+        try {
+            SubSteps.parse(spec);
+            fail("Expected error for " + Arrays.asList(spec.split("\n")));
+        } catch (IllegalArgumentException e) {
+            assertEquals("Wrong error", expected, e.getMessage());
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package no.h_nh.docker_step.utils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
@@ -14,8 +15,9 @@ public class TestConsoleLogger extends JobConsoleLogger {
     }
 
     @Override
-    public void printLine(String line) {
-        this.logLines.add(line);
+    public synchronized void printLine(String line) {
+        // Log output is handed over in batches of lines.
+        this.logLines.addAll(Arrays.asList(line.split("\n", -1)));
         // System.out.println(line);
     }
 }
@@ -0,0 +1,165 @@
+package no.h_nh.docker_step.utils;
+
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.spotify.docker.client.DefaultDockerClient;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.messages.ContainerConfig;
+import com.spotify.docker.client.messages.ContainerCreation;
+import com.spotify.docker.client.messages.ContainerInfo;
+import com.spotify.docker.client.messages.ContainerState;
+import com.spotify.docker.client.messages.ExecCreation;
+import com.spotify.docker.client.messages.ExecState;
+import com.spotify.docker.client.messages.TopResults;
+import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
+
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({JobConsoleLogger.class, DefaultDockerClient.class})
+public class WarmContainersTest {
+
+    @Test
+    public void reuse() throws Exception {
+        final TestConsoleLogger logger = new TestConsoleLogger();
+        PowerMockito.mockStatic(JobConsoleLogger.class);
+        when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
+
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        when(dockerClient.createContainer(any(ContainerConfig.class))).thenReturn(
+                ContainerCreation.builder().id("123").build());
+        mockRunning(dockerClient, "123");
+        mockExec(dockerClient, "123", 0L);
+        DockerUtils.dockerClient.set(dockerClient);
+
+        final long first = WarmContainers.runScript("busybox:latest", "echo hello\n", "/reuse-dir",
+                Collections.emptyMap(), "10:20", null, ResourceLimits.UNLIMITED, Mounts.NONE,
+                "", ConsoleBudget.UNLIMITED, "output.log", Watchdog.NONE);
+        final long second = WarmContainers.runScript("busybox:latest", "echo hello\n", "/reuse-dir",
+                Collections.emptyMap(), "10:20", null, ResourceLimits.UNLIMITED, Mounts.NONE,
+                "", ConsoleBudget.UNLIMITED, "output.log", Watchdog.NONE);
+
+        assertEquals("Wrong exit code", 0, first);
+        assertEquals("Wrong exit code", 0, second);
+        verify(dockerClient, times(1)).createContainer(any(ContainerConfig.class));
+        verify(dockerClient, times(2)).copyToContainer(any(InputStream.class), eq("123"), eq("/"));
+        verify(dockerClient, times(2)).execCreate(eq("123"), eq(new String[] {DockerUtils.SCRIPT_PATH}),
+                any(), any(), any());
+        verify(dockerClient, never()).removeContainer(anyString(), any(), any());
+        assertThat("Console log incorrect", logger.logLines, hasItems(
+                "Started warm container: 123", "Reusing container: 123", "Script output"));
+    }
+
+    @Test
+    public void discardWithProcessesLeft() throws Exception {
+        final TestConsoleLogger logger = new TestConsoleLogger();
+        PowerMockito.mockStatic(JobConsoleLogger.class);
+        when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
+
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        when(dockerClient.createContainer(any(ContainerConfig.class))).thenReturn(
+                ContainerCreation.builder().id("789").build());
+        mockExec(dockerClient, "789", 0L);
+        final TopResults top = processes(
+                "/bin/sh -c trap 'exit 0' TERM INT; while :; do sleep 3600 & wait $!; done",
+                "sleep 3600", "redis-server *:6379");
+        when(dockerClient.topContainer("789")).thenReturn(top);
+        DockerUtils.dockerClient.set(dockerClient);
+
+        final long exitCode = WarmContainers.runScript("busybox:latest", "redis-server &\n",
+                "/daemon-dir", Collections.emptyMap(), "10:20", null, ResourceLimits.UNLIMITED,
+                Mounts.NONE, "", ConsoleBudget.UNLIMITED, "output.log", Watchdog.NONE);
+
+        assertEquals("Wrong exit code", 0, exitCode);
+        assertThat("Console log incorrect", logger.logLines,
+                hasItems("Script left processes running, not reusing container"));
+        verify(dockerClient, timeout(5000)).removeContainer(eq("789"), any(), any());
+    }
+
+    @Test
+    public void discardOnFailure() throws Exception {
+        final TestConsoleLogger logger = new TestConsoleLogger();
+        PowerMockito.mockStatic(JobConsoleLogger.class);
+        when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
+
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        when(dockerClient.createContainer(any(ContainerConfig.class))).thenReturn(
+                ContainerCreation.builder().id("456").build());
+        final ExecCreation exec = mock(ExecCreation.class);
+        when(exec.id()).thenReturn("exec2");
+        when(dockerClient.execCreate(eq("456"), any(), any(), any(), any())).thenReturn(exec);
+        when(dockerClient.execStart("exec2")).thenThrow(new DockerException("TESTERROR"));
+        DockerUtils.dockerClient.set(dockerClient);
+
+        try {
+            WarmContainers.runScript("busybox:latest", "echo hello\n", "/failing-dir",
+                    Collections.emptyMap(), "10:20", null, ResourceLimits.UNLIMITED, Mounts.NONE,
+                "", ConsoleBudget.UNLIMITED, "output.log", Watchdog.NONE);
+            fail("Expected exception");
+        } catch (DockerException e) {
+            assertEquals("Wrong exception", "TESTERROR", e.getMessage());
+        }
+
+        verify(dockerClient, timeout(5000)).removeContainer(eq("456"), any(), any());
+    }
+
+    private static void mockRunning(DefaultDockerClient dockerClient, String id) throws Exception {
+        final ContainerState state = mock(ContainerState.class);
+        when(state.running()).thenReturn(true);
+        final ContainerInfo info = mock(ContainerInfo.class);
+        when(info.state()).thenReturn(state);
+        when(dockerClient.inspectContainer(id)).thenReturn(info);
+    }
+
+    private static void mockExec(DefaultDockerClient dockerClient, String id, long exitCode)
+            throws Exception {
+        final ExecCreation exec = mock(ExecCreation.class);
+        when(exec.id()).thenReturn("exec1");
+        when(dockerClient.execCreate(eq(id), any(), any(), any(), any())).thenReturn(exec);
+        when(dockerClient.execStart("exec1")).thenAnswer(i -> {
+            final DockerUtilsTest.FakeLogStream logStream = new DockerUtilsTest.FakeLogStream();
+            logStream.add("Script output\n");
+            return logStream;
+        });
+        final ExecState state = mock(ExecState.class);
+        when(state.exitCode()).thenReturn(exitCode);
+        when(dockerClient.execInspect("exec1")).thenReturn(state);
+        final TopResults top = processes(
+                "/bin/sh -c trap 'exit 0' TERM INT; while :; do sleep 3600 & wait $!; done",
+                "sleep 3600");
+        when(dockerClient.topContainer(id)).thenReturn(top);
+    }
+
+    private static TopResults processes(String... commands) {
+        final TopResults top = mock(TopResults.class);
+        when(top.titles()).thenReturn(Arrays.asList("UID", "PID", "CMD"));
+        final List<List<String>> processes = new ArrayList<>();
+        for (String command : commands)
+            processes.add(Arrays.asList("1000", String.valueOf(processes.size() + 1), command));
+        when(top.processes()).thenReturn(processes);
+        return top;
+    }
+}
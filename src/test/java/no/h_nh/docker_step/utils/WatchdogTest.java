@@ -0,0 +1,74 @@
+package no.h_nh.docker_step.utils;
+
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.spotify.docker.client.DefaultDockerClient;
+import com.spotify.docker.client.messages.TopResults;
+import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
+
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({DefaultDockerClient.class, JobConsoleLogger.class})
+public class WatchdogTest {
+
+    @Test
+    public void idleContainerIsKilled() throws Exception {
+        final TestConsoleLogger logger = new TestConsoleLogger();
+        PowerMockito.mockStatic(JobConsoleLogger.class);
+        when(JobConsoleLogger.getConsoleLogger()).thenReturn(logger);
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        final TopResults top = mock(TopResults.class);
+        when(top.titles()).thenReturn(Arrays.asList("PID", "CMD"));
+        when(top.processes()).thenReturn(Collections.singletonList(Arrays.asList("1", "sleep 1000")));
+        when(dockerClient.topContainer("123")).thenReturn(top);
+        DockerUtils.dockerClient.set(dockerClient);
+
+        final StepOutput output = new StepOutput("", line -> {}, ConsoleBudget.UNLIMITED, null);
+        output.feed(ByteBuffer.wrap("waiting\n".getBytes(StandardCharsets.UTF_8)));
+        output.close();
+        try (Watchdog.Watch watch = new Watchdog(0, 1).watch("123", output)) {
+            Thread.sleep(10);
+            watch.poll();
+            verify(dockerClient).killContainer("123");
+            watch.check();
+            fail("Expected exception");
+        } catch (StepTimeoutException e) {
+            assertEquals("Wrong message", "Step stopped after 0 minutes without output", e.getMessage());
+        }
+        assertThat("Processes not printed", logger.logLines, hasItem("1\tsleep 1000"));
+        assertThat("Last lines not printed", logger.logLines, hasItem("waiting"));
+    }
+
+    @Test
+    public void activeContainerIsNotKilled() throws Exception {
+        final DefaultDockerClient dockerClient = mock(DefaultDockerClient.class);
+        DockerUtils.dockerClient.set(dockerClient);
+
+        final StepOutput output = new StepOutput("", line -> {}, ConsoleBudget.UNLIMITED, null);
+        try (Watchdog.Watch watch = new Watchdog(60000, 60000).watch("123", output)) {
+            watch.touch();
+            watch.poll();
+            watch.check();
+        }
+        verify(dockerClient, never()).killContainer(anyString());
+    }
+}